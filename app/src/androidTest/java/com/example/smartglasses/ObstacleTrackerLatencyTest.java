@@ -0,0 +1,99 @@
+package com.example.smartglasses;
+
+import android.content.Context;
+import android.os.SystemClock;
+import android.util.Log;
+
+import androidx.test.ext.junit.runners.AndroidJUnit4;
+import androidx.test.platform.app.InstrumentationRegistry;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.opencv.android.OpenCVLoader;
+import org.opencv.core.Core;
+import org.opencv.core.CvType;
+import org.opencv.core.Mat;
+import org.opencv.imgproc.Imgproc;
+
+import java.io.IOException;
+import java.util.Arrays;
+
+import static org.junit.Assert.*;
+import static org.junit.Assume.assumeTrue;
+
+/**
+ * Feeds async detector results into {@link ObstacleTracker} the way
+ * ObstacleDetectionActivity.trackFrame does, at 30 fps with the real model, and checks that every
+ * result still finds the frame it was computed on however many frames inference takes.
+ */
+@RunWith(AndroidJUnit4.class)
+public class ObstacleTrackerLatencyTest {
+
+    private static final String MODEL = "obstacles_detection.tflite";
+    private static final int FRAMES = 150;
+    private static final long FRAME_MS = 33;
+
+    @Test
+    public void lateResultsAreNeverExpired() throws IOException {
+        Context context = InstrumentationRegistry.getInstrumentation().getTargetContext();
+        assumeTrue("model not packaged", Arrays.asList(context.getAssets().list("")).contains(MODEL));
+        assertTrue(OpenCVLoader.initDebug());
+
+        ObjectDetectorClass detector = new ObjectDetectorClass(context.getAssets(), MODEL, "labelmap.txt", 416);
+        AsyncObstacleDetector async = new AsyncObstacleDetector(detector);
+        async.setMaxResultAgeMs(Long.MAX_VALUE);
+        ObstacleTracker tracker = new ObstacleTracker(detector.getLabels());
+        async.start();
+
+        Mat rgba = new Mat(480, 640, CvType.CV_8UC4);
+        Mat gray = new Mat();
+        DetectionBuffer latest = new DetectionBuffer(ObjectDetectorClass.MAX_DETECTIONS);
+        long[] submittedAt = new long[FRAMES + 1];
+        long lastSeq = 0;
+        long latencySum = 0;
+        int results = 0;
+        int maxLatencyFrames = 0;
+        try {
+            for (int frame = 1; frame <= FRAMES; frame++) {
+                final long start = SystemClock.uptimeMillis();
+                Core.randu(rgba, 0, 255);
+                Imgproc.cvtColor(rgba, gray, Imgproc.COLOR_RGBA2GRAY);
+
+                long submitted = tracker.needsDetection() ? async.submitIfIdle(rgba) : 0;
+                if (submitted != 0) {
+                    submittedAt[(int) submitted] = frame;
+                }
+                DetectionBuffer detections = null;
+                long detectionFrame = 0;
+                final long seq = async.getLatest(latest);
+                if (seq > lastSeq) {
+                    lastSeq = seq;
+                    detections = latest;
+                    detectionFrame = seq == submitted ? 0 : seq;
+                    final int latency = (int) (frame - submittedAt[(int) seq]);
+                    latencySum += latency;
+                    maxLatencyFrames = Math.max(maxLatencyFrames, latency);
+                    results++;
+                }
+                tracker.update(gray, detections, detectionFrame);
+                if (submitted != 0) {
+                    tracker.rememberFrame(submitted);
+                }
+                SystemClock.sleep(Math.max(0, FRAME_MS - (SystemClock.uptimeMillis() - start)));
+            }
+        } finally {
+            async.release();
+            tracker.release();
+            detector.close();
+            rgba.release();
+            gray.release();
+        }
+
+        Log.i("ObstacleTrackerLatency", String.format("%d results, mean latency %.1f frames, max %d",
+                results, results > 0 ? (float) latencySum / results : 0f, maxLatencyFrames));
+        assertTrue(results > 1);
+        assertEquals(0, tracker.getExpiredDetections());
+        // every result reached the tracks
+        assertEquals(results, tracker.getDetectorRuns());
+    }
+}
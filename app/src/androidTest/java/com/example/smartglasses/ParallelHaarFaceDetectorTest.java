@@ -0,0 +1,172 @@
+package com.example.smartglasses;
+
+import android.content.Context;
+import android.os.SystemClock;
+import android.util.Log;
+
+import androidx.test.ext.junit.runners.AndroidJUnit4;
+import androidx.test.platform.app.InstrumentationRegistry;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.opencv.android.OpenCVLoader;
+import org.opencv.core.Core;
+import org.opencv.core.CvType;
+import org.opencv.core.Mat;
+import org.opencv.core.Point;
+import org.opencv.core.Scalar;
+import org.opencv.core.Size;
+import org.opencv.imgproc.Imgproc;
+import org.opencv.objdetect.CascadeClassifier;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+
+import static org.junit.Assert.*;
+
+/**
+ * Runs the serial {@link HaarFaceDetector} and {@link ParallelHaarFaceDetector} with the app's
+ * cascade over the same frames and checks they find the same faces. The frames are drawn: noisy
+ * backgrounds with one to three cartoon faces at different places and sizes, which the frontal
+ * cascade picks up.
+ */
+@RunWith(AndroidJUnit4.class)
+public class ParallelHaarFaceDetectorTest {
+
+    private static final int FRAMES = 12;
+    private static final double MIN_IOU = 0.8;
+
+    @Test
+    public void parallelBoxesMatchSerial() throws IOException {
+        Context context = InstrumentationRegistry.getInstrumentation().getTargetContext();
+        assertTrue(OpenCVLoader.initDebug());
+        final String cascade = copyCascade(context);
+
+        List<Mat> frames = drawFrames(new Random(7));
+        HaarFaceDetector serial = new HaarFaceDetector(new CascadeClassifier(cascade));
+        try {
+            List<int[]> expected = new ArrayList<>();
+            int faces = 0;
+            long serialMs = 0;
+            for (Mat frame : frames) {
+                final long start = SystemClock.elapsedRealtime();
+                final int count = serial.detect(frame);
+                serialMs += SystemClock.elapsedRealtime() - start;
+                expected.add(Arrays.copyOf(serial.getBoxes(), count * 4));
+                faces += count;
+            }
+            assertTrue("the cascade found none of the drawn faces", faces > 0);
+
+            for (int workers : new int[]{2, 3, 4}) {
+                ParallelHaarFaceDetector parallel = new ParallelHaarFaceDetector(cascade, workers);
+                long parallelMs = 0;
+                try {
+                    for (int f = 0; f < frames.size(); f++) {
+                        final long start = SystemClock.elapsedRealtime();
+                        final int count = parallel.detect(frames.get(f));
+                        parallelMs += SystemClock.elapsedRealtime() - start;
+                        assertSameFaces("frame " + f + ", " + workers + " workers", expected.get(f),
+                                Arrays.copyOf(parallel.getBoxes(), count * 4));
+                    }
+                } finally {
+                    parallel.release();
+                }
+                Log.i("ParallelHaar", String.format("%d faces in %d frames, serial %d ms, %d workers %d ms",
+                        faces, frames.size(), serialMs, workers, parallelMs));
+            }
+        } finally {
+            serial.release();
+            for (Mat frame : frames) {
+                frame.release();
+            }
+        }
+    }
+
+    // same number of faces and every serial box has a parallel one covering the same face
+    private static void assertSameFaces(String message, int[] expected, int[] actual) {
+        assertEquals(message, expected.length, actual.length);
+        boolean[] used = new boolean[actual.length / 4];
+        for (int i = 0; i < expected.length; i += 4) {
+            int best = -1;
+            double bestIou = 0;
+            for (int j = 0; j < actual.length; j += 4) {
+                final double iou = iou(expected, i, actual, j);
+                if (!used[j / 4] && iou > bestIou) {
+                    best = j / 4;
+                    bestIou = iou;
+                }
+            }
+            assertTrue(message + ": no match for box " + i / 4 + ", best IoU " + bestIou, bestIou >= MIN_IOU);
+            used[best] = true;
+        }
+    }
+
+    private static double iou(int[] a, int i, int[] b, int j) {
+        final int iw = Math.min(a[i] + a[i + 2], b[j] + b[j + 2]) - Math.max(a[i], b[j]);
+        final int ih = Math.min(a[i + 1] + a[i + 3], b[j + 1] + b[j + 3]) - Math.max(a[i + 1], b[j + 1]);
+        if (iw <= 0 || ih <= 0) {
+            return 0;
+        }
+        final double inter = (double) iw * ih;
+        return inter / ((double) a[i + 2] * a[i + 3] + (double) b[j + 2] * b[j + 3] - inter);
+    }
+
+    private static List<Mat> drawFrames(Random random) {
+        List<Mat> frames = new ArrayList<>();
+        for (int f = 0; f < FRAMES; f++) {
+            Mat gray = new Mat(480, 640, CvType.CV_8UC1);
+            Core.randu(gray, 60, 140);
+            Imgproc.GaussianBlur(gray, gray, new Size(9, 9), 0);
+            final int faces = 1 + random.nextInt(3);
+            for (int i = 0; i < faces; i++) {
+                // a column per face so they do not overlap
+                final int size = 70 + random.nextInt(90);
+                final int column = 640 / faces;
+                final int cx = i * column + size / 2 + random.nextInt(Math.max(1, column - size));
+                final int cy = size / 2 + 10 + random.nextInt(Math.max(1, 460 - size));
+                drawFace(gray, cx, cy, size);
+            }
+            Imgproc.GaussianBlur(gray, gray, new Size(3, 3), 0);
+            frames.add(gray);
+        }
+        return frames;
+    }
+
+    private static void drawFace(Mat gray, int cx, int cy, int size) {
+        final double s = size / 100.0;
+        final Scalar skin = new Scalar(200);
+        final Scalar dark = new Scalar(35);
+        Imgproc.ellipse(gray, new Point(cx, cy), new Size(40 * s, 52 * s), 0, 0, 360, skin, -1);
+        // brows, eyes, nose shadow and mouth
+        Imgproc.line(gray, new Point(cx - 28 * s, cy - 24 * s), new Point(cx - 8 * s, cy - 26 * s), dark, (int) Math.max(1, 4 * s));
+        Imgproc.line(gray, new Point(cx + 8 * s, cy - 26 * s), new Point(cx + 28 * s, cy - 24 * s), dark, (int) Math.max(1, 4 * s));
+        Imgproc.ellipse(gray, new Point(cx - 17 * s, cy - 12 * s), new Size(9 * s, 5 * s), 0, 0, 360, dark, -1);
+        Imgproc.ellipse(gray, new Point(cx + 17 * s, cy - 12 * s), new Size(9 * s, 5 * s), 0, 0, 360, dark, -1);
+        Imgproc.ellipse(gray, new Point(cx, cy + 8 * s), new Size(5 * s, 10 * s), 0, 0, 360, new Scalar(150), -1);
+        Imgproc.ellipse(gray, new Point(cx, cy + 28 * s), new Size(16 * s, 5 * s), 0, 0, 360, new Scalar(70), -1);
+    }
+
+    // the cascade lives in res/raw, CascadeClassifier needs a file
+    private static String copyCascade(Context context) throws IOException {
+        File file = new File(context.getCacheDir(), "haarcascade_frontalface_alt2.xml");
+        InputStream is = context.getResources().openRawResource(R.raw.haarcascade_frontalface_alt2);
+        FileOutputStream fos = new FileOutputStream(file);
+        try {
+            byte[] buffer = new byte[4096];
+            int bytesRead;
+            while ((bytesRead = is.read(buffer)) != -1) {
+                fos.write(buffer, 0, bytesRead);
+            }
+        } finally {
+            is.close();
+            fos.close();
+        }
+        return file.getAbsolutePath();
+    }
+}
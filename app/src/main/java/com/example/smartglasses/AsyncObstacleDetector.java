@@ -0,0 +1,317 @@
+package com.example.smartglasses;
+
+import android.os.SystemClock;
+import android.util.Log;
+
+import org.opencv.core.Mat;
+
+/**
+ * Runs {@link ObjectDetectorClass#detect} on dedicated worker threads so the camera thread
+ * never waits for the interpreter.
+ *
+ * Each worker owns one detector (and so one interpreter with its own tensors). Frames are
+ * numbered and dispatched round-robin, each worker having a single latest-frame-wins slot: a frame
+ * that is still waiting when a newer one is dispatched to the same worker is dropped without
+ * being run. Results are published in frame order, so with several workers a finished frame waits
+ * for older frames that are still running, and results older than the published one are
+ * discarded. The camera thread reads the most recent published detections with
+ * {@link #getLatest} and draws them on the live frame. Results older than the configured maximum
+ * age are not returned, so boxes never lag far behind the preview.
+ */
+public class AsyncObstacleDetector {
+
+    private static final String TAG = "AsyncObstacleDetector";
+
+    private final Worker[] workers;
+    private final Object lock = new Object();
+
+    // guarded by lock
+    private long lastSeq = 0;
+    private int nextWorker = 0;
+    private final DetectionBuffer latest = new DetectionBuffer(ObjectDetectorClass.MAX_DETECTIONS);
+    private long latestSeq = 0;
+    private long latestTime;
+    private long droppedFrames = 0;
+    private long completedFrames = 0;
+    private boolean running = false;
+
+    private long maxResultAgeMs = 500;
+
+    public AsyncObstacleDetector(ObjectDetectorClass... detectors) {
+        workers = new Worker[detectors.length];
+        for (int i = 0; i < detectors.length; i++) {
+            workers[i] = new Worker(detectors[i]);
+        }
+    }
+
+    /** Completed detections older than this (by capture time) are no longer drawn. */
+    public void setMaxResultAgeMs(long maxResultAgeMs) {
+        this.maxResultAgeMs = maxResultAgeMs;
+    }
+
+    public int getWorkerCount() {
+        return workers.length;
+    }
+
+    public void start() {
+        synchronized (lock) {
+            if (running) {
+                return;
+            }
+            running = true;
+            for (int i = 0; i < workers.length; i++) {
+                final Worker worker = workers[i];
+                // created here rather than in the constructor, OpenCV is only loaded by now
+                if (worker.pendingFrame == null) {
+                    worker.pendingFrame = new Mat();
+                    worker.workingFrame = new Mat();
+                }
+                worker.thread = new Thread(new Runnable() {
+                    @Override
+                    public void run() {
+                        workerLoop(worker);
+                    }
+                }, "ObstacleInference-" + i);
+            }
+        }
+        for (Worker worker : workers) {
+            worker.thread.start();
+        }
+    }
+
+    public void stop() {
+        synchronized (lock) {
+            if (!running) {
+                return;
+            }
+            running = false;
+            lock.notifyAll();
+        }
+        for (Worker worker : workers) {
+            try {
+                worker.thread.join();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            worker.thread = null;
+        }
+        synchronized (lock) {
+            for (Worker worker : workers) {
+                worker.pendingSeq = 0;
+                worker.runningSeq = 0;
+                worker.doneSeq = 0;
+            }
+            latest.clear();
+            latestSeq = 0;
+        }
+    }
+
+    public void release() {
+        stop();
+        for (Worker worker : workers) {
+            if (worker.pendingFrame != null) {
+                worker.pendingFrame.release();
+                worker.workingFrame.release();
+            }
+        }
+    }
+
+    /**
+     * Copies the frame into the slot of the next worker in round-robin order, replacing any frame
+     * that worker has not picked up yet, and returns its sequence number. Never blocks on
+     * inference.
+     */
+    public long submit(Mat rgba) {
+        synchronized (lock) {
+            if (!running) {
+                return 0;
+            }
+            Worker worker = workers[nextWorker];
+            nextWorker = (nextWorker + 1) % workers.length;
+            if (worker.pendingSeq != 0) {
+                droppedFrames++;
+            }
+            return hand(worker, rgba);
+        }
+    }
+
+    /**
+     * Like {@link #submit}, but only hands the frame to a worker with nothing waiting, running or
+     * held back for ordering, so every frame submitted this way is run. At most one such frame per
+     * worker is in flight at a time.
+     *
+     * @return sequence number of the frame, or 0 if every worker is busy or the detector is not
+     * started
+     */
+    public long submitIfIdle(Mat rgba) {
+        synchronized (lock) {
+            if (!running) {
+                return 0;
+            }
+            for (int i = 0; i < workers.length; i++) {
+                Worker worker = workers[(nextWorker + i) % workers.length];
+                if (worker.pendingSeq == 0 && worker.runningSeq == 0 && worker.doneSeq == 0) {
+                    nextWorker = (nextWorker + i + 1) % workers.length;
+                    return hand(worker, rgba);
+                }
+            }
+            return 0;
+        }
+    }
+
+    // copies the frame into the worker's slot; must be called with the lock held
+    private long hand(Worker worker, Mat rgba) {
+        rgba.copyTo(worker.pendingFrame);
+        worker.pendingSeq = ++lastSeq;
+        worker.pendingTime = SystemClock.uptimeMillis();
+        lock.notifyAll();
+        return worker.pendingSeq;
+    }
+
+    /**
+     * Copies the most recent published detections into out.
+     *
+     * @return sequence number of the frame they were computed on, or 0 if there is no result
+     * recent enough to draw (out is then empty)
+     */
+    public long getLatest(DetectionBuffer out) {
+        synchronized (lock) {
+            if (latestSeq == 0 || SystemClock.uptimeMillis() - latestTime > maxResultAgeMs) {
+                out.clear();
+                return 0;
+            }
+            out.copyFrom(latest);
+            return latestSeq;
+        }
+    }
+
+    /**
+     * Marks the latest result as still current, e.g. because the scene has not changed since it
+     * was captured, so it is not expired by the maximum result age.
+     */
+    public void keepLatest() {
+        synchronized (lock) {
+            if (latestSeq != 0) {
+                latestTime = SystemClock.uptimeMillis();
+            }
+        }
+    }
+
+    public long getDroppedFrames() {
+        synchronized (lock) {
+            return droppedFrames;
+        }
+    }
+
+    public long getCompletedFrames() {
+        synchronized (lock) {
+            return completedFrames;
+        }
+    }
+
+    private void workerLoop(Worker worker) {
+        while (true) {
+            long seq;
+            long captureTime;
+            synchronized (lock) {
+                // a worker whose last result is still held back for ordering waits for it to go out
+                while (running && (worker.pendingSeq == 0 || worker.doneSeq != 0)) {
+                    try {
+                        lock.wait();
+                    } catch (InterruptedException e) {
+                        return;
+                    }
+                }
+                if (!running) {
+                    return;
+                }
+                // take the frame by swapping mats, the camera thread fills the other one next
+                Mat frame = worker.pendingFrame;
+                worker.pendingFrame = worker.workingFrame;
+                worker.workingFrame = frame;
+                seq = worker.pendingSeq;
+                captureTime = worker.pendingTime;
+                worker.pendingSeq = 0;
+                worker.runningSeq = seq;
+            }
+
+            DetectionBuffer result = null;
+            try {
+                result = worker.detector.detect(worker.workingFrame);
+            } catch (RuntimeException e) {
+                Log.e(TAG, "Inference failed", e);
+            }
+
+            synchronized (lock) {
+                worker.runningSeq = 0;
+                if (result != null) {
+                    completedFrames++;
+                    worker.done.copyFrom(result);
+                    worker.doneSeq = seq;
+                    worker.doneTime = captureTime;
+                }
+                publishInOrder();
+                lock.notifyAll();
+            }
+        }
+    }
+
+    // publishes finished results oldest first, holding back any result while an older frame is
+    // still running; must be called with the lock held
+    private void publishInOrder() {
+        while (true) {
+            Worker oldest = null;
+            for (Worker worker : workers) {
+                if (worker.doneSeq != 0 && (oldest == null || worker.doneSeq < oldest.doneSeq)) {
+                    oldest = worker;
+                }
+            }
+            if (oldest == null) {
+                break;
+            }
+            for (Worker worker : workers) {
+                if (worker.runningSeq != 0 && worker.runningSeq < oldest.doneSeq) {
+                    return;
+                }
+            }
+
+            // a result for an older frame than the one already published is stale
+            if (oldest.doneSeq > latestSeq) {
+                latest.copyFrom(oldest.done);
+                latestSeq = oldest.doneSeq;
+                latestTime = oldest.doneTime;
+            }
+            oldest.doneSeq = 0;
+        }
+
+        // frames still waiting that are older than the published result would only be discarded
+        for (Worker worker : workers) {
+            if (worker.pendingSeq != 0 && worker.pendingSeq < latestSeq) {
+                worker.pendingSeq = 0;
+                droppedFrames++;
+            }
+        }
+    }
+
+    /** One interpreter and its hand-over state, guarded by the outer lock unless noted. */
+    private static class Worker {
+        final ObjectDetectorClass detector;
+        Thread thread;
+
+        Mat pendingFrame;
+        long pendingSeq;
+        long pendingTime;
+        long runningSeq;
+
+        final DetectionBuffer done = new DetectionBuffer(ObjectDetectorClass.MAX_DETECTIONS);
+        long doneSeq;
+        long doneTime;
+
+        // owned by the worker thread while a frame is running
+        Mat workingFrame;
+
+        Worker(ObjectDetectorClass detector) {
+            this.detector = detector;
+        }
+    }
+}
@@ -0,0 +1,134 @@
+package com.example.smartglasses;
+
+import org.opencv.core.CvType;
+import org.opencv.core.Mat;
+import org.opencv.imgproc.Imgproc;
+import org.tensorflow.lite.Interpreter;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+
+/**
+ * Runs the face embedding model on several aligned faces in one inference.
+ *
+ * Faces are normalised straight into consecutive slots of one direct input buffer, and the
+ * interpreter's input is resized to the batch size with {@link Interpreter#resizeInput} whenever it
+ * changes. Models whose graph cannot take another batch size are detected on the first resize and
+ * then run once per face over the same slots. Not thread-safe.
+ */
+public class BatchedFaceEmbedder {
+
+    private final Interpreter interpreter;
+    private final int inputSize;
+    private final int outputSize;
+    private final int maxBatch;
+    private final boolean quantized;
+    private final float mean;
+    private final float std;
+
+    private final ByteBuffer input;
+    private final ByteBuffer[] batchInputs;
+    private final ByteBuffer[] faceInputs;
+    private final Mat[] slots;
+    private final float[][][] outputs;
+    private final float[][] singleOutput;
+    private final Mat faceRgb = new Mat();
+    private int batchSize = -1;
+    private boolean batching = true;
+
+    public BatchedFaceEmbedder(Interpreter interpreter, int inputSize, int outputSize, int maxBatch,
+                               boolean quantized, float mean, float std) {
+        this.interpreter = interpreter;
+        this.inputSize = inputSize;
+        this.outputSize = outputSize;
+        this.maxBatch = maxBatch;
+        this.quantized = quantized;
+        this.mean = mean;
+        this.std = std;
+
+        final int faceBytes = inputSize * inputSize * 3 * (quantized ? 1 : 4);
+        input = ByteBuffer.allocateDirect(maxBatch * faceBytes);
+        input.order(ByteOrder.nativeOrder());
+        batchInputs = new ByteBuffer[maxBatch + 1];
+        faceInputs = new ByteBuffer[maxBatch];
+        slots = new Mat[maxBatch];
+        outputs = new float[maxBatch + 1][][];
+        singleOutput = new float[1][outputSize];
+        for (int i = 0; i < maxBatch; i++) {
+            // the interpreter checks buffer sizes, so every batch size and face gets an exact view
+            batchInputs[i + 1] = view(0, (i + 1) * faceBytes);
+            faceInputs[i] = view(i * faceBytes, faceBytes);
+            slots[i] = new Mat(inputSize, inputSize, quantized ? CvType.CV_8UC3 : CvType.CV_32FC3, faceInputs[i]);
+        }
+    }
+
+    private ByteBuffer view(int offset, int length) {
+        ByteBuffer view = input.duplicate();
+        view.position(offset);
+        view.limit(offset + length);
+        return view.slice().order(ByteOrder.nativeOrder());
+    }
+
+    public int getMaxBatch() {
+        return maxBatch;
+    }
+
+    /** Normalises a size x size RGBA face into a slot of the next batch. */
+    public void setFace(int slot, Mat rgbaFace) {
+        if (quantized) {
+            Imgproc.cvtColor(rgbaFace, slots[slot], Imgproc.COLOR_RGBA2RGB);
+        } else {
+            Imgproc.cvtColor(rgbaFace, faceRgb, Imgproc.COLOR_RGBA2RGB);
+            faceRgb.convertTo(slots[slot], CvType.CV_32FC3, 1.0 / std, -mean / std);
+        }
+    }
+
+    /**
+     * Embeds the faces in slots [0, count).
+     *
+     * @return one embedding per face, valid until the next run with the same count
+     */
+    public float[][] run(int count) {
+        if (outputs[count] == null) {
+            outputs[count] = new float[count][outputSize];
+        }
+        float[][] output = outputs[count];
+        if (batching && resize(count)) {
+            batchInputs[count].rewind();
+            interpreter.run(batchInputs[count], output);
+            return output;
+        }
+        for (int i = 0; i < count; i++) {
+            faceInputs[i].rewind();
+            interpreter.run(faceInputs[i], singleOutput);
+            System.arraycopy(singleOutput[0], 0, output[i], 0, outputSize);
+        }
+        return output;
+    }
+
+    // false once the model turned out to have a fixed batch size, which is then 1
+    private boolean resize(int count) {
+        if (count == batchSize) {
+            return true;
+        }
+        try {
+            interpreter.resizeInput(0, new int[]{count, inputSize, inputSize, 3});
+            interpreter.allocateTensors();
+            batchSize = count;
+            return true;
+        } catch (IllegalArgumentException | IllegalStateException e) {
+            batching = false;
+            interpreter.resizeInput(0, new int[]{1, inputSize, inputSize, 3});
+            interpreter.allocateTensors();
+            batchSize = 1;
+            return count == 1;
+        }
+    }
+
+    public void release() {
+        for (Mat slot : slots) {
+            slot.release();
+        }
+        faceRgb.release();
+    }
+}
@@ -0,0 +1,468 @@
+package com.example.smartglasses;
+
+import android.content.ContentResolver;
+import android.database.Cursor;
+import android.graphics.Bitmap;
+import android.graphics.BitmapFactory;
+import android.graphics.Rect;
+import android.net.Uri;
+import android.os.SystemClock;
+import android.provider.DocumentsContract;
+
+import com.google.android.gms.tasks.Tasks;
+import com.google.mlkit.vision.common.InputImage;
+import com.google.mlkit.vision.face.Face;
+import com.google.mlkit.vision.face.FaceDetector;
+
+import org.opencv.android.Utils;
+import org.opencv.core.CvType;
+import org.opencv.core.Mat;
+import org.opencv.imgproc.Imgproc;
+import org.tensorflow.lite.Interpreter;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Enrolls many faces at once from a folder tree with one folder per person.
+ *
+ * Worker threads each decode an image once (subsampled to at most {@link #MAX_SIDE} pixels), detect
+ * the largest face with ML Kit and align it into a model input buffer. The calling thread runs the
+ * embedding model on the buffers as they arrive, averages the normalised embeddings of each person
+ * and hands finished people to the listener in batches. Input buffers come from a fixed pool, so a
+ * slow model holds back the workers instead of piling up decoded images.
+ */
+public class BulkEnroller {
+
+    static final int MAX_SIDE = 1280;
+    private static final int BATCH = 32;
+    private static final int MAX_FAILED_LISTED = 20;
+    private static final float IMAGE_MEAN = 128.0f;
+    private static final float IMAGE_STD = 128.0f;
+
+    /** One image of a person. */
+    public static final class Image {
+        final String person;
+        final Uri uri;
+
+        public Image(String person, Uri uri) {
+            this.person = person;
+            this.uri = uri;
+        }
+    }
+
+    public interface Listener {
+        /** Finished people with their mean embeddings, called on the thread running {@link #run}. */
+        void onBatch(List<String> names, List<float[]> embeddings);
+
+        void onProgress(int done, int total);
+    }
+
+    /** Counts and timings of one run. Stage times are summed over all threads. */
+    public static final class Report {
+        public int images;
+        public int people;
+        public int enrolledPeople;
+        public int embeddedImages;
+        public int decodeFailures;
+        public int noFace;
+        public int errors;
+        public long elapsedMs;
+        public long decodeMs;
+        public long detectMs;
+        public long embedMs;
+        // first failures as "person/uri: reason"
+        public final List<String> failed = new ArrayList<>();
+
+        public float getImagesPerSecond() {
+            return elapsedMs > 0 ? images * 1000f / elapsedMs : 0f;
+        }
+
+        @Override
+        public String toString() {
+            return String.format("%d of %d people enrolled from %d images in %.1f s (%.1f images/s)\n"
+                            + "Embedded: %d, no face: %d, unreadable: %d, errors: %d\n"
+                            + "Decode %d ms, detect %d ms, embed %d ms",
+                    enrolledPeople, people, images, elapsedMs / 1000f, getImagesPerSecond(),
+                    embeddedImages, noFace, decodeFailures, errors, decodeMs, detectMs, embedMs);
+        }
+    }
+
+    // why an image gave no input buffer
+    private static final int OK = 0;
+    private static final int UNREADABLE = 1;
+    private static final int NO_FACE = 2;
+    private static final int ERROR = 3;
+
+    // what a worker found for one image: an input buffer to embed, or why there is none
+    private static final class Result {
+        static final Result DONE = new Result(-1, null);
+
+        final int image;
+        final ByteBuffer input;
+        final int failure;
+        final String error;
+
+        Result(int image, ByteBuffer input) {
+            this(image, input, OK, null);
+        }
+
+        Result(int image, int failure, String error) {
+            this(image, null, failure, error);
+        }
+
+        private Result(int image, ByteBuffer input, int failure, String error) {
+            this.image = image;
+            this.input = input;
+            this.failure = failure;
+            this.error = error;
+        }
+    }
+
+    private final ContentResolver resolver;
+    private final FaceDetector detector;
+    private final Interpreter interpreter;
+    private final int inputSize;
+    private final int outputSize;
+    private final int workers;
+    private volatile boolean cancelled = false;
+
+    /**
+     * @param detector    a detector without tracking used only by this enroller, the images are
+     *                    unrelated stills
+     * @param interpreter an interpreter of the embedding model used only by this enroller
+     * @param workers     decode/detect/align threads
+     */
+    public BulkEnroller(ContentResolver resolver, FaceDetector detector, Interpreter interpreter,
+                        int inputSize, int outputSize, int workers) {
+        this.resolver = resolver;
+        this.detector = detector;
+        this.interpreter = interpreter;
+        this.inputSize = inputSize;
+        this.outputSize = outputSize;
+        this.workers = workers;
+    }
+
+    /** Worker count leaving a core for the embedding thread and one for the UI, between 1 and 4. */
+    public static int defaultWorkerCount() {
+        return Math.max(1, Math.min(4, Runtime.getRuntime().availableProcessors() - 2));
+    }
+
+    /**
+     * Lists the images of every person folder directly under a tree picked with
+     * ACTION_OPEN_DOCUMENT_TREE, the folder name being the person's name.
+     */
+    public static List<Image> listFolders(ContentResolver resolver, Uri tree) {
+        List<Image> images = new ArrayList<>();
+        final String rootId = DocumentsContract.getTreeDocumentId(tree);
+        for (String[] folder : listChildren(resolver, tree, rootId)) {
+            if (!DocumentsContract.Document.MIME_TYPE_DIR.equals(folder[2])) {
+                continue;
+            }
+            for (String[] file : listChildren(resolver, tree, folder[0])) {
+                if (file[2] != null && file[2].startsWith("image/")) {
+                    images.add(new Image(folder[1], DocumentsContract.buildDocumentUriUsingTree(tree, file[0])));
+                }
+            }
+        }
+        Collections.sort(images, new Comparator<Image>() {
+            @Override
+            public int compare(Image a, Image b) {
+                return a.person.compareTo(b.person);
+            }
+        });
+        return images;
+    }
+
+    // id, display name and mime type of each child document
+    private static List<String[]> listChildren(ContentResolver resolver, Uri tree, String documentId) {
+        List<String[]> children = new ArrayList<>();
+        Cursor cursor = resolver.query(DocumentsContract.buildChildDocumentsUriUsingTree(tree, documentId),
+                new String[]{DocumentsContract.Document.COLUMN_DOCUMENT_ID,
+                        DocumentsContract.Document.COLUMN_DISPLAY_NAME,
+                        DocumentsContract.Document.COLUMN_MIME_TYPE},
+                null, null, null);
+        if (cursor == null) {
+            return children;
+        }
+        try {
+            while (cursor.moveToNext()) {
+                children.add(new String[]{cursor.getString(0), cursor.getString(1), cursor.getString(2)});
+            }
+        } finally {
+            cursor.close();
+        }
+        return children;
+    }
+
+    /** Stops a running {@link #run} after the images in flight, finished people are still reported. */
+    public void cancel() {
+        cancelled = true;
+    }
+
+    /** Enrolls the images, blocking until done. Must not be called on the main thread. */
+    public Report run(final List<Image> images, Listener listener) throws InterruptedException {
+        final long start = SystemClock.elapsedRealtime();
+        final Report report = new Report();
+        report.images = images.size();
+
+        // people by first appearance, with how many of their images are still outstanding
+        HashMap<String, Integer> personIds = new HashMap<>();
+        List<String> people = new ArrayList<>();
+        final int[] personOfImage = new int[images.size()];
+        for (int i = 0; i < images.size(); i++) {
+            Integer id = personIds.get(images.get(i).person);
+            if (id == null) {
+                id = people.size();
+                personIds.put(images.get(i).person, id);
+                people.add(images.get(i).person);
+            }
+            personOfImage[i] = id;
+        }
+        report.people = people.size();
+        int[] remaining = new int[people.size()];
+        int[] embedded = new int[people.size()];
+        for (int person : personOfImage) {
+            remaining[person]++;
+        }
+        float[][] sums = new float[people.size()][];
+
+        final BlockingQueue<ByteBuffer> freeInputs = new ArrayBlockingQueue<>(2 * workers);
+        for (int i = 0; i < 2 * workers; i++) {
+            ByteBuffer input = ByteBuffer.allocateDirect(inputSize * inputSize * 3 * 4);
+            input.order(ByteOrder.nativeOrder());
+            freeInputs.add(input);
+        }
+        final BlockingQueue<Result> results = new LinkedBlockingQueue<>();
+        final AtomicInteger next = new AtomicInteger();
+        final AtomicLong decodeNanos = new AtomicLong();
+        final AtomicLong detectNanos = new AtomicLong();
+
+        Thread[] threads = new Thread[workers];
+        for (int w = 0; w < workers; w++) {
+            threads[w] = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    prepareImages(images, next, freeInputs, results, decodeNanos, detectNanos);
+                }
+            }, "BulkEnroll-" + w);
+            threads[w].start();
+        }
+
+        float[][] output = new float[1][outputSize];
+        List<String> batchNames = new ArrayList<>();
+        List<float[]> batchEmbeddings = new ArrayList<>();
+        long embedNanos = 0;
+        int done = 0;
+        int finishedWorkers = 0;
+        try {
+            while (finishedWorkers < workers) {
+                Result result = results.take();
+                if (result == Result.DONE) {
+                    finishedWorkers++;
+                    continue;
+                }
+                final int person = personOfImage[result.image];
+                if (result.input != null) {
+                    final long embedStart = System.nanoTime();
+                    result.input.rewind();
+                    interpreter.run(result.input, output);
+                    embedNanos += System.nanoTime() - embedStart;
+                    freeInputs.put(result.input);
+                    addNormalised(output[0], sums, person);
+                    embedded[person]++;
+                    report.embeddedImages++;
+                } else {
+                    countFailure(report, images.get(result.image), result);
+                }
+
+                if (--remaining[person] == 0 && embedded[person] > 0) {
+                    float[] mean = sums[person];
+                    for (int i = 0; i < outputSize; i++) {
+                        mean[i] /= embedded[person];
+                    }
+                    sums[person] = null;
+                    batchNames.add(people.get(person));
+                    batchEmbeddings.add(mean);
+                    report.enrolledPeople++;
+                    if (batchNames.size() == BATCH) {
+                        listener.onBatch(batchNames, batchEmbeddings);
+                        batchNames = new ArrayList<>();
+                        batchEmbeddings = new ArrayList<>();
+                    }
+                }
+                listener.onProgress(++done, images.size());
+            }
+        } finally {
+            // only reached early when embedding failed or this thread was interrupted
+            if (finishedWorkers < workers) {
+                cancelled = true;
+                for (Thread thread : threads) {
+                    thread.interrupt();
+                }
+            }
+            for (Thread thread : threads) {
+                thread.join();
+            }
+        }
+        if (!batchNames.isEmpty()) {
+            listener.onBatch(batchNames, batchEmbeddings);
+        }
+
+        report.elapsedMs = SystemClock.elapsedRealtime() - start;
+        report.decodeMs = decodeNanos.get() / 1000000;
+        report.detectMs = detectNanos.get() / 1000000;
+        report.embedMs = embedNanos / 1000000;
+        return report;
+    }
+
+    // worker loop: claims images until none are left, then posts DONE
+    private void prepareImages(List<Image> images, AtomicInteger next, BlockingQueue<ByteBuffer> freeInputs,
+                               BlockingQueue<Result> results, AtomicLong decodeNanos, AtomicLong detectNanos) {
+        FaceAligner aligner = new FaceAligner(inputSize);
+        Mat rgba = new Mat();
+        Mat rgb = new Mat();
+        try {
+            int index;
+            while (!cancelled && (index = next.getAndIncrement()) < images.size()) {
+                Result result;
+                try {
+                    result = prepare(index, images.get(index), aligner, rgba, rgb, freeInputs, decodeNanos, detectNanos);
+                } catch (InterruptedException e) {
+                    break;
+                } catch (Exception e) {
+                    result = new Result(index, ERROR, String.valueOf(e.getMessage()));
+                }
+                results.add(result);
+            }
+        } finally {
+            aligner.release();
+            rgba.release();
+            rgb.release();
+            results.add(Result.DONE);
+        }
+    }
+
+    private Result prepare(int index, Image image, FaceAligner aligner, Mat rgba, Mat rgb,
+                           BlockingQueue<ByteBuffer> freeInputs, AtomicLong decodeNanos, AtomicLong detectNanos)
+            throws Exception {
+        long stageStart = System.nanoTime();
+        Bitmap bitmap = decode(image.uri);
+        decodeNanos.addAndGet(System.nanoTime() - stageStart);
+        if (bitmap == null) {
+            return new Result(index, UNREADABLE, null);
+        }
+        try {
+            stageStart = System.nanoTime();
+            List<Face> faces = Tasks.await(detector.process(InputImage.fromBitmap(bitmap, 0)));
+            detectNanos.addAndGet(System.nanoTime() - stageStart);
+            Rect box = largest(faces);
+            if (box == null) {
+                return new Result(index, NO_FACE, null);
+            }
+
+            Utils.bitmapToMat(bitmap, rgba);
+            Mat aligned = aligner.align(rgba, 0, 0, rgba.cols(), rgba.rows(), 0, box, false);
+            Imgproc.cvtColor(aligned, rgb, Imgproc.COLOR_RGBA2RGB);
+            ByteBuffer input = freeInputs.take();
+            Mat inputMat = new Mat(inputSize, inputSize, CvType.CV_32FC3, input);
+            rgb.convertTo(inputMat, CvType.CV_32FC3, 1.0 / IMAGE_STD, -IMAGE_MEAN / IMAGE_STD);
+            inputMat.release();
+            return new Result(index, input);
+        } finally {
+            bitmap.recycle();
+        }
+    }
+
+    // decodes once, subsampled by a power of two so the longer side is at most MAX_SIDE
+    private Bitmap decode(Uri uri) throws IOException {
+        BitmapFactory.Options options = new BitmapFactory.Options();
+        options.inJustDecodeBounds = true;
+        InputStream in = resolver.openInputStream(uri);
+        if (in == null) {
+            return null;
+        }
+        try {
+            BitmapFactory.decodeStream(in, null, options);
+        } finally {
+            in.close();
+        }
+        if (options.outWidth <= 0 || options.outHeight <= 0) {
+            return null;
+        }
+        int sampleSize = 1;
+        while (Math.max(options.outWidth, options.outHeight) / sampleSize > MAX_SIDE) {
+            sampleSize *= 2;
+        }
+        options.inJustDecodeBounds = false;
+        options.inSampleSize = sampleSize;
+        options.inPreferredConfig = Bitmap.Config.ARGB_8888;
+        in = resolver.openInputStream(uri);
+        if (in == null) {
+            return null;
+        }
+        try {
+            return BitmapFactory.decodeStream(in, null, options);
+        } finally {
+            in.close();
+        }
+    }
+
+    private static Rect largest(List<Face> faces) {
+        Rect best = null;
+        for (Face face : faces) {
+            Rect box = face.getBoundingBox();
+            if (best == null || box.width() * box.height() > best.width() * best.height()) {
+                best = box;
+            }
+        }
+        return best;
+    }
+
+    private void addNormalised(float[] embedding, float[][] sums, int person) {
+        float norm = 0;
+        for (int i = 0; i < outputSize; i++) {
+            norm += embedding[i] * embedding[i];
+        }
+        final float scale = norm > 0 ? (float) (1.0 / Math.sqrt(norm)) : 0f;
+        if (sums[person] == null) {
+            sums[person] = new float[outputSize];
+        }
+        for (int i = 0; i < outputSize; i++) {
+            sums[person][i] += embedding[i] * scale;
+        }
+    }
+
+    private static void countFailure(Report report, Image image, Result result) {
+        final String reason;
+        switch (result.failure) {
+            case UNREADABLE:
+                report.decodeFailures++;
+                reason = "unreadable";
+                break;
+            case NO_FACE:
+                report.noFace++;
+                reason = "no face";
+                break;
+            default:
+                report.errors++;
+                reason = "error: " + result.error;
+                break;
+        }
+        if (report.failed.size() < MAX_FAILED_LISTED) {
+            report.failed.add(image.person + "/" + image.uri.getLastPathSegment() + ": " + reason);
+        }
+    }
+}
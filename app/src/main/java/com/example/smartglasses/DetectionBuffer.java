@@ -0,0 +1,122 @@
+package com.example.smartglasses;
+
+import android.graphics.RectF;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Reusable struct-of-arrays storage for detections (box corners, score and class id).
+ *
+ * Decode, NMS and drawing all work on these primitive arrays, so no object is created per
+ * detection. The arrays only grow, so a buffer that is reused across frames stops allocating
+ * once it has seen the largest frame. Use {@link #toRecognition} when a caller needs objects.
+ */
+public class DetectionBuffer {
+
+    float[] left;
+    float[] top;
+    float[] right;
+    float[] bottom;
+    float[] score;
+    int[] classId;
+    private int size;
+
+    public DetectionBuffer(int initialCapacity) {
+        int capacity = Math.max(1, initialCapacity);
+        left = new float[capacity];
+        top = new float[capacity];
+        right = new float[capacity];
+        bottom = new float[capacity];
+        score = new float[capacity];
+        classId = new int[capacity];
+    }
+
+    public int size() {
+        return size;
+    }
+
+    public void clear() {
+        size = 0;
+    }
+
+    public int add(float left, float top, float right, float bottom, float score, int classId) {
+        if (size == this.left.length) {
+            grow(size * 2);
+        }
+        this.left[size] = left;
+        this.top[size] = top;
+        this.right[size] = right;
+        this.bottom[size] = bottom;
+        this.score[size] = score;
+        this.classId[size] = classId;
+        return size++;
+    }
+
+    public void set(int i, float left, float top, float right, float bottom) {
+        this.left[i] = left;
+        this.top[i] = top;
+        this.right[i] = right;
+        this.bottom[i] = bottom;
+    }
+
+    public void copyFrom(DetectionBuffer other) {
+        if (left.length < other.size) {
+            grow(other.size);
+        }
+        System.arraycopy(other.left, 0, left, 0, other.size);
+        System.arraycopy(other.top, 0, top, 0, other.size);
+        System.arraycopy(other.right, 0, right, 0, other.size);
+        System.arraycopy(other.bottom, 0, bottom, 0, other.size);
+        System.arraycopy(other.score, 0, score, 0, other.size);
+        System.arraycopy(other.classId, 0, classId, 0, other.size);
+        size = other.size;
+    }
+
+    public float getLeft(int i) {
+        return left[i];
+    }
+
+    public float getTop(int i) {
+        return top[i];
+    }
+
+    public float getRight(int i) {
+        return right[i];
+    }
+
+    public float getBottom(int i) {
+        return bottom[i];
+    }
+
+    public float getScore(int i) {
+        return score[i];
+    }
+
+    public int getClassId(int i) {
+        return classId[i];
+    }
+
+    public Recognition toRecognition(int i, List<String> labels) {
+        return new Recognition(String.valueOf(i), labels.get(classId[i]), score[i],
+                new RectF(left[i], top[i], right[i], bottom[i]), classId[i]);
+    }
+
+    public List<Recognition> toRecognitions(List<String> labels) {
+        List<Recognition> recognitions = new ArrayList<>(size);
+        for (int i = 0; i < size; i++) {
+            recognitions.add(toRecognition(i, labels));
+        }
+        return recognitions;
+    }
+
+    private void grow(int capacity) {
+        left = Arrays.copyOf(left, capacity);
+        top = Arrays.copyOf(top, capacity);
+        right = Arrays.copyOf(right, capacity);
+        bottom = Arrays.copyOf(bottom, capacity);
+        score = Arrays.copyOf(score, capacity);
+        classId = Arrays.copyOf(classId, capacity);
+    }
+}
@@ -0,0 +1,163 @@
+package com.example.smartglasses;
+
+import android.content.res.AssetManager;
+
+import org.opencv.core.Core;
+import org.opencv.core.CvType;
+import org.opencv.core.Mat;
+import org.opencv.core.MatOfByte;
+import org.opencv.core.Scalar;
+import org.opencv.core.Size;
+import org.opencv.dnn.Dnn;
+import org.opencv.dnn.Net;
+import org.opencv.imgproc.Imgproc;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Arrays;
+
+/**
+ * OpenCV DNN face detection with the ResNet-10 SSD Caffe model (300x300 input).
+ *
+ * The RGBA frame is shrunk to the network input before the conversion to BGR, so only 300x300
+ * pixels are converted, and the mean-subtracted channels are written straight into a reused
+ * input blob instead of a new one from Dnn.blobFromImage per frame. Must be created after OpenCV
+ * is loaded.
+ */
+public class DnnFaceBackend implements FaceDetectorBackend {
+
+    static final String PROTOTXT = "deploy.prototxt";
+    static final String CAFFE_MODEL = "res10_300x300_ssd_iter_140000.caffemodel";
+
+    private static final int INPUT_SIZE = 300;
+    // each detection row is image id, class, confidence, x1, y1, x2, y2 (relative)
+    private static final int DETECTION_FIELDS = 7;
+
+    private Net net;
+    private float confThresh = 0.5f;
+
+    private final Size inputSize = new Size(INPUT_SIZE, INPUT_SIZE);
+    private final Scalar mean = new Scalar(104.0, 177.0, 123.0);
+    private final Mat small = new Mat();
+    private final Mat bgr = new Mat();
+    private final Mat bgrFloat = new Mat();
+    // NCHW blob of one image, planes are views of its three channel planes
+    private final Mat blob = new Mat(new int[]{1, 3, INPUT_SIZE, INPUT_SIZE}, CvType.CV_32F);
+    private final Mat[] planes = new Mat[3];
+    private float[] detections = new float[0];
+    private int[] boxes = new int[0];
+
+    public DnnFaceBackend(Net net) {
+        this.net = net;
+        Mat planar = blob.reshape(1, 3 * INPUT_SIZE);
+        for (int c = 0; c < 3; c++) {
+            planes[c] = planar.rowRange(c * INPUT_SIZE, (c + 1) * INPUT_SIZE);
+        }
+        planar.release();
+    }
+
+    /** Loads the model from {@link #PROTOTXT} and {@link #CAFFE_MODEL} in the app assets. */
+    public static DnnFaceBackend fromAssets(AssetManager assets) throws IOException {
+        MatOfByte proto = new MatOfByte(readAsset(assets, PROTOTXT));
+        MatOfByte model = new MatOfByte(readAsset(assets, CAFFE_MODEL));
+        Net net = Dnn.readNetFromCaffe(proto, model);
+        proto.release();
+        model.release();
+        return new DnnFaceBackend(net);
+    }
+
+    public void setConfThresh(float confThresh) {
+        this.confThresh = confThresh;
+    }
+
+    @Override
+    public String getName() {
+        return "DNN SSD";
+    }
+
+    @Override
+    public int detect(Mat gray, Mat rgba) {
+        Imgproc.resize(rgba, small, inputSize, 0, 0, Imgproc.INTER_LINEAR);
+        Imgproc.cvtColor(small, bgr, Imgproc.COLOR_RGBA2BGR);
+        // what blobFromImage(bgr, 1.0, inputSize, mean) computes, into the reused blob
+        bgr.convertTo(bgrFloat, CvType.CV_32F);
+        Core.subtract(bgrFloat, mean, bgrFloat);
+        for (int c = 0; c < 3; c++) {
+            Core.extractChannel(bgrFloat, planes[c], c);
+        }
+        net.setInput(blob);
+        // a header over the net's own output blob, no data is copied
+        Mat output = net.forward();
+
+        final int rows = (int) (output.total() / DETECTION_FIELDS);
+        if (detections.length < rows * DETECTION_FIELDS) {
+            detections = new float[rows * DETECTION_FIELDS];
+        }
+        Mat flat = output.reshape(1, 1);
+        flat.get(0, 0, detections);
+        flat.release();
+        output.release();
+
+        final int width = rgba.cols();
+        final int height = rgba.rows();
+        int count = 0;
+        for (int i = 0; i < rows; i++) {
+            final int base = i * DETECTION_FIELDS;
+            if (detections[base + 2] < confThresh) {
+                continue;
+            }
+            final int left = clamp(Math.round(detections[base + 3] * width), width);
+            final int top = clamp(Math.round(detections[base + 4] * height), height);
+            final int right = clamp(Math.round(detections[base + 5] * width), width);
+            final int bottom = clamp(Math.round(detections[base + 6] * height), height);
+            if (right <= left || bottom <= top) {
+                continue;
+            }
+            if (boxes.length < (count + 1) * 4) {
+                boxes = Arrays.copyOf(boxes, (count + 1) * 8);
+            }
+            boxes[4 * count] = left;
+            boxes[4 * count + 1] = top;
+            boxes[4 * count + 2] = right - left;
+            boxes[4 * count + 3] = bottom - top;
+            count++;
+        }
+        return count;
+    }
+
+    @Override
+    public int[] getBoxes() {
+        return boxes;
+    }
+
+    @Override
+    public void release() {
+        small.release();
+        bgr.release();
+        bgrFloat.release();
+        for (Mat plane : planes) {
+            plane.release();
+        }
+        blob.release();
+        // the Java Net has no release(), dropping the last reference lets its finalizer free the
+        // layers and weights
+        net = null;
+    }
+
+    private static int clamp(int value, int max) {
+        return Math.max(0, Math.min(max, value));
+    }
+
+    private static byte[] readAsset(AssetManager assets, String name) throws IOException {
+        InputStream is = assets.open(name);
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        byte[] buffer = new byte[4096];
+        int bytesRead;
+        while ((bytesRead = is.read(buffer)) != -1) {
+            bytes.write(buffer, 0, bytesRead);
+        }
+        is.close();
+        return bytes.toByteArray();
+    }
+}
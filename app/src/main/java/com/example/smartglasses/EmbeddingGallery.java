@@ -0,0 +1,543 @@
+package com.example.smartglasses;
+
+import java.nio.FloatBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+import java.util.concurrent.RecursiveAction;
+
+/**
+ * Registered face embeddings, stored for fast nearest neighbour search.
+ *
+ * All embeddings are L2-normalised on insert and kept back to back in one float array, with the
+ * names in a parallel table, so similarity is a plain dot product over contiguous memory. A search
+ * keeps the k best entries in a primitive min-heap and stops scoring an entry as soon as an upper
+ * bound of its remaining dimensions shows it cannot enter the heap. Galleries larger than
+ * {@link #PARALLEL_THRESHOLD} are split over a shared fork/join pool, which also runs the searches
+ * for several faces side by side in {@link #searchAll}. Not thread-safe otherwise, searches on the
+ * calling thread reuse one set of query buffers.
+ *
+ * Searches are exact unless the index is switched on with {@link #setIndexed}: then galleries above
+ * {@link #INDEX_THRESHOLD} entries search through an {@link HnswIndex} instead, which is built by
+ * {@link #buildIndex} or on first use and then kept up to date by every put and remove. The index
+ * is approximate, its efSearch trades recall for speed; at 25k entries the default gives a
+ * recall@10 of 0.994 in about three quarters of the exact scan's time (HnswIndexTest).
+ */
+public class EmbeddingGallery {
+
+    static final int PARALLEL_THRESHOLD = 4096;
+    // well above the parallel scan, which is exact and fast enough below this
+    static final int INDEX_THRESHOLD = 20000;
+    static final int DEFAULT_EF_SEARCH = 512;
+    // smaller galleries search faster than tasks can be handed out
+    static final int SEARCH_ALL_THRESHOLD = 256;
+    // entries per fork/join leaf
+    private static final int CHUNK_SIZE = 1024;
+    // dimensions between two early-exit checks
+    private static final int BLOCK = 64;
+
+    private final int dim;
+    private final int blocks;
+
+    private float[] embeddings;
+    // norm of the dimensions after each block boundary, per entry
+    private float[] tailNorms;
+    private final List<String> names = new ArrayList<>();
+    private final HashMap<String, Integer> indexByName = new HashMap<>();
+    private int count = 0;
+
+    // ForkJoinPool.commonPool() needs API 24, so one pool is shared by all galleries
+    private static ForkJoinPool pool;
+
+    private boolean indexed = false;
+    private HnswIndex hnsw;
+    private int efSearch = DEFAULT_EF_SEARCH;
+    // entry index <-> graph node id, valid while hnsw is set
+    private int[] nodeOfEntry = new int[16];
+    private int[] entryOfNode = new int[16];
+    private int[] nodes = new int[0];
+
+    // query scratch of searches on the calling thread, searchAll tasks use their own
+    private final float[] scratchQuery;
+    private final float[] scratchTails;
+    private TopK scratchTop = new TopK(1);
+    private long prunedEntries = 0;
+
+    public EmbeddingGallery(int dim) {
+        this.dim = dim;
+        blocks = (dim + BLOCK - 1) / BLOCK;
+        embeddings = new float[16 * dim];
+        tailNorms = new float[16 * blocks];
+        scratchQuery = new float[dim];
+        scratchTails = new float[blocks];
+    }
+
+    /**
+     * Lets galleries above {@link #INDEX_THRESHOLD} entries trade exactness for speed through an
+     * approximate index. Off by default, so a registered face is never missed.
+     */
+    public void setIndexed(boolean indexed) {
+        this.indexed = indexed;
+        if (!indexed) {
+            hnsw = null;
+        }
+    }
+
+    // entries whose scoring stopped early, over the searches made outside searchAll
+    long getPrunedEntries() {
+        return prunedEntries;
+    }
+
+    /**
+     * Builds the index now if searches would use it, so the first search does not pay for it.
+     * Building takes seconds for large galleries, so this belongs on a background thread before
+     * the gallery is handed to the searching one.
+     */
+    public void buildIndex() {
+        if (indexed && count > INDEX_THRESHOLD) {
+            ensureIndex();
+        }
+    }
+
+    // whether searches currently go through the graph
+    boolean hasIndex() {
+        return hnsw != null;
+    }
+
+    /** Beam width of indexed searches, see {@link HnswIndex#setEfSearch}. */
+    public void setEfSearch(int efSearch) {
+        this.efSearch = efSearch;
+        if (hnsw != null) {
+            hnsw.setEfSearch(efSearch);
+        }
+    }
+
+    public int getDim() {
+        return dim;
+    }
+
+    public int size() {
+        return count;
+    }
+
+    public String getName(int index) {
+        return names.get(index);
+    }
+
+    /** Index of the entry with this name, or -1. */
+    public int indexOf(String name) {
+        Integer index = indexByName.get(name);
+        return index != null ? index : -1;
+    }
+
+    /** Copies the normalised embedding of an entry into out. */
+    public float[] getEmbedding(int index, float[] out) {
+        System.arraycopy(embeddings, index * dim, out, 0, dim);
+        return out;
+    }
+
+    /**
+     * Adds an embedding under a name, replacing the one already registered under it.
+     *
+     * @return index of the entry
+     */
+    public int put(String name, float[] embedding) {
+        int index = indexOf(name);
+        final boolean replacing = index >= 0;
+        if (!replacing) {
+            if ((count + 1) * dim > embeddings.length) {
+                embeddings = Arrays.copyOf(embeddings, embeddings.length * 2);
+                tailNorms = Arrays.copyOf(tailNorms, tailNorms.length * 2);
+            }
+            index = count++;
+            names.add(name);
+            indexByName.put(name, index);
+        }
+
+        float norm = 0;
+        for (int i = 0; i < dim; i++) {
+            norm += embedding[i] * embedding[i];
+        }
+        final float scale = norm > 0 ? (float) (1.0 / Math.sqrt(norm)) : 0f;
+        final int base = index * dim;
+        for (int i = 0; i < dim; i++) {
+            embeddings[base + i] = embedding[i] * scale;
+        }
+        updateTailNorms(index);
+        if (hnsw != null) {
+            if (replacing) {
+                hnsw.delete(nodeOfEntry[index]);
+            }
+            addNode(index);
+        }
+        return index;
+    }
+
+    /**
+     * Fills an empty gallery in bulk with embeddings that are already normalised, e.g. saved from
+     * {@link #getEmbedding}, read straight from source.
+     */
+    public void load(List<String> loadNames, FloatBuffer source) {
+        if (count != 0) {
+            throw new IllegalStateException("gallery is not empty");
+        }
+        final int n = loadNames.size();
+        if (n * dim > embeddings.length) {
+            embeddings = new float[n * dim];
+            tailNorms = new float[n * blocks];
+        }
+        source.get(embeddings, 0, n * dim);
+        for (int i = 0; i < n; i++) {
+            final String name = loadNames.get(i);
+            names.add(name);
+            indexByName.put(name, i);
+            updateTailNorms(i);
+        }
+        count = n;
+        hnsw = null;
+    }
+
+    /** Removes an entry, the last entry takes its index. */
+    public boolean remove(String name) {
+        final int index = indexOf(name);
+        if (index < 0) {
+            return false;
+        }
+        final int last = count - 1;
+        indexByName.remove(name);
+        if (hnsw != null) {
+            hnsw.delete(nodeOfEntry[index]);
+        }
+        if (index != last) {
+            System.arraycopy(embeddings, last * dim, embeddings, index * dim, dim);
+            System.arraycopy(tailNorms, last * blocks, tailNorms, index * blocks, blocks);
+            final String moved = names.get(last);
+            names.set(index, moved);
+            indexByName.put(moved, index);
+            if (hnsw != null) {
+                nodeOfEntry[index] = nodeOfEntry[last];
+                entryOfNode[nodeOfEntry[index]] = index;
+            }
+        }
+        names.remove(last);
+        count--;
+        return true;
+    }
+
+    public void clear() {
+        names.clear();
+        indexByName.clear();
+        count = 0;
+        hnsw = null;
+    }
+
+    /**
+     * Finds the k entries most similar to the query.
+     *
+     * @param indicesOut receives the entry indices, most similar first
+     * @param scoresOut  receives their cosine similarity
+     * @return number of results, min(k, size())
+     */
+    public int search(float[] query, int k, int[] indicesOut, float[] scoresOut) {
+        k = Math.min(k, count);
+        if (k <= 0) {
+            return 0;
+        }
+        // inside searchAll several searches run at once and cannot share the scratch
+        final boolean concurrent = ForkJoinTask.inForkJoinPool();
+        final float[] q = concurrent ? new float[dim] : scratchQuery;
+        final float[] qTails = concurrent ? new float[blocks] : scratchTails;
+        normalise(query, q, qTails);
+
+        if (indexed && count > INDEX_THRESHOLD) {
+            return searchIndex(q, k, indicesOut, scoresOut);
+        }
+
+        TopK top;
+        if (concurrent) {
+            top = new TopK(k);
+        } else {
+            if (scratchTop.scores.length != k) {
+                scratchTop = new TopK(k);
+            }
+            top = scratchTop;
+        }
+        int pruned;
+        if (count > PARALLEL_THRESHOLD) {
+            SearchTask task = new SearchTask(q, qTails, 0, count, top);
+            // inside searchAll the task splits over the pool it already runs in
+            if (concurrent) {
+                task.invoke();
+            } else {
+                searchPool().invoke(task);
+            }
+            pruned = task.pruned;
+        } else {
+            pruned = scan(q, qTails, 0, count, top);
+        }
+        if (!concurrent) {
+            prunedEntries += pruned;
+        }
+        return top.drainSorted(indicesOut, scoresOut);
+    }
+
+    /**
+     * Runs the searches for queries [0, n) side by side on the shared pool, like n calls of
+     * {@link #search} with the results in row i of the output arrays. The gallery must not change
+     * meanwhile.
+     */
+    public void searchAll(final float[][] queries, int n, final int k, final int[][] indicesOut,
+                          final float[][] scoresOut, final int[] foundOut) {
+        if (n == 1 || count < SEARCH_ALL_THRESHOLD) {
+            for (int i = 0; i < n; i++) {
+                foundOut[i] = search(queries[i], k, indicesOut[i], scoresOut[i]);
+            }
+            return;
+        }
+        final RecursiveAction[] searches = new RecursiveAction[n];
+        for (int i = 0; i < n; i++) {
+            final int query = i;
+            searches[i] = new RecursiveAction() {
+                @Override
+                protected void compute() {
+                    foundOut[query] = search(queries[query], k, indicesOut[query], scoresOut[query]);
+                }
+            };
+        }
+        searchPool().invoke(new RecursiveAction() {
+            @Override
+            protected void compute() {
+                invokeAll(searches);
+            }
+        });
+    }
+
+    private static synchronized ForkJoinPool searchPool() {
+        if (pool == null) {
+            pool = new ForkJoinPool();
+        }
+        return pool;
+    }
+
+    /** Euclidean distance of two normalised embeddings with this cosine similarity. */
+    public static float toDistance(float similarity) {
+        return (float) Math.sqrt(Math.max(0f, 2f - 2f * similarity));
+    }
+
+    // approximate search through the graph, built here on first use and rebuilt once half of its
+    // nodes are deleted
+    private synchronized int searchIndex(float[] q, int k, int[] indicesOut, float[] scoresOut) {
+        ensureIndex();
+        if (nodes.length < k) {
+            nodes = new int[k];
+        }
+        final int found = hnsw.search(q, k, nodes, scoresOut);
+        for (int i = 0; i < found; i++) {
+            indicesOut[i] = entryOfNode[nodes[i]];
+        }
+        return found;
+    }
+
+    // (re)builds the graph when there is none or more than half of its nodes are deleted
+    private synchronized void ensureIndex() {
+        if (hnsw == null || hnsw.getDeletedCount() > hnsw.size() / 2) {
+            hnsw = new HnswIndex(dim);
+            hnsw.setEfSearch(efSearch);
+            for (int entry = 0; entry < count; entry++) {
+                addNode(entry);
+            }
+        }
+    }
+
+    private void addNode(int entry) {
+        final int node = hnsw.insert(embeddings, entry * dim);
+        if (nodeOfEntry.length <= entry) {
+            nodeOfEntry = Arrays.copyOf(nodeOfEntry, Math.max(entry + 1, nodeOfEntry.length * 2));
+        }
+        if (entryOfNode.length <= node) {
+            entryOfNode = Arrays.copyOf(entryOfNode, Math.max(node + 1, entryOfNode.length * 2));
+        }
+        nodeOfEntry[entry] = node;
+        entryOfNode[node] = entry;
+    }
+
+    // scores entries [from, to) into top, returns how many were cut short by the bound
+    private int scan(float[] q, float[] qTails, int from, int to, TopK top) {
+        final float[] e = embeddings;
+        int prunedCount = 0;
+        for (int entry = from; entry < to; entry++) {
+            final int base = entry * dim;
+            float dot = 0;
+            int d = 0;
+            boolean pruned = false;
+            for (int b = 0; b < blocks; b++) {
+                final int end = Math.min(dim, d + BLOCK);
+                for (; d < end; d++) {
+                    dot += q[d] * e[base + d];
+                }
+                // Cauchy-Schwarz bound of what the remaining dimensions can still add
+                if (top.isFull() && d < dim
+                        && dot + qTails[b] * tailNorms[entry * blocks + b] <= top.minScore()) {
+                    pruned = true;
+                    break;
+                }
+            }
+            if (!pruned) {
+                top.offer(entry, dot);
+            } else {
+                prunedCount++;
+            }
+        }
+        return prunedCount;
+    }
+
+    private void normalise(float[] query, float[] q, float[] qTails) {
+        float norm = 0;
+        for (int i = 0; i < dim; i++) {
+            norm += query[i] * query[i];
+        }
+        final float scale = norm > 0 ? (float) (1.0 / Math.sqrt(norm)) : 0f;
+        for (int i = 0; i < dim; i++) {
+            q[i] = query[i] * scale;
+        }
+        tailNorms(q, 0, qTails, 0);
+    }
+
+    private void updateTailNorms(int index) {
+        tailNorms(embeddings, index * dim, tailNorms, index * blocks);
+    }
+
+    // norm of v[(b + 1) * BLOCK, dim) for every block b
+    private void tailNorms(float[] v, int base, float[] out, int outBase) {
+        float tail = 0;
+        for (int b = blocks - 1; b >= 0; b--) {
+            out[outBase + b] = (float) Math.sqrt(tail);
+            final int start = b * BLOCK;
+            final int end = Math.min(dim, start + BLOCK);
+            for (int i = start; i < end; i++) {
+                tail += v[base + i] * v[base + i];
+            }
+        }
+    }
+
+    /** Fixed-size min-heap of (score, index) pairs in primitive arrays. */
+    static final class TopK {
+        final int[] indices;
+        final float[] scores;
+        int size = 0;
+
+        TopK(int k) {
+            indices = new int[k];
+            scores = new float[k];
+        }
+
+        boolean isFull() {
+            return size == scores.length;
+        }
+
+        float minScore() {
+            return scores[0];
+        }
+
+        void offer(int index, float score) {
+            if (size < scores.length) {
+                int i = size++;
+                // sift up
+                while (i > 0) {
+                    final int parent = (i - 1) >> 1;
+                    if (scores[parent] <= score) {
+                        break;
+                    }
+                    scores[i] = scores[parent];
+                    indices[i] = indices[parent];
+                    i = parent;
+                }
+                scores[i] = score;
+                indices[i] = index;
+            } else if (score > scores[0]) {
+                siftDown(index, score);
+            }
+        }
+
+        void merge(TopK other) {
+            for (int i = 0; i < other.size; i++) {
+                offer(other.indices[i], other.scores[i]);
+            }
+        }
+
+        // writes the heap best first and empties it
+        int drainSorted(int[] indicesOut, float[] scoresOut) {
+            final int n = size;
+            for (int i = n - 1; i >= 0; i--) {
+                indicesOut[i] = indices[0];
+                scoresOut[i] = scores[0];
+                size--;
+                if (size > 0) {
+                    siftDown(indices[size], scores[size]);
+                }
+            }
+            return n;
+        }
+
+        // replaces the root and restores the heap
+        private void siftDown(int index, float score) {
+            int i = 0;
+            while (true) {
+                int child = 2 * i + 1;
+                if (child >= size) {
+                    break;
+                }
+                if (child + 1 < size && scores[child + 1] < scores[child]) {
+                    child++;
+                }
+                if (score <= scores[child]) {
+                    break;
+                }
+                scores[i] = scores[child];
+                indices[i] = indices[child];
+                i = child;
+            }
+            scores[i] = score;
+            indices[i] = index;
+        }
+    }
+
+    /** Splits a range of entries until it is one chunk, then scans it into its own heap. */
+    private final class SearchTask extends RecursiveAction {
+        private static final long serialVersionUID = 1L;
+
+        private final float[] q;
+        private final float[] qTails;
+        private final int from;
+        private final int to;
+        private final TopK top;
+        int pruned;
+
+        SearchTask(float[] q, float[] qTails, int from, int to, TopK top) {
+            this.q = q;
+            this.qTails = qTails;
+            this.from = from;
+            this.to = to;
+            this.top = top;
+        }
+
+        @Override
+        protected void compute() {
+            if (to - from <= CHUNK_SIZE) {
+                pruned = scan(q, qTails, from, to, top);
+                return;
+            }
+            final int mid = (from + to) >>> 1;
+            SearchTask right = new SearchTask(q, qTails, mid, to, new TopK(top.scores.length));
+            right.fork();
+            SearchTask left = new SearchTask(q, qTails, from, mid, top);
+            left.compute();
+            right.join();
+            top.merge(right.top);
+            pruned = left.pruned + right.pruned;
+        }
+    }
+}
@@ -0,0 +1,38 @@
+package com.example.smartglasses;
+
+/**
+ * A lossy fixed-size byte code for L2-normalised embeddings, see {@link QuantizedGallery}.
+ *
+ * Searches are asymmetric: the query stays in floats and is turned once into a lookup table, after
+ * which every stored code is scored from the table without decoding it. Scores approximate the
+ * cosine similarity between the query and the original embedding.
+ */
+public interface EmbeddingQuantizer {
+
+    String getName();
+
+    /** Bytes per encoded embedding. */
+    int getCodeSize();
+
+    boolean isTrained();
+
+    /** Fits the code to count embeddings stored back to back in vectors. */
+    void train(float[] vectors, int count);
+
+    void encode(float[] vector, int offset, byte[] codes, int codeOffset);
+
+    /** Approximate reconstruction of an encoded embedding. */
+    void decode(byte[] codes, int codeOffset, float[] out);
+
+    /** Length of the table {@link #buildTable} fills. */
+    int getTableSize();
+
+    /** Precomputes the per-query table for a normalised query. */
+    void buildTable(float[] query, float[] table);
+
+    /** Approximate cosine similarity of the table's query and one code. */
+    float score(float[] table, byte[] codes, int codeOffset);
+
+    /** Scores the first count codes, stored back to back, into scoresOut. */
+    void scoreAll(float[] table, byte[] codes, int count, float[] scoresOut);
+}
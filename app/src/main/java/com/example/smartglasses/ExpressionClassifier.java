@@ -0,0 +1,177 @@
+package com.example.smartglasses;
+
+import android.content.Context;
+import android.content.res.AssetFileDescriptor;
+
+import org.opencv.core.CvType;
+import org.opencv.core.Mat;
+import org.opencv.core.Rect;
+import org.opencv.core.Size;
+import org.opencv.imgproc.Imgproc;
+import org.tensorflow.lite.Interpreter;
+
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.FloatBuffer;
+import java.nio.channels.FileChannel;
+
+/**
+ * Long-lived facial expression classifier.
+ *
+ * The model is loaded once and all faces of a frame are classified in a single batched
+ * inference (batch size = number of faces, capped at maxFaces). Input and output buffers for
+ * every batch size are created up front, so classifying a frame allocates nothing.
+ */
+public class ExpressionClassifier {
+
+    // the expression model bundled through ML model binding (app/src/main/ml)
+    static final String MODEL_FILE = "ExpressionModel.tflite";
+
+    static final int IMAGE_SIZE = 48;
+    static final int CHANNELS = 3;
+    static final int NUM_CLASSES = 7;
+
+    private static final int FACE_FLOATS = IMAGE_SIZE * IMAGE_SIZE * CHANNELS;
+
+    private final Interpreter interpreter;
+    private final int maxFaces;
+
+    private final ByteBuffer inputData;
+    private final ByteBuffer outputData;
+    private final FloatBuffer outputFloats;
+
+    // views of the buffers sized exactly for a batch of n faces, indexed by n
+    private final ByteBuffer[] inputBatches;
+    private final ByteBuffer[] outputBatches;
+    private final int[][] inputShapes;
+    private int currentBatch = -1;
+
+    // the model takes raw 0-255 grey values on three channels
+    private static final double PIXEL_SCALE = 1.0;
+
+    // preprocessing state, faceMats wrap the batch slots of inputData
+    private final Size faceSize = new Size(IMAGE_SIZE, IMAGE_SIZE);
+    private final Rect roi = new Rect();
+    private Mat resizedFace;
+    private Mat floatFace;
+    private Mat[] faceMats;
+
+    public ExpressionClassifier(Context context, int maxFaces) throws IOException {
+        this.maxFaces = maxFaces;
+
+        Interpreter.Options options = new Interpreter.Options();
+        options.setNumThreads(2);
+        interpreter = new Interpreter(loadModelFile(context, MODEL_FILE), options);
+
+        inputData = ByteBuffer.allocateDirect(maxFaces * FACE_FLOATS * 4);
+        inputData.order(ByteOrder.nativeOrder());
+        outputData = ByteBuffer.allocateDirect(maxFaces * NUM_CLASSES * 4);
+        outputData.order(ByteOrder.nativeOrder());
+        outputFloats = outputData.asFloatBuffer();
+
+        inputBatches = new ByteBuffer[maxFaces + 1];
+        outputBatches = new ByteBuffer[maxFaces + 1];
+        inputShapes = new int[maxFaces + 1][];
+        for (int n = 1; n <= maxFaces; n++) {
+            inputBatches[n] = view(inputData, 0, n * FACE_FLOATS * 4);
+            outputBatches[n] = view(outputData, 0, n * NUM_CLASSES * 4);
+            inputShapes[n] = new int[]{n, IMAGE_SIZE, IMAGE_SIZE, CHANNELS};
+        }
+    }
+
+    public int getMaxFaces() {
+        return maxFaces;
+    }
+
+    /**
+     * Writes the face at (x, y, width, height) of a gray frame into batch slot faceIndex: the ROI
+     * is resized to 48x48 with area interpolation, which averages every source pixel of a large
+     * face instead of aliasing, and converted to floats replicated over the model's 3 channels
+     * directly in the input tensor memory.
+     */
+    public void setFace(int faceIndex, Mat gray, int x, int y, int width, int height) {
+        if (faceMats == null) {
+            // created lazily, the classifier may be built before OpenCV is loaded
+            resizedFace = new Mat();
+            floatFace = new Mat();
+            faceMats = new Mat[maxFaces];
+            for (int i = 0; i < maxFaces; i++) {
+                faceMats[i] = new Mat(IMAGE_SIZE, IMAGE_SIZE, CvType.CV_32FC3,
+                        view(inputData, i * FACE_FLOATS * 4, FACE_FLOATS * 4));
+            }
+        }
+
+        roi.x = x;
+        roi.y = y;
+        roi.width = width;
+        roi.height = height;
+        Mat face = gray.submat(roi);
+        Imgproc.resize(face, resizedFace, faceSize, 0, 0, Imgproc.INTER_AREA);
+        face.release();
+
+        resizedFace.convertTo(floatFace, CvType.CV_32F, PIXEL_SCALE);
+        Imgproc.cvtColor(floatFace, faceMats[faceIndex], Imgproc.COLOR_GRAY2RGB);
+    }
+
+    /**
+     * Classifies the first count faces set with {@link #setFace} in one inference and writes the
+     * best class and its score for every face into labelsOut and scoresOut.
+     */
+    public void classify(int count, int[] labelsOut, float[] scoresOut) {
+        if (count <= 0) {
+            return;
+        }
+        if (count > maxFaces) {
+            count = maxFaces;
+        }
+        if (count != currentBatch) {
+            interpreter.resizeInput(0, inputShapes[count]);
+            currentBatch = count;
+        }
+
+        ByteBuffer input = inputBatches[count];
+        ByteBuffer output = outputBatches[count];
+        input.rewind();
+        output.rewind();
+        interpreter.run(input, output);
+
+        for (int f = 0; f < count; f++) {
+            final int base = f * NUM_CLASSES;
+            int best = 0;
+            for (int c = 1; c < NUM_CLASSES; c++) {
+                if (outputFloats.get(base + c) > outputFloats.get(base + best)) best = c;
+            }
+            labelsOut[f] = best;
+            scoresOut[f] = outputFloats.get(base + best);
+        }
+    }
+
+    public void close() {
+        interpreter.close();
+        if (faceMats != null) {
+            for (Mat faceMat : faceMats) {
+                faceMat.release();
+            }
+            resizedFace.release();
+            floatFace.release();
+        }
+    }
+
+    private static ByteBuffer view(ByteBuffer buffer, int offset, int bytes) {
+        ByteBuffer duplicate = buffer.duplicate();
+        duplicate.limit(offset + bytes);
+        duplicate.position(offset);
+        return duplicate.slice().order(ByteOrder.nativeOrder());
+    }
+
+    private static ByteBuffer loadModelFile(Context context, String modelPath) throws IOException {
+        AssetFileDescriptor fileDescriptor = context.getAssets().openFd(modelPath);
+        FileInputStream inputStream = new FileInputStream(fileDescriptor.getFileDescriptor());
+        FileChannel fileChannel = inputStream.getChannel();
+        long startOffset = fileDescriptor.getStartOffset();
+        long declaredLength = fileDescriptor.getDeclaredLength();
+        return fileChannel.map(FileChannel.MapMode.READ_ONLY, startOffset, declaredLength);
+    }
+}
@@ -0,0 +1,86 @@
+package com.example.smartglasses;
+
+import org.opencv.core.Core;
+import org.opencv.core.CvType;
+import org.opencv.core.Mat;
+import org.opencv.core.Scalar;
+import org.opencv.core.Size;
+import org.opencv.imgproc.Imgproc;
+
+/**
+ * Samples the square embedding input for a face straight from the un-rotated camera frame.
+ *
+ * Cropping to the face box, rotating upright, mirroring for the front camera and scaling to the
+ * model input size are folded into one affine map from output pixels to frame pixels, applied with
+ * a single warpAffine into a reused Mat. Parts of the box outside the frame come out white.
+ */
+public class FaceAligner {
+
+    private final int size;
+    private final Size outputSize;
+    private final Scalar border = new Scalar(255, 255, 255, 255);
+    private final double[] m = new double[6];
+    private final Mat transform = new Mat(2, 3, CvType.CV_64F);
+    private final Mat face = new Mat();
+
+    public FaceAligner(int size) {
+        this.size = size;
+        outputSize = new Size(size, size);
+    }
+
+    /**
+     * Warps the face into a size x size Mat of the frame's type.
+     *
+     * @param frame           the frame or a region of it, in sensor orientation
+     * @param originX         position of frame's top left pixel in the full sensor frame
+     * @param originY         position of frame's top left pixel in the full sensor frame
+     * @param frameWidth      full sensor frame width
+     * @param frameHeight     full sensor frame height
+     * @param rotationDegrees rotation that makes the sensor frame upright
+     * @param box             face box in upright coordinates
+     * @return the face, valid until the next call
+     */
+    public Mat align(Mat frame, int originX, int originY, int frameWidth, int frameHeight,
+                     int rotationDegrees, android.graphics.Rect box, boolean flipX) {
+        // upright position of output pixel (u, v), pixel centres mapped onto each other:
+        // xu = a * u + b, yu = c * v + d
+        final double sx = (double) box.width() / size;
+        final double sy = (double) box.height() / size;
+        final double a = flipX ? -sx : sx;
+        final double b = box.left + (flipX ? sx * (size - 0.5) : sx * 0.5) - 0.5;
+        final double c = sy;
+        final double d = box.top + sy * 0.5 - 0.5;
+
+        // upright to sensor coordinates
+        if (rotationDegrees == 90) {
+            set(0, c, d, -a, 0, frameHeight - 1 - b);
+        } else if (rotationDegrees == 180) {
+            set(-a, 0, frameWidth - 1 - b, 0, -c, frameHeight - 1 - d);
+        } else if (rotationDegrees == 270) {
+            set(0, -c, frameWidth - 1 - d, a, 0, b);
+        } else {
+            set(a, 0, b, 0, c, d);
+        }
+        m[2] -= originX;
+        m[5] -= originY;
+        transform.put(0, 0, m);
+
+        Imgproc.warpAffine(frame, face, transform, outputSize,
+                Imgproc.INTER_LINEAR | Imgproc.WARP_INVERSE_MAP, Core.BORDER_CONSTANT, border);
+        return face;
+    }
+
+    private void set(double m00, double m01, double m02, double m10, double m11, double m12) {
+        m[0] = m00;
+        m[1] = m01;
+        m[2] = m02;
+        m[3] = m10;
+        m[4] = m11;
+        m[5] = m12;
+    }
+
+    public void release() {
+        transform.release();
+        face.release();
+    }
+}
@@ -0,0 +1,26 @@
+package com.example.smartglasses;
+
+import org.opencv.core.Mat;
+
+/**
+ * A face detector the face pipelines can swap, see {@link FaceDetectorBenchmark}.
+ *
+ * Backends get the camera frame both as gray (the luminance plane) and as RGBA and use whichever
+ * they need. Boxes are reported in frame pixels as x, y, width, height quadruples.
+ */
+public interface FaceDetectorBackend {
+
+    String getName();
+
+    /**
+     * Detects faces on a frame.
+     *
+     * @return number of faces, whose boxes are in {@link #getBoxes()}
+     */
+    int detect(Mat gray, Mat rgba);
+
+    /** Boxes of the last {@link #detect} call as x, y, width, height per face. */
+    int[] getBoxes();
+
+    void release();
+}
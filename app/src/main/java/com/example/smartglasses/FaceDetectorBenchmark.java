@@ -0,0 +1,173 @@
+package com.example.smartglasses;
+
+import android.os.SystemClock;
+import android.util.Log;
+
+import org.opencv.core.Mat;
+
+import java.util.List;
+
+/**
+ * Times {@link FaceDetectorBackend}s on recorded camera frames and picks the fastest one that
+ * finds enough of the faces.
+ *
+ * Recall is measured against reference boxes per frame, either annotations or the output of the
+ * most accurate backend (see {@link #referenceBoxes}). A reference face counts as found when a
+ * detection overlaps it by at least the match IoU, every detection matching at most one face.
+ */
+public class FaceDetectorBenchmark {
+
+    private static final String TAG = "FaceDetectorBenchmark";
+
+    private float recallTarget = 0.9f;
+    private float matchIou = 0.5f;
+    private int warmupFrames = 2;
+
+    /** Measurements of one backend. */
+    public static class Result {
+        public final FaceDetectorBackend backend;
+        /** Mean detection time per frame in milliseconds, warm-up frames excluded. */
+        public final float meanMs;
+        /** Fraction of the reference faces found. */
+        public final float recall;
+
+        Result(FaceDetectorBackend backend, float meanMs, float recall) {
+            this.backend = backend;
+            this.meanMs = meanMs;
+            this.recall = recall;
+        }
+
+        @Override
+        public String toString() {
+            return String.format("%s: %.1f ms, recall %.2f", backend.getName(), meanMs, recall);
+        }
+    }
+
+    public void setRecallTarget(float recallTarget) {
+        this.recallTarget = recallTarget;
+    }
+
+    public void setMatchIou(float matchIou) {
+        this.matchIou = matchIou;
+    }
+
+    /** Frames run before timing starts, so model loading and caches are not measured. */
+    public void setWarmupFrames(int warmupFrames) {
+        this.warmupFrames = warmupFrames;
+    }
+
+    /** Runs a backend on every frame and keeps a copy of its boxes as reference. */
+    public static int[][] referenceBoxes(FaceDetectorBackend reference, List<Mat> grays, List<Mat> rgbas) {
+        int[][] boxes = new int[grays.size()][];
+        for (int f = 0; f < boxes.length; f++) {
+            final int count = reference.detect(grays.get(f), rgbas.get(f));
+            boxes[f] = new int[count * 4];
+            System.arraycopy(reference.getBoxes(), 0, boxes[f], 0, count * 4);
+        }
+        return boxes;
+    }
+
+    /**
+     * Times every backend on the recorded frames and measures its recall against the reference
+     * boxes (x, y, width, height per face, one array per frame).
+     */
+    public Result[] run(List<FaceDetectorBackend> backends, List<Mat> grays, List<Mat> rgbas,
+                        int[][] reference) {
+        final int frames = grays.size();
+        int referenceFaces = 0;
+        for (int[] boxes : reference) {
+            referenceFaces += boxes.length / 4;
+        }
+        boolean[] matched = new boolean[0];
+
+        Result[] results = new Result[backends.size()];
+        for (int b = 0; b < results.length; b++) {
+            FaceDetectorBackend backend = backends.get(b);
+            for (int f = 0; f < Math.min(warmupFrames, frames); f++) {
+                backend.detect(grays.get(f), rgbas.get(f));
+            }
+
+            long totalTime = 0;
+            int found = 0;
+            for (int f = 0; f < frames; f++) {
+                final long start = SystemClock.elapsedRealtimeNanos();
+                final int count = backend.detect(grays.get(f), rgbas.get(f));
+                totalTime += SystemClock.elapsedRealtimeNanos() - start;
+
+                if (matched.length < count) {
+                    matched = new boolean[count];
+                }
+                found += countFound(reference[f], backend.getBoxes(), count, matched);
+            }
+
+            final float meanMs = frames > 0 ? totalTime / 1e6f / frames : 0f;
+            final float recall = referenceFaces > 0 ? (float) found / referenceFaces : 1f;
+            results[b] = new Result(backend, meanMs, recall);
+            Log.i(TAG, results[b].toString());
+        }
+        return results;
+    }
+
+    /**
+     * The fastest result meeting the recall target, or the one with the best recall if none
+     * does.
+     */
+    public Result select(Result[] results) {
+        Result best = null;
+        for (Result result : results) {
+            if (result.recall >= recallTarget && (best == null || result.meanMs < best.meanMs)) {
+                best = result;
+            }
+        }
+        if (best != null) {
+            return best;
+        }
+        for (Result result : results) {
+            if (best == null || result.recall > best.recall
+                    || (result.recall == best.recall && result.meanMs < best.meanMs)) {
+                best = result;
+            }
+        }
+        return best;
+    }
+
+    // greedy matching of reference faces to detections by best IoU
+    private int countFound(int[] reference, int[] boxes, int count, boolean[] matched) {
+        for (int d = 0; d < count; d++) {
+            matched[d] = false;
+        }
+        int found = 0;
+        for (int r = 0; r < reference.length; r += 4) {
+            int bestDetection = -1;
+            float bestIou = matchIou;
+            for (int d = 0; d < count; d++) {
+                if (matched[d]) {
+                    continue;
+                }
+                final float iou = iou(reference, r, boxes, 4 * d);
+                if (iou >= bestIou) {
+                    bestIou = iou;
+                    bestDetection = d;
+                }
+            }
+            if (bestDetection >= 0) {
+                matched[bestDetection] = true;
+                found++;
+            }
+        }
+        return found;
+    }
+
+    private static float iou(int[] a, int i, int[] b, int j) {
+        final int left = Math.max(a[i], b[j]);
+        final int top = Math.max(a[i + 1], b[j + 1]);
+        final int right = Math.min(a[i] + a[i + 2], b[j] + b[j + 2]);
+        final int bottom = Math.min(a[i + 1] + a[i + 3], b[j + 1] + b[j + 3]);
+        if (right <= left || bottom <= top) {
+            return 0f;
+        }
+        final float intersection = (float) (right - left) * (bottom - top);
+        final float union = (float) a[i + 2] * a[i + 3] + (float) b[j + 2] * b[j + 3] - intersection;
+        return intersection / union;
+    }
+}
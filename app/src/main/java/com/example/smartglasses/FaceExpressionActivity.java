@@ -7,41 +7,28 @@ import androidx.core.content.ContextCompat;
 import android.Manifest;
 import android.content.Context;
 import android.content.pm.PackageManager;
-import android.graphics.Bitmap;
-import android.graphics.Canvas;
-import android.graphics.ColorMatrix;
-import android.graphics.ColorMatrixColorFilter;
-import android.graphics.Paint;
 import android.os.Bundle;
 import android.util.Log;
 
-import com.example.smartglasses.ml.ExpressionModel;
-
 import org.opencv.android.BaseLoaderCallback;
 import org.opencv.android.CameraBridgeViewBase;
 import org.opencv.android.JavaCameraView;
 import org.opencv.android.LoaderCallbackInterface;
 import org.opencv.android.OpenCVLoader;
-import org.opencv.android.Utils;
 import org.opencv.core.Core;
-import org.opencv.core.CvException;
 import org.opencv.core.Mat;
-import org.opencv.core.MatOfRect;
 import org.opencv.core.Point;
-import org.opencv.core.Rect;
 import org.opencv.core.Scalar;
 import org.opencv.imgproc.Imgproc;
 import org.opencv.objdetect.CascadeClassifier;
-import org.tensorflow.lite.DataType;
-import org.tensorflow.lite.support.image.TensorImage;
-import org.tensorflow.lite.support.tensorbuffer.TensorBuffer;
 
 import java.io.File;
 import java.io.FileNotFoundException;
 import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
-import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
 
 public class FaceExpressionActivity extends AppCompatActivity implements CameraBridgeViewBase.CvCameraViewListener2 {
 
@@ -51,10 +38,31 @@ public class FaceExpressionActivity extends AppCompatActivity implements CameraB
     int imageSize = 48;
 
     CascadeClassifier faceDetector;
+    // starts as the Haar cascade, replaced by the benchmark winner once it is known
+    FaceDetectorBackend faceBackend;
+    volatile FaceDetectorBackend pendingBackend;
+
+    // the first frames are recorded to time all face detector backends on this device
+    static final int BENCHMARK_FRAMES = 20;
+    static final int BENCHMARK_STRIDE = 3;
+    boolean benchmarkBackends = true;
+    final List<Mat> benchmarkGrays = new ArrayList<>();
+    final List<Mat> benchmarkRgbas = new ArrayList<>();
+    int recordedFrames = 0;
     private Mat mRgba, mGrey;
 
     String[] labels = {"Angry", "Disgust", "Fear", "Happy", "Sad", "Surprise", "Neutral"};
 
+    // one classifier for the lifetime of the activity, all faces of a frame go in one batch
+    static final int MAX_FACES = 8;
+    ExpressionClassifier expressionClassifier;
+    final int[] faceLabels = new int[MAX_FACES];
+    final float[] faceScores = new float[MAX_FACES];
+
+    private static final Scalar FACE_COLOR = new Scalar(255, 0, 0);
+    private final Point topLeft = new Point();
+    private final Point bottomRight = new Point();
+
     @Override
     protected void onCreate(Bundle savedInstanceState) {
         super.onCreate(savedInstanceState);
@@ -65,6 +73,13 @@ public class FaceExpressionActivity extends AppCompatActivity implements CameraB
 
         javaCameraView = (JavaCameraView) findViewById(R.id.javaCamView);
 
+        try {
+            expressionClassifier = new ExpressionClassifier(this, MAX_FACES);
+        } catch (IOException e) {
+            Log.d("FaceExpression", "Getting some error loading model");
+            e.printStackTrace();
+        }
+
         if(!OpenCVLoader.initDebug()){
             OpenCVLoader.initAsync(OpenCVLoader.OPENCV_VERSION_3_4_0, this, baseCallback);
         }else{
@@ -92,32 +107,119 @@ public class FaceExpressionActivity extends AppCompatActivity implements CameraB
         mGrey.release();
     }
 
+    @Override
+    protected void onDestroy() {
+        super.onDestroy();
+        if (faceBackend != null) {
+            faceBackend.release();
+        }
+        if (expressionClassifier != null) {
+            expressionClassifier.close();
+        }
+    }
+
     @Override
     public Mat onCameraFrame(CameraBridgeViewBase.CvCameraViewFrame inputFrame) {
         mRgba = inputFrame.rgba();
         mGrey = inputFrame.gray();
 
-        //Face Detection
-        MatOfRect faceDetections = new MatOfRect();
-        faceDetector.detectMultiScale(mRgba, faceDetections);
+        FaceDetectorBackend next = pendingBackend;
+        if (next != null) {
+            pendingBackend = null;
+            faceBackend.release();
+            faceBackend = next;
+        }
 
-        for(Rect rect: faceDetections.toArray()){
-            Rect roi = new Rect(rect.x, rect.y, rect.width, rect.height);
-            Mat cropped = new Mat(mRgba, roi);
-            Bitmap face = convertMatToBitMap(cropped);
+        //Face Detection
+        if (faceBackend == null) {
+            return mRgba;
+        }
+        if (benchmarkBackends) {
+            recordBenchmarkFrame();
+        }
+        int faceCount = Math.min(faceBackend.detect(mGrey, mRgba), MAX_FACES);
+        int[] faces = faceBackend.getBoxes();
+        if (expressionClassifier != null && faceCount > 0) {
+            for(int i = 0; i < faceCount; i++){
+                expressionClassifier.setFace(i, mGrey, faces[4 * i], faces[4 * i + 1], faces[4 * i + 2], faces[4 * i + 3]);
+            }
+            expressionClassifier.classify(faceCount, faceLabels, faceScores);
+        }
 
-            String faceExp = getFaceExp(face);
+        for(int i = 0; i < faceCount; i++){
+            String faceExp = expressionClassifier != null ? labels[faceLabels[i]] : "NULL";
 
-            Imgproc.rectangle(mRgba, new Point(rect.x, rect.y),
-                    new Point(rect.x + rect.width, rect.y + rect.height),
-                    new Scalar(255,0,0), 3);
-            Imgproc.putText(mRgba, faceExp, new Point(rect.x, rect.y), Core.FONT_HERSHEY_SIMPLEX,
-                    1, new Scalar(255,0,0),3);
+            topLeft.x = faces[4 * i];
+            topLeft.y = faces[4 * i + 1];
+            bottomRight.x = topLeft.x + faces[4 * i + 2];
+            bottomRight.y = topLeft.y + faces[4 * i + 3];
+            Imgproc.rectangle(mRgba, topLeft, bottomRight, FACE_COLOR, 3);
+            Imgproc.putText(mRgba, faceExp, topLeft, Core.FONT_HERSHEY_SIMPLEX,
+                    1, FACE_COLOR, 3);
         }
 
         return mRgba;
     }
 
+    private void recordBenchmarkFrame() {
+        if (recordedFrames++ % BENCHMARK_STRIDE != 0) {
+            return;
+        }
+        benchmarkGrays.add(mGrey.clone());
+        benchmarkRgbas.add(mRgba.clone());
+        if (benchmarkGrays.size() == BENCHMARK_FRAMES) {
+            benchmarkBackends = false;
+            new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    selectFaceBackend();
+                }
+            }, "FaceBackendBenchmark").start();
+        }
+    }
+
+    // times every backend on the recorded frames, recall is measured against ML Kit accurate, which
+    // is therefore not a candidate itself
+    private void selectFaceBackend() {
+        List<FaceDetectorBackend> candidates = new ArrayList<>();
+        int workers = ParallelHaarFaceDetector.defaultWorkerCount();
+        candidates.add(workers > 1
+                ? new ParallelHaarFaceDetector(cascFile.getAbsolutePath(), workers)
+                : new HaarFaceDetector(new CascadeClassifier(cascFile.getAbsolutePath())));
+        candidates.add(new MlKitFaceBackend(false));
+        MlKitFaceBackend reference = new MlKitFaceBackend(true);
+        try {
+            candidates.add(DnnFaceBackend.fromAssets(getAssets()));
+        } catch (IOException e) {
+            Log.d("FaceExpression", "DNN face model is not bundled, skipping it");
+        }
+
+        FaceDetectorBenchmark benchmark = new FaceDetectorBenchmark();
+        int[][] referenceBoxes = FaceDetectorBenchmark.referenceBoxes(reference, benchmarkGrays, benchmarkRgbas);
+        reference.release();
+        FaceDetectorBenchmark.Result best = benchmark.select(
+                benchmark.run(candidates, benchmarkGrays, benchmarkRgbas, referenceBoxes));
+        Log.i("FaceExpression", "Using face detector " + best);
+
+        for (FaceDetectorBackend candidate : candidates) {
+            if (candidate != best.backend) {
+                candidate.release();
+            }
+        }
+        for (int i = 0; i < benchmarkGrays.size(); i++) {
+            benchmarkGrays.get(i).release();
+            benchmarkRgbas.get(i).release();
+        }
+        benchmarkGrays.clear();
+        benchmarkRgbas.clear();
+
+        if (isDestroyed()) {
+            best.backend.release();
+        } else {
+            pendingBackend = best.backend;
+        }
+    }
+
     private BaseLoaderCallback baseCallback = new BaseLoaderCallback(this) {
         @Override
         public void onManagerConnected(int status) throws IOException {
@@ -143,6 +245,11 @@ public class FaceExpressionActivity extends AppCompatActivity implements CameraB
                     if(faceDetector.empty()){
                         faceDetector = null;
                     }else{
+                        // one classifier per core spread over the pyramid scales
+                        int workers = ParallelHaarFaceDetector.defaultWorkerCount();
+                        faceBackend = workers > 1
+                                ? new ParallelHaarFaceDetector(cascFile.getAbsolutePath(), workers)
+                                : new HaarFaceDetector(faceDetector);
                         cascadeDir.delete();
                     }
                     javaCameraView.enableView();
@@ -157,81 +264,4 @@ public class FaceExpressionActivity extends AppCompatActivity implements CameraB
             }
         }
     };
-
-    public String getFaceExp(Bitmap img){
-        String exp = "NULL";
-        Bitmap greyFace = toGrayScale(img);
-
-        try {
-            ExpressionModel model = ExpressionModel.newInstance(this);
-
-            // Creates inputs for reference.
-            TensorBuffer inputFeature0 = TensorBuffer.createFixedSize(new int[]{1, 48, 48, 3}, DataType.FLOAT32);
-
-            Bitmap input=Bitmap.createScaledBitmap(greyFace,48,48,true);
-            TensorImage image=new TensorImage(DataType.FLOAT32);
-            image.load(input);
-            ByteBuffer byteBuffer = image.getBuffer();
-            Log.d("shape", "byte buffer shape: " + byteBuffer.toString());
-            Log.d("shape", "input feature shape: " + inputFeature0.getBuffer().toString());
-
-//            inputFeature0.loadBuffer(TensorImage.fromBitmap(input).getBuffer());
-
-            inputFeature0.loadBuffer(byteBuffer);
-
-            // Runs model inference and gets result.
-            ExpressionModel.Outputs outputs = model.process(inputFeature0);
-            TensorBuffer outputFeature0 = outputs.getOutputFeature0AsTensorBuffer();
-
-            exp = labels[getMax(outputFeature0.getFloatArray())]+"";
-
-            // Releases model resources if no longer used.
-            model.close();
-        } catch (IOException e) {
-            // TODO Handle the exception
-        }
-
-        return exp;
-    }
-
-    int getMax(float[] arr){
-        int max = 0;
-        for(int i = 0; i < arr.length; i++){
-            if(arr[i] > arr[max]) max = i;
-        }
-        return max;
-    }
-
-    public static Bitmap toGrayScale(Bitmap bmpOriginal) {
-
-        int width, height;
-        height = bmpOriginal.getHeight();
-        width = bmpOriginal.getWidth();
-
-        Bitmap bmpGrayscale = Bitmap.createBitmap(width, height, Bitmap.Config.ARGB_8888);
-        Canvas c = new Canvas(bmpGrayscale);
-        Paint paint = new Paint();
-        ColorMatrix cm = new ColorMatrix();
-        cm.setSaturation(0);
-        ColorMatrixColorFilter f = new ColorMatrixColorFilter(cm);
-        paint.setColorFilter(f);
-        c.drawBitmap(bmpOriginal, 0, 0, paint);
-        bmpOriginal.recycle();
-        return bmpGrayscale;
-    }
-
-    private static Bitmap convertMatToBitMap(Mat input){
-        Bitmap bmp = null;
-        Mat rgb = new Mat();
-        Imgproc.cvtColor(input, rgb, Imgproc.COLOR_BGR2RGB);
-
-        try {
-            bmp = Bitmap.createBitmap(rgb.cols(), rgb.rows(), Bitmap.Config.ARGB_8888);
-            Utils.matToBitmap(rgb, bmp);
-        }
-        catch (CvException e){
-            Log.d("Exception",e.getMessage());
-        }
-        return bmp;
-    }
 }
\ No newline at end of file
@@ -11,14 +11,7 @@ import android.content.pm.PackageManager;
 import android.content.res.AssetFileDescriptor;
 import android.graphics.Bitmap;
 import android.graphics.BitmapFactory;
-import android.graphics.Canvas;
-import android.graphics.Color;
-import android.graphics.ImageFormat;
-import android.graphics.Matrix;
-import android.graphics.Paint;
 import android.graphics.Rect;
-import android.graphics.RectF;
-import android.graphics.YuvImage;
 import android.media.Image;
 import android.net.Uri;
 import android.os.Build;
@@ -41,8 +34,6 @@ import com.google.android.gms.tasks.Task;
 import com.google.common.util.concurrent.ListenableFuture;
 
 
-import com.google.gson.Gson;
-import com.google.gson.reflect.TypeToken;
 import com.google.mlkit.vision.common.InputImage;
 import com.google.mlkit.vision.face.Face;
 import com.google.mlkit.vision.face.FaceDetection;
@@ -56,7 +47,7 @@ import androidx.lifecycle.LifecycleOwner;
 
 import android.os.ParcelFileDescriptor;
 import android.text.InputType;
-import android.util.Pair;
+import android.util.Log;
 import android.util.Size;
 import android.view.View;
 
@@ -67,21 +58,20 @@ import android.widget.ImageView;
 import android.widget.TextView;
 import android.widget.Toast;
 
+import org.opencv.android.OpenCVLoader;
+import org.opencv.android.Utils;
+import org.opencv.core.Mat;
 import org.tensorflow.lite.Interpreter;
 
-import java.io.ByteArrayOutputStream;
 import java.io.FileDescriptor;
 import java.io.FileInputStream;
 import java.io.IOException;
-import java.nio.ByteBuffer;
-import java.nio.ByteOrder;
+import java.io.StringReader;
 import java.nio.MappedByteBuffer;
-import java.nio.ReadOnlyBufferException;
 import java.nio.channels.FileChannel;
-import java.util.ArrayList;
-import java.util.HashMap;
+import java.util.Arrays;
+import java.util.Comparator;
 import java.util.List;
-import java.util.Map;
 import java.util.concurrent.ExecutionException;
 import java.util.concurrent.Executor;
 import java.util.concurrent.Executors;
@@ -98,34 +88,52 @@ public class FaceIdActivity extends AppCompatActivity {
     CameraSelector cameraSelector;
     boolean developerMode=false;
     float distance= 1.0f;
-    boolean start=true,flipX=false;
+    boolean start=true,flipX=false,addMode=false;
     Context context=FaceIdActivity.this;
     int cam_face=CameraSelector.LENS_FACING_BACK; //Default Back Camera
-    int[] intValues;
     int inputSize=112;  //Input size for model
     boolean isModelQuantized=false;
-    float[][] embeedings;
+    float[][] embeedings; //last face that passed the quality gate in add mode, null until there is one
+    int addTrackId = -1; //track embeedings belongs to, a new face clears it
     float IMAGE_MEAN = 128.0f;
     float IMAGE_STD = 128.0f;
     int OUTPUT_SIZE=192; //Output size of model
     private static int SELECT_PICTURE = 1;
+    private static final int IMPORT_FOLDER = 2;
     ProcessCameraProvider cameraProvider;
     private static final int MY_CAMERA_REQUEST_CODE = 100;
     String modelFile="mobile_face_net.tflite"; //model name
 
-    private HashMap<String, SimilarityClassifier.Recognition> registered = new HashMap<>(); //saved Faces
+    EmbeddingGallery gallery = new EmbeddingGallery(OUTPUT_SIZE); //saved Faces, normalised for search
+    GalleryStore galleryStore; //saved Faces on disk, set once loaded and left null if it could not be opened
+    boolean galleryLoaded = false;
+    FaceTracker faceTracker = new FaceTracker(); //reuses a face's identity across frames
+    final int[] nearestIndices = new int[2];
+    final float[] nearestScores = new float[2];
+    YuvRoiConverter yuvConverter; //camera frame to RGBA, face region only
+    FaceAligner faceAligner; //face region to 112*112 model input
+    BatchedFaceEmbedder faceEmbedder; //runs tfLite on one or several aligned faces
+    FaceQualityGate qualityGate; //skips small, turned or blurred faces before embedding
+    static final int MAX_FACES = 5; //faces recognized per frame
+    final FaceTracker.Track[] batchTracks = new FaceTracker.Track[MAX_FACES];
+    final int[][] batchIndices = new int[MAX_FACES][2];
+    final float[][] batchScores = new float[MAX_FACES][2];
+    final int[] batchFound = new int[MAX_FACES];
+    Bitmap previewBitmap;
+    boolean destroyed = false; //set in onDestroy, results of frames still in flight are dropped
     @SuppressLint("MissingInflatedId")
     @RequiresApi(api = Build.VERSION_CODES.M)
     @Override
     protected void onCreate(Bundle savedInstanceState) {
         super.onCreate(savedInstanceState);
-        registered=readFromSP(); //Load saved faces from memory when app starts
+        loadGallery(); //Load saved faces from memory when app starts
         setContentView(R.layout.activity_face_id);
         face_preview =findViewById(R.id.imageView);
         reco_name =findViewById(R.id.textView);
         preview_info =findViewById(R.id.textView2);
         add_face=findViewById(R.id.imageButton);
         add_face.setVisibility(View.INVISIBLE);
+        add_face.setEnabled(false); //until a face has passed the quality gate
         SharedPreferences sharedPref = getSharedPreferences("Distance",Context.MODE_PRIVATE);
         distance = sharedPref.getFloat("distance",1.00f);
         face_preview.setVisibility(View.INVISIBLE);
@@ -180,6 +188,7 @@ public class FaceIdActivity extends AppCompatActivity {
                 if(recognize.getText().toString().equals("Recognize"))
                 {
                     start=true;
+                    addMode=false;
 
                     recognize.setText("Add Face");
                     add_face.setVisibility(View.INVISIBLE);
@@ -194,6 +203,8 @@ public class FaceIdActivity extends AppCompatActivity {
                     add_face.setVisibility(View.VISIBLE);
                     reco_name.setVisibility(View.INVISIBLE);
                     face_preview.setVisibility(View.VISIBLE);
+                    clearFaceToAdd();
+                    addMode=true; //every frame is embedded so the face to add is current
                 }
 
             }
@@ -205,19 +216,40 @@ public class FaceIdActivity extends AppCompatActivity {
         } catch (IOException e) {
             e.printStackTrace();
         }
-        //Initialize Face Detector
+        //OpenCV is needed to convert camera frames
+        if (!OpenCVLoader.initDebug()) {
+            Log.e("FaceId", "OpenCV could not be loaded");
+        }
+        yuvConverter = new YuvRoiConverter();
+        faceAligner = new FaceAligner(inputSize);
+        faceEmbedder = new BatchedFaceEmbedder(tfLite, inputSize, OUTPUT_SIZE, MAX_FACES, isModelQuantized, IMAGE_MEAN, IMAGE_STD);
+        qualityGate = new FaceQualityGate(inputSize);
+        previewBitmap = Bitmap.createBitmap(inputSize, inputSize, Bitmap.Config.ARGB_8888);
+
+        //Initialize Face Detector, tracking ids let faceTracker follow faces between frames
         FaceDetectorOptions highAccuracyOpts =
                 new FaceDetectorOptions.Builder()
                         .setPerformanceMode(FaceDetectorOptions.PERFORMANCE_MODE_ACCURATE)
+                        .enableTracking()
                         .build();
         detector = FaceDetection.getClient(highAccuracyOpts);
 
         cameraBind();
     }
 
+    //Forget the face to add, ADD stays disabled until the next face passes the quality gate
+    private void clearFaceToAdd() {
+        embeedings = null;
+        addTrackId = -1;
+        add_face.setEnabled(false);
+    }
+
     private void addFace()
     {
         {
+            if (embeedings == null)
+                return;
+            final float[] embedding = embeedings[0]; //the face shown when ADD was tapped, not a later one
 
             start=false;
             AlertDialog.Builder builder = new AlertDialog.Builder(context);
@@ -230,14 +262,21 @@ public class FaceIdActivity extends AppCompatActivity {
             builder.setPositiveButton("ADD", new DialogInterface.OnClickListener() {
                 @Override
                 public void onClick(DialogInterface dialog, int which) {
-                    //Create and Initialize new object with Face embeddings and Name.
-                    SimilarityClassifier.Recognition result = new SimilarityClassifier.Recognition(
-                            "0", "", -1f);
-                    result.setExtra(embeedings);
-
-                    registered.put( input.getText().toString(),result);
                     start=true;
-                    insertToSP(registered,0);
+                    if(galleryStore==null) {
+                        showStoreUnavailable();
+                        return;
+                    }
+                    //Save Face embeddings under the Name
+                    String name=input.getText().toString();
+                    gallery.put(name, embedding);
+                    faceTracker.invalidate();
+                    try {
+                        galleryStore.appendPut(name, embedding);
+                        Toast.makeText(context, "Recognitions Saved", Toast.LENGTH_SHORT).show();
+                    } catch (IOException e) {
+                        Log.e("FaceId", "Could not save face", e);
+                    }
                 }
             });
             builder.setNegativeButton("Cancel", new DialogInterface.OnClickListener() {
@@ -257,15 +296,12 @@ public class FaceIdActivity extends AppCompatActivity {
         AlertDialog.Builder builder = new AlertDialog.Builder(context);
         builder.setTitle("Select to delete:");
         // add a checkbox list
-        String[] names= new String[registered.size()];
-        boolean[] checkedItems = new boolean[registered.size()];
-        int i=0;
-        for (Map.Entry<String, SimilarityClassifier.Recognition> entry : registered.entrySet())
+        String[] names= new String[gallery.size()];
+        boolean[] checkedItems = new boolean[gallery.size()];
+        for (int i=0;i<names.length;i++)
         {
-            names[i]=entry.getKey();
+            names[i]=gallery.getName(i);
             checkedItems[i]=false;
-            i=i+1;
-
         }
 
         builder.setMultiChoiceItems(names, checkedItems, new DialogInterface.OnMultiChoiceClickListener() {
@@ -282,7 +318,10 @@ public class FaceIdActivity extends AppCompatActivity {
         builder.setPositiveButton("OK", new DialogInterface.OnClickListener() {
             @Override
             public void onClick(DialogInterface dialog, int which) {
-
+                if(galleryStore==null) {
+                    showStoreUnavailable();
+                    return;
+                }
 
                 for(int i=0;i<checkedItems.length;i++)
                 {
@@ -290,15 +329,27 @@ public class FaceIdActivity extends AppCompatActivity {
                     if(checkedItems[i])
                     {
 //                                Toast.makeText(MainActivity.this, names[i], Toast.LENGTH_SHORT).show();
-                        registered.remove(names[i]);
+                        gallery.remove(names[i]);
+                        faceTracker.invalidate();
+                        try {
+                            galleryStore.appendRemove(names[i]);
+                        } catch (IOException e) {
+                            Log.e("FaceId", "Could not delete face", e);
+                        }
                     }
 
                 }
-                insertToSP(registered,2); //mode: 0:save all, 1:clear all, 2:update all
                 Toast.makeText(context, "Recognitions Updated", Toast.LENGTH_SHORT).show();
             }
         });
         builder.setNegativeButton("Cancel", null);
+        builder.setNeutralButton("Import folder", new DialogInterface.OnClickListener() {
+            @Override
+            public void onClick(DialogInterface dialog, int which) {
+                //Pick a folder holding one folder of photos per person
+                startActivityForResult(new Intent(Intent.ACTION_OPEN_DOCUMENT_TREE), IMPORT_FOLDER);
+            }
+        });
 
         // create and show the alert dialog
         AlertDialog dialog = builder.create();
@@ -387,34 +438,51 @@ public class FaceIdActivity extends AppCompatActivity {
                                         new OnSuccessListener<List<Face>>() {
                                             @Override
                                             public void onSuccess(List<Face> faces) {
+                                                if (destroyed)
+                                                    return; //the converters below are released
 
+                                                List<FaceTracker.Track> tracks = faceTracker.update(faces);
+                                                qualityGate.nextFrame();
                                                 if(faces.size()!=0) {
-                                                    Face face = faces.get(0); //Get first face from detected faces
-                                                    //mediaImage to Bitmap
-                                                    Bitmap frame_bmp = toBitmap(mediaImage);
-
                                                     int rot = imageProxy.getImageInfo().getRotationDegrees();
-
-                                                    //Adjust orientation of Face
-                                                    Bitmap frame_bmp1 = rotateBitmap(frame_bmp, rot, false, false);
-
-                                                    //Get bounding box of face
-                                                    RectF boundingBox = new RectF(face.getBoundingBox());
-
-                                                    //Crop out bounding box from whole Bitmap(image)
-                                                    Bitmap cropped_face = getCropBitmapByCPU(frame_bmp1, boundingBox);
-
-                                                    if(flipX)
-                                                        cropped_face = rotateBitmap(cropped_face, 0, flipX, false);
-                                                    //Scale the acquired Face to 112*112 which is required input for model
-                                                    Bitmap scaled = getResizedBitmap(cropped_face, 112, 112);
-
-                                                    if(start)
-                                                        recognizeImage(scaled); //Send scaled bitmap to create face embeddings.
+                                                    if(!addMode) {
+                                                        if(start)
+                                                            recognizeFaces(faces, tracks, mediaImage, rot); //All faces, in one batch
+                                                        return;
+                                                    }
+
+                                                    Face face = faces.get(0); //Only the first face can be added
+                                                    FaceTracker.Track track = tracks.get(0);
+                                                    if (track.getId() != addTrackId) {
+                                                        clearFaceToAdd(); //another face, the last one must not be added under its name
+                                                        addTrackId = track.getId();
+                                                    }
+
+                                                    //Keep the last good face to add rather than a blurred or turned one
+                                                    Rect boundingBox = face.getBoundingBox();
+                                                    Mat luma = yuvConverter.luma(mediaImage, rot, boundingBox);
+                                                    if (luma == null || qualityGate.score(face, luma) < 0)
+                                                        return;
+
+                                                    //Convert only the face region of mediaImage to RGBA
+                                                    Mat region = yuvConverter.convert(mediaImage, rot, boundingBox);
+                                                    if (region == null)
+                                                        return;
+
+                                                    //Crop, rotate, mirror and scale the face to the 112*112 model input in one warp
+                                                    Mat aligned = faceAligner.align(region, yuvConverter.getRoiX(), yuvConverter.getRoiY(),
+                                                            mediaImage.getWidth(), mediaImage.getHeight(), rot, boundingBox, flipX);
+
+                                                    if(start) {
+                                                        recognizeImage(aligned, track); //Send aligned face to create face embeddings.
+                                                        add_face.setEnabled(true);
+                                                    }
                                                 }
                                                 else
                                                 {
-                                                    if(registered.isEmpty())
+                                                    if(addMode && start)
+                                                        clearFaceToAdd();
+                                                    if(gallery.size()==0)
                                                         reco_name.setText("Add Face");
                                                     else
                                                         reco_name.setText("No Face Detected!");
@@ -448,309 +516,307 @@ public class FaceIdActivity extends AppCompatActivity {
 
     }
 
-    @SuppressLint({"SetTextI18n", "DefaultLocale"})
-    public void recognizeImage(final Bitmap bitmap) {
+    public void recognizeImage(final Mat face, FaceTracker.Track track) {
 
         // set Face to Preview
-        face_preview.setImageBitmap(bitmap);
-
-        //Create ByteBuffer to store normalized image
-
-        ByteBuffer imgData = ByteBuffer.allocateDirect(1 * inputSize * inputSize * 3 * 4);
-
-        imgData.order(ByteOrder.nativeOrder());
-
-        intValues = new int[inputSize * inputSize];
-
-        //get pixel values from Bitmap to normalize
-        bitmap.getPixels(intValues, 0, bitmap.getWidth(), 0, 0, bitmap.getWidth(), bitmap.getHeight());
-
-        imgData.rewind();
-
-        for (int i = 0; i < inputSize; ++i) {
-            for (int j = 0; j < inputSize; ++j) {
-                int pixelValue = intValues[i * inputSize + j];
-                if (isModelQuantized) {
-                    // Quantized model
-                    imgData.put((byte) ((pixelValue >> 16) & 0xFF));
-                    imgData.put((byte) ((pixelValue >> 8) & 0xFF));
-                    imgData.put((byte) (pixelValue & 0xFF));
-                } else { // Float model
-                    imgData.putFloat((((pixelValue >> 16) & 0xFF) - IMAGE_MEAN) / IMAGE_STD);
-                    imgData.putFloat((((pixelValue >> 8) & 0xFF) - IMAGE_MEAN) / IMAGE_STD);
-                    imgData.putFloat(((pixelValue & 0xFF) - IMAGE_MEAN) / IMAGE_STD);
-
-                }
-            }
-        }
-        //imgData is input to our model
-        Object[] inputArray = {imgData};
-
-        Map<Integer, Object> outputMap = new HashMap<>();
-
-        embeedings = new float[1][OUTPUT_SIZE]; //output of model will be stored in this variable
-
-        outputMap.put(0, embeedings);
+        Utils.matToBitmap(face, previewBitmap);
+        face_preview.setImageBitmap(previewBitmap);
+        face_preview.invalidate();
 
-        tfLite.runForMultipleInputsOutputs(inputArray, outputMap); //Run model
+        //Run model on the face alone
+        faceEmbedder.setFace(0, face);
+        embeedings = new float[1][OUTPUT_SIZE]; //output of model is copied to this variable
+        System.arraycopy(faceEmbedder.run(1)[0], 0, embeedings[0], 0, OUTPUT_SIZE);
+        if (track != null)
+            faceTracker.countEmbedding();
 
         float distance_local = Float.MAX_VALUE;
-        String id = "0";
-        String label = "?";
+        String name = null, name2 = null;
+        float distance2 = Float.MAX_VALUE;
 
         //Compare new face with saved Faces.
-        if (registered.size() > 0) {
-
-            final List<Pair<String, Float>> nearest = findNearest(embeedings[0]);//Find 2 closest matching face
-
-            if (nearest.get(0) != null) {
-
-                final String name = nearest.get(0).first; //get name and distance of closest matching face
-                // label = name;
-                distance_local = nearest.get(0).second;
-                if (developerMode)
-                {
-                    if(distance_local<distance) //If distance between Closest found face is more than 1.000 ,then output UNKNOWN face.
-                        reco_name.setText("Nearest: "+name +"\nDist: "+ String.format("%.3f",distance_local)+"\n2nd Nearest: "+nearest.get(1).first +"\nDist: "+ String.format("%.3f",nearest.get(1).second));
-                    else
-                        reco_name.setText("Unknown "+"\nDist: "+String.format("%.3f",distance_local)+"\nNearest: "+name +"\nDist: "+ String.format("%.3f",distance_local)+"\n2nd Nearest: "+nearest.get(1).first +"\nDist: "+ String.format("%.3f",nearest.get(1).second));
-
-                }
-                else
-                {
-                    if(distance_local<distance) //If distance between Closest found face is more than 1.000 ,then output UNKNOWN face.
-                        reco_name.setText(name);
-                    else
-                        reco_name.setText("Unknown");
-
-                }
-
-            }
+        final int found = gallery.search(embeedings[0], 2, nearestIndices, nearestScores); //Find 2 closest matching faces
+        if (found > 0) {
+
+            name = gallery.getName(nearestIndices[0]); //get name and distance of closest matching face
+            distance_local = EmbeddingGallery.toDistance(nearestScores[0]);
+            final int second = found > 1 ? 1 : 0; //with one saved face it is also the 2nd nearest
+            name2 = gallery.getName(nearestIndices[second]);
+            distance2 = EmbeddingGallery.toDistance(nearestScores[second]);
         }
-
+        if (track != null)
+            track.setIdentity(name, distance_local, name2, distance2); //reused until the track needs a new embedding
+        showRecognition(name, distance_local, name2, distance2);
     }
 
-    //Compare Faces by distance between face embeddings
-    private List<Pair<String, Float>> findNearest(float[] emb) {
-        List<Pair<String, Float>> neighbour_list = new ArrayList<Pair<String, Float>>();
-        Pair<String, Float> ret = null; //to get closest match
-        Pair<String, Float> prev_ret = null; //to get second closest match
-        for (Map.Entry<String, SimilarityClassifier.Recognition> entry : registered.entrySet())
-        {
-
-            final String name = entry.getKey();
-            final float[] knownEmb = ((float[][]) entry.getValue().getExtra())[0];
-
-            float distance = 0;
-            for (int i = 0; i < emb.length; i++) {
-                float diff = emb[i] - knownEmb[i];
-                distance += diff*diff;
+    //Embed the faces whose track needs it (up to MAX_FACES) and that pass the quality gate in one batch, search the gallery for all of them in parallel and show every face
+    private void recognizeFaces(List<Face> faces, List<FaceTracker.Track> tracks, Image mediaImage, int rot) {
+        final int n = Math.min(faces.size(), MAX_FACES);
+        int batch = 0;
+        for (int i = 0; i < n; i++) {
+            if (!tracks.get(i).needsEmbedding())
+                continue; //Same face as in earlier frames, its cached identity is shown
+            Rect boundingBox = faces.get(i).getBoundingBox();
+            Mat luma = yuvConverter.luma(mediaImage, rot, boundingBox);
+            if (luma == null)
+                continue;
+            final float quality = qualityGate.score(faces.get(i), luma);
+            if (quality < 0)
+                continue; //too small, turned away or blurred, not worth a model run
+            Mat region = yuvConverter.convert(mediaImage, rot, boundingBox);
+            if (region == null)
+                continue;
+            Mat aligned = faceAligner.align(region, yuvConverter.getRoiX(), yuvConverter.getRoiY(),
+                    mediaImage.getWidth(), mediaImage.getHeight(), rot, boundingBox, flipX);
+            Mat best = qualityGate.offer(tracks.get(i).getId(), quality, aligned);
+            if (best == null)
+                continue; //embedded once the best face of the next few frames is known
+            if (batch == 0) {
+                //set first Face to Preview
+                Utils.matToBitmap(best, previewBitmap);
+                face_preview.setImageBitmap(previewBitmap);
+                face_preview.invalidate();
             }
-            distance = (float) Math.sqrt(distance);
-            if (ret == null || distance < ret.second) {
-                prev_ret=ret;
-                ret = new Pair<>(name, distance);
-            }
-        }
-        if(prev_ret==null) prev_ret=ret;
-        neighbour_list.add(ret);
-        neighbour_list.add(prev_ret);
-
-        return neighbour_list;
-
-    }
-
-    public Bitmap getResizedBitmap(Bitmap bm, int newWidth, int newHeight) {
-        int width = bm.getWidth();
-        int height = bm.getHeight();
-        float scaleWidth = ((float) newWidth) / width;
-        float scaleHeight = ((float) newHeight) / height;
-        // CREATE A MATRIX FOR THE MANIPULATION
-        Matrix matrix = new Matrix();
-        // RESIZE THE BIT MAP
-        matrix.postScale(scaleWidth, scaleHeight);
-        // "RECREATE" THE NEW BITMAP
-        Bitmap resizedBitmap = Bitmap.createBitmap(
-                bm, 0, 0, width, height, matrix, false);
-        bm.recycle();
-        return resizedBitmap;
-    }
-
-    private static Bitmap getCropBitmapByCPU(Bitmap source, RectF cropRectF) {
-        Bitmap resultBitmap = Bitmap.createBitmap((int) cropRectF.width(),
-                (int) cropRectF.height(), Bitmap.Config.ARGB_8888);
-        Canvas cavas = new Canvas(resultBitmap);
-
-        // draw background
-        Paint paint = new Paint(Paint.FILTER_BITMAP_FLAG);
-        paint.setColor(Color.WHITE);
-        cavas.drawRect(
-                new RectF(0, 0, cropRectF.width(), cropRectF.height()),
-                paint);
-
-        Matrix matrix = new Matrix();
-        matrix.postTranslate(-cropRectF.left, -cropRectF.top);
-
-        cavas.drawBitmap(source, matrix, paint);
-
-        if (source != null && !source.isRecycled()) {
-            source.recycle();
+            faceEmbedder.setFace(batch, best);
+            batchTracks[batch++] = tracks.get(i);
         }
 
-        return resultBitmap;
-    }
-
-    private static Bitmap rotateBitmap(
-            Bitmap bitmap, int rotationDegrees, boolean flipX, boolean flipY) {
-        Matrix matrix = new Matrix();
-
-        // Rotate the image back to straight.
-        matrix.postRotate(rotationDegrees);
-
-        // Mirror the image along the X or Y axis.
-        matrix.postScale(flipX ? -1.0f : 1.0f, flipY ? -1.0f : 1.0f);
-        Bitmap rotatedBitmap =
-                Bitmap.createBitmap(bitmap, 0, 0, bitmap.getWidth(), bitmap.getHeight(), matrix, true);
-
-        // Recycle the old bitmap if it has changed.
-        if (rotatedBitmap != bitmap) {
-            bitmap.recycle();
+        if (batch > 0) {
+            float[][] batchEmbeddings = faceEmbedder.run(batch);
+            gallery.searchAll(batchEmbeddings, batch, 2, batchIndices, batchScores, batchFound);
+            for (int j = 0; j < batch; j++) {
+                faceTracker.countEmbedding();
+                String name = null, name2 = null;
+                float distance_local = Float.MAX_VALUE, distance2 = Float.MAX_VALUE;
+                if (batchFound[j] > 0) {
+                    name = gallery.getName(batchIndices[j][0]);
+                    distance_local = EmbeddingGallery.toDistance(batchScores[j][0]);
+                    final int second = batchFound[j] > 1 ? 1 : 0; //with one saved face it is also the 2nd nearest
+                    name2 = gallery.getName(batchIndices[j][second]);
+                    distance2 = EmbeddingGallery.toDistance(batchScores[j][second]);
+                }
+                batchTracks[j].setIdentity(name, distance_local, name2, distance2);
+                batchTracks[j] = null;
+            }
         }
-        return rotatedBitmap;
-    }
 
-    //IMPORTANT. If conversion not done ,the toBitmap conversion does not work on some devices.
-    private static byte[] YUV_420_888toNV21(Image image) {
-
-        int width = image.getWidth();
-        int height = image.getHeight();
-        int ySize = width*height;
-        int uvSize = width*height/4;
-
-        byte[] nv21 = new byte[ySize + uvSize*2];
-
-        ByteBuffer yBuffer = image.getPlanes()[0].getBuffer(); // Y
-        ByteBuffer uBuffer = image.getPlanes()[1].getBuffer(); // U
-        ByteBuffer vBuffer = image.getPlanes()[2].getBuffer(); // V
-
-        int rowStride = image.getPlanes()[0].getRowStride();
-        assert(image.getPlanes()[0].getPixelStride() == 1);
-
-        int pos = 0;
-
-        if (rowStride == width) { // likely
-            yBuffer.get(nv21, 0, ySize);
-            pos += ySize;
+        if (n == 1) {
+            FaceTracker.Track track = tracks.get(0);
+            showRecognition(track.name, track.distance, track.name2, track.distance2);
+            return;
         }
-        else {
-            long yBufferPos = -rowStride; // not an actual position
-            for (; pos<ySize; pos+=width) {
-                yBufferPos += rowStride;
-                yBuffer.position((int) yBufferPos);
-                yBuffer.get(nv21, pos, width);
+        //One line per face, in the order they appear on screen
+        Integer[] order = new Integer[n];
+        for (int i = 0; i < n; i++)
+            order[i] = i;
+        final List<Face> shown = faces;
+        Arrays.sort(order, new Comparator<Integer>() {
+            @Override
+            public int compare(Integer a, Integer b) {
+                int left = Integer.compare(shown.get(a).getBoundingBox().left, shown.get(b).getBoundingBox().left);
+                return flipX ? -left : left;
             }
+        });
+        StringBuilder text = new StringBuilder();
+        for (int i : order) {
+            FaceTracker.Track track = tracks.get(i);
+            if (track.name == null)
+                continue;
+            if (text.length() > 0)
+                text.append('\n');
+            text.append(track.distance < distance ? track.name : "Unknown");
+            if (developerMode)
+                text.append(String.format(" (%.3f)", track.distance));
         }
+        if (text.length() > 0)
+            reco_name.setText(text);
+        else if (gallery.size() == 0)
+            reco_name.setText("Add Face");
+        else
+            reco_name.setText("Unknown"); //no face embedded yet, don't leave an earlier frame's names up
+    }
 
-        rowStride = image.getPlanes()[2].getRowStride();
-        int pixelStride = image.getPlanes()[2].getPixelStride();
-
-        assert(rowStride == image.getPlanes()[1].getRowStride());
-        assert(pixelStride == image.getPlanes()[1].getPixelStride());
+    //Show the nearest saved face, or Unknown if it is too far. Nothing is shown without saved faces
+    @SuppressLint({"SetTextI18n", "DefaultLocale"})
+    private void showRecognition(String name, float distance_local, String name2, float distance2) {
+        if (name != null) {
+            if (developerMode)
+            {
+                if(distance_local<distance) //If distance between Closest found face is more than 1.000 ,then output UNKNOWN face.
+                    reco_name.setText("Nearest: "+name +"\nDist: "+ String.format("%.3f",distance_local)+"\n2nd Nearest: "+name2 +"\nDist: "+ String.format("%.3f",distance2));
+                else
+                    reco_name.setText("Unknown "+"\nDist: "+String.format("%.3f",distance_local)+"\nNearest: "+name +"\nDist: "+ String.format("%.3f",distance_local)+"\n2nd Nearest: "+name2 +"\nDist: "+ String.format("%.3f",distance2));
 
-        if (pixelStride == 2 && rowStride == width && uBuffer.get(0) == vBuffer.get(1)) {
-            // maybe V an U planes overlap as per NV21, which means vBuffer[1] is alias of uBuffer[0]
-            byte savePixel = vBuffer.get(1);
-            try {
-                vBuffer.put(1, (byte)~savePixel);
-                if (uBuffer.get(0) == (byte)~savePixel) {
-                    vBuffer.put(1, savePixel);
-                    vBuffer.position(0);
-                    uBuffer.position(0);
-                    vBuffer.get(nv21, ySize, 1);
-                    uBuffer.get(nv21, ySize + 1, uBuffer.remaining());
-
-                    return nv21; // shortcut
-                }
-            }
-            catch (ReadOnlyBufferException ex) {
-                // unfortunately, we cannot check if vBuffer and uBuffer overlap
             }
+            else
+            {
+                if(distance_local<distance) //If distance between Closest found face is more than 1.000 ,then output UNKNOWN face.
+                    reco_name.setText(name);
+                else
+                    reco_name.setText("Unknown");
 
-            // unfortunately, the check failed. We must save U and V pixel by pixel
-            vBuffer.put(1, savePixel);
+            }
         }
 
-        // other optimizations could check if (pixelStride == 1) or (pixelStride == 2),
-        // but performance gain would be less significant
+    }
 
-        for (int row=0; row<height/2; row++) {
-            for (int col=0; col<width/2; col++) {
-                int vuPos = col*pixelStride + row*rowStride;
-                nv21[pos++] = vBuffer.get(vuPos);
-                nv21[pos++] = uBuffer.get(vuPos);
+    @Override
+    protected void onDestroy() {
+        super.onDestroy();
+        destroyed = true;
+        yuvConverter.release();
+        faceAligner.release();
+        faceEmbedder.release();
+        if (tfLite != null)
+            tfLite.close(); //null if the model could not be loaded
+        Log.i("FaceId", "Face tracking: " + faceTracker.getStats());
+        Log.i("FaceId", "Face quality: " + qualityGate.getStats());
+        qualityGate.release();
+        if (galleryStore != null) {
+            try {
+                galleryStore.close();
+            } catch (IOException e) {
+                Log.e("FaceId", "Could not close saved faces", e);
             }
         }
-
-        return nv21;
     }
 
-    private Bitmap toBitmap(Image image) {
-
-        byte[] nv21=YUV_420_888toNV21(image);
-
-        YuvImage yuvImage = new YuvImage(nv21, ImageFormat.NV21, image.getWidth(), image.getHeight(), null);
-
-        ByteArrayOutputStream out = new ByteArrayOutputStream();
-        yuvImage.compressToJpeg(new Rect(0, 0, yuvImage.getWidth(), yuvImage.getHeight()), 75, out);
-
-        byte[] imageBytes = out.toByteArray();
-
-        return BitmapFactory.decodeByteArray(imageBytes, 0, imageBytes.length);
+    //Open saved Faces off the UI thread. A gallery saved as json in Shared Preferences by older versions is moved to the file once
+    private void loadGallery() {
+        final GalleryStore store = new GalleryStore(getFilesDir(), "faces", OUTPUT_SIZE);
+        new Thread(new Runnable() {
+            @Override
+            public void run() {
+                final EmbeddingGallery loaded = new EmbeddingGallery(OUTPUT_SIZE);
+                //Large watchlists search an approximate index instead of scanning every face, see EmbeddingGallery.INDEX_THRESHOLD
+                loaded.setIndexed(true);
+                boolean opened = true;
+                try {
+                    SharedPreferences sharedPreferences = getSharedPreferences("HashMap", MODE_PRIVATE);
+                    String json = sharedPreferences.getString("map", null);
+                    if (!store.exists() && json != null) {
+                        GalleryStore.migrateJson(new StringReader(json), loaded);
+                        store.compact(loaded);
+                    } else if (!store.load(loaded)) {
+                        Log.w("FaceId", "Saved faces were damaged, kept the " + loaded.size() + " read before the damage");
+                    }
+                    if (json != null)
+                        sharedPreferences.edit().remove("map").apply();
+                } catch (IOException e) {
+                    //Faces read so far are still recognised, but nothing is saved on top of files that cannot be read back
+                    Log.e("FaceId", "Could not load saved faces", e);
+                    opened = false;
+                }
+                loaded.buildIndex(); //here rather than on the camera thread's first search
+                final boolean storeOpened = opened;
+                runOnUiThread(new Runnable() {
+                    @Override
+                    public void run() {
+                        gallery = loaded;
+                        galleryLoaded = true;
+                        if (storeOpened)
+                            galleryStore = store;
+                        faceTracker.invalidate();
+                        Toast.makeText(context, storeOpened ? "Recognitions Loaded" : "Saved faces could not be opened",
+                                Toast.LENGTH_SHORT).show();
+                    }
+                });
+            }
+        }, "FaceGalleryLoad").start();
     }
 
-    //Save Faces to Shared Preferences.Conversion of Recognition objects to json string
-    private void insertToSP(HashMap<String, SimilarityClassifier.Recognition> jsonMap,int mode) {
-        if(mode==1)  //mode: 0:save all, 1:clear all, 2:update all
-            jsonMap.clear();
-        else if (mode==0)
-            jsonMap.putAll(readFromSP());
-        String jsonString = new Gson().toJson(jsonMap);
-
-        SharedPreferences sharedPreferences = getSharedPreferences("HashMap", MODE_PRIVATE);
-        SharedPreferences.Editor editor = sharedPreferences.edit();
-        editor.putString("map", jsonString);
-        editor.apply();
-        Toast.makeText(context, "Recognitions Saved", Toast.LENGTH_SHORT).show();
+    private void showStoreUnavailable() {
+        Toast.makeText(context, galleryLoaded ? "Saved faces could not be opened" : "Saved faces are still loading",
+                Toast.LENGTH_SHORT).show();
     }
 
-    //Load Faces from Shared Preferences.Json String to Recognition object
-    private HashMap<String, SimilarityClassifier.Recognition> readFromSP(){
-        SharedPreferences sharedPreferences = getSharedPreferences("HashMap", MODE_PRIVATE);
-        String defValue = new Gson().toJson(new HashMap<String, SimilarityClassifier.Recognition>());
-        String json=sharedPreferences.getString("map",defValue);
-        TypeToken<HashMap<String,SimilarityClassifier.Recognition>> token = new TypeToken<HashMap<String,SimilarityClassifier.Recognition>>() {};
-        HashMap<String,SimilarityClassifier.Recognition> retrievedMap=new Gson().fromJson(json,token.getType());
-
-        //During type conversion and save/load procedure,format changes(eg float converted to double).
-        //So embeddings need to be extracted from it in required format(eg.double to float).
-        for (Map.Entry<String, SimilarityClassifier.Recognition> entry : retrievedMap.entrySet())
-        {
-            float[][] output=new float[1][OUTPUT_SIZE];
-            ArrayList arrayList= (ArrayList) entry.getValue().getExtra();
-            arrayList = (ArrayList) arrayList.get(0);
-            for (int counter = 0; counter < arrayList.size(); counter++) {
-                output[0][counter]= ((Double) arrayList.get(counter)).floatValue();
-            }
-            entry.getValue().setExtra(output);
+    //Enroll every person folder under the picked folder in the background, adding finished people to the gallery in batches
+    private void bulkEnroll(final Uri tree) {
+        if (galleryStore == null) {
+            showStoreUnavailable();
+            return;
+        }
+        final Interpreter enrollInterpreter;
+        try {
+            enrollInterpreter = new Interpreter(loadModelFile(FaceIdActivity.this, modelFile)); //tfLite stays with the camera
+        } catch (IOException e) {
+            Log.e("FaceId", "Could not load model for import", e);
+            return;
         }
+        //A detector of its own without tracking, the camera's one follows faces between frames
+        final FaceDetector enrollDetector = FaceDetection.getClient(new FaceDetectorOptions.Builder()
+                .setPerformanceMode(FaceDetectorOptions.PERFORMANCE_MODE_ACCURATE)
+                .build());
+        final BulkEnroller enroller = new BulkEnroller(getContentResolver(), enrollDetector, enrollInterpreter,
+                inputSize, OUTPUT_SIZE, BulkEnroller.defaultWorkerCount());
+        preview_info.setText("Importing faces...");
+        new Thread(new Runnable() {
+            @Override
+            public void run() {
+                List<BulkEnroller.Image> images = BulkEnroller.listFolders(getContentResolver(), tree);
+                final BulkEnroller.Report report;
+                try {
+                    report = enroller.run(images, new BulkEnroller.Listener() {
+                        @Override
+                        public void onBatch(final List<String> names, final List<float[]> embeddings) {
+                            runOnUiThread(new Runnable() {
+                                @Override
+                                public void run() {
+                                    for (int i = 0; i < names.size(); i++)
+                                        gallery.put(names.get(i), embeddings.get(i));
+                                    faceTracker.invalidate();
+                                    try {
+                                        galleryStore.appendPuts(names, embeddings);
+                                    } catch (IOException e) {
+                                        Log.e("FaceId", "Could not save imported faces", e);
+                                    }
+                                }
+                            });
+                        }
 
-        Toast.makeText(context, "Recognitions Loaded", Toast.LENGTH_SHORT).show();
-        return retrievedMap;
+                        @Override
+                        public void onProgress(final int done, final int total) {
+                            if (done % 20 != 0 && done != total)
+                                return;
+                            runOnUiThread(new Runnable() {
+                                @Override
+                                public void run() {
+                                    preview_info.setText("Importing faces: " + done + "/" + total + " images");
+                                }
+                            });
+                        }
+                    });
+                } catch (InterruptedException e) {
+                    return;
+                } finally {
+                    enrollInterpreter.close();
+                    enrollDetector.close();
+                }
+                Log.i("FaceId", "Import: " + report);
+                runOnUiThread(new Runnable() {
+                    @Override
+                    public void run() {
+                        preview_info.setText("");
+                        StringBuilder message = new StringBuilder(report.toString());
+                        for (String failed : report.failed)
+                            message.append("\n").append(failed);
+                        new AlertDialog.Builder(context)
+                                .setTitle("Import finished")
+                                .setMessage(message)
+                                .setPositiveButton("OK", null)
+                                .show();
+                    }
+                });
+            }
+        }, "BulkEnrollImport").start();
     }
 
     public void onActivityResult(int requestCode, int resultCode, Intent data) {
         super.onActivityResult(requestCode, resultCode, data);
         if (resultCode == RESULT_OK) {
+            if (requestCode == IMPORT_FOLDER) {
+                bulkEnroll(data.getData());
+            }
             if (requestCode == SELECT_PICTURE) {
                 Uri selectedImageUri = data.getData();
                 try {
@@ -758,6 +824,8 @@ public class FaceIdActivity extends AppCompatActivity {
                     detector.process(impphoto).addOnSuccessListener(new OnSuccessListener<List<Face>>() {
                         @Override
                         public void onSuccess(List<Face> faces) {
+                            if (destroyed)
+                                return; //faceAligner is released
 
                             if(faces.size()!=0) {
                                 recognize.setText("Recognize");
@@ -773,18 +841,15 @@ public class FaceIdActivity extends AppCompatActivity {
                                 } catch (IOException e) {
                                     e.printStackTrace();
                                 }
-                                Bitmap frame_bmp1 = rotateBitmap(frame_bmp, 0, flipX, false);
-
-                                //face_preview.setImageBitmap(frame_bmp1);
-
-                                RectF boundingBox = new RectF(face.getBoundingBox());
-
-                                Bitmap cropped_face = getCropBitmapByCPU(frame_bmp1, boundingBox);
+                                Mat photo = new Mat();
+                                Utils.bitmapToMat(frame_bmp, photo);
 
-                                Bitmap scaled = getResizedBitmap(cropped_face, 112, 112);
-                                // face_preview.setImageBitmap(scaled);
+                                Mat aligned = faceAligner.align(photo, 0, 0, photo.cols(), photo.rows(),
+                                        0, face.getBoundingBox(), flipX);
 
-                                recognizeImage(scaled);
+                                recognizeImage(aligned, null);
+                                add_face.setEnabled(true);
+                                photo.release();
                                 addFace();
                                 try {
                                     Thread.sleep(100);
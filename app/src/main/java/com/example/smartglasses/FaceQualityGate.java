@@ -0,0 +1,191 @@
+package com.example.smartglasses;
+
+import android.graphics.Rect;
+
+import com.google.mlkit.vision.face.Face;
+
+import org.opencv.core.Core;
+import org.opencv.core.CvType;
+import org.opencv.core.Mat;
+import org.opencv.core.MatOfDouble;
+import org.opencv.core.Size;
+import org.opencv.imgproc.Imgproc;
+
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+
+/**
+ * Decides which detected faces are worth a face embedding, before the model runs on them.
+ *
+ * A face is rejected when its box is too small, when ML Kit reports the head turned too far
+ * (yaw, pitch or roll), or when it is blurred: the variance of the Laplacian of its luma, scaled to
+ * the model input size so the measure does not depend on how large the face is, is below a
+ * threshold. Faces that pass get a quality score, and for each track the best scoring aligned face
+ * seen within a short window of frames is the one that gets embedded.
+ */
+public class FaceQualityGate {
+
+    private float minSharpness = 60f;
+    private int minFaceSize = 64;
+    private float maxYaw = 35f;
+    private float maxPitch = 25f;
+    private float maxRoll = 40f;
+    private int windowFrames = 3;
+
+    /** Best face of a track in the current window. */
+    private static final class Candidate {
+        final Mat face = new Mat();
+        float score;
+        long firstFrame;
+        long lastFrame;
+        boolean empty = true;
+    }
+
+    private final Size sampleSize;
+    private final Mat sample = new Mat();
+    private final Mat laplacian = new Mat();
+    private final MatOfDouble mean = new MatOfDouble();
+    private final MatOfDouble stdDev = new MatOfDouble();
+    private final Map<Integer, Candidate> candidates = new HashMap<>();
+
+    private long frame = 0;
+    private long skippedSize = 0;
+    private long skippedPose = 0;
+    private long skippedBlur = 0;
+    private long passed = 0;
+    private long embedded = 0;
+
+    /** @param sampleSize side of the square the luma is scaled to before measuring sharpness */
+    public FaceQualityGate(int sampleSize) {
+        this.sampleSize = new Size(sampleSize, sampleSize);
+    }
+
+    /** Faces whose Laplacian variance at the sample size is below this are too blurred. */
+    public void setMinSharpness(float minSharpness) {
+        this.minSharpness = minSharpness;
+    }
+
+    /** Faces whose box is narrower or lower than this many pixels are too small. */
+    public void setMinFaceSize(int minFaceSize) {
+        this.minFaceSize = minFaceSize;
+    }
+
+    /** Largest head rotations in degrees around the vertical, horizontal and view axes. */
+    public void setMaxAngles(float maxYaw, float maxPitch, float maxRoll) {
+        this.maxYaw = maxYaw;
+        this.maxPitch = maxPitch;
+        this.maxRoll = maxRoll;
+    }
+
+    /** Number of frames a track's best face is collected over before it is embedded, 1 for no window. */
+    public void setWindowFrames(int windowFrames) {
+        this.windowFrames = windowFrames;
+    }
+
+    /** Starts a new camera frame, dropping the windows of tracks no longer offered faces. */
+    public void nextFrame() {
+        frame++;
+        Iterator<Candidate> it = candidates.values().iterator();
+        while (it.hasNext()) {
+            Candidate candidate = it.next();
+            if (frame - candidate.lastFrame > windowFrames) {
+                candidate.face.release();
+                it.remove();
+            }
+        }
+    }
+
+    /**
+     * Scores a face, cheapest checks first so most rejected faces never touch pixels.
+     *
+     * @param luma the gray face region, any size
+     * @return the quality, higher is better, or -1 if the face is rejected
+     */
+    public float score(Face face, Mat luma) {
+        Rect box = face.getBoundingBox();
+        final int size = Math.min(box.width(), box.height());
+        if (size < minFaceSize) {
+            skippedSize++;
+            return -1f;
+        }
+        final float yaw = Math.abs(face.getHeadEulerAngleY());
+        final float pitch = Math.abs(face.getHeadEulerAngleX());
+        if (yaw > maxYaw || pitch > maxPitch || Math.abs(face.getHeadEulerAngleZ()) > maxRoll) {
+            skippedPose++;
+            return -1f;
+        }
+
+        Imgproc.resize(luma, sample, sampleSize, 0, 0, Imgproc.INTER_AREA);
+        Imgproc.Laplacian(sample, laplacian, CvType.CV_16S);
+        Core.meanStdDev(laplacian, mean, stdDev);
+        final double sd = stdDev.toArray()[0];
+        final float sharpness = (float) (sd * sd);
+        if (sharpness < minSharpness) {
+            skippedBlur++;
+            return -1f;
+        }
+        passed++;
+
+        // each term is 1 at its threshold; sharpness and size stop counting at a few times it
+        final float sharpnessTerm = Math.min(sharpness / minSharpness, 4f);
+        final float sizeTerm = Math.min((float) size / minFaceSize, 2f);
+        final double poseTerm = Math.cos(Math.toRadians(yaw)) * Math.cos(Math.toRadians(pitch));
+        return (float) (sharpnessTerm * sizeTerm * poseTerm);
+    }
+
+    /**
+     * Offers a track's aligned face that passed {@link #score}.
+     *
+     * @return the best face of the track's window once the window is over, valid until the track's
+     * next offer, otherwise null
+     */
+    public Mat offer(int trackId, float score, Mat aligned) {
+        Candidate candidate = candidates.get(trackId);
+        if (candidate == null) {
+            candidate = new Candidate();
+            candidates.put(trackId, candidate);
+        }
+        if (candidate.empty) {
+            candidate.empty = false;
+            candidate.firstFrame = frame;
+            candidate.score = -1f;
+        }
+        if (score > candidate.score) {
+            aligned.copyTo(candidate.face);
+            candidate.score = score;
+        }
+        candidate.lastFrame = frame;
+        if (frame - candidate.firstFrame + 1 < windowFrames) {
+            return null;
+        }
+        candidate.empty = true;
+        embedded++;
+        return candidate.face;
+    }
+
+    public long getSkipped() {
+        return skippedSize + skippedPose + skippedBlur;
+    }
+
+    public long getEmbedded() {
+        return embedded;
+    }
+
+    /** Faces skipped by reason, faces that passed and faces embedded so far. */
+    public String getStats() {
+        return String.format("skipped %d (%d small, %d pose, %d blurred), passed %d, embedded %d",
+                getSkipped(), skippedSize, skippedPose, skippedBlur, passed, embedded);
+    }
+
+    public void release() {
+        for (Candidate candidate : candidates.values()) {
+            candidate.face.release();
+        }
+        candidates.clear();
+        sample.release();
+        laplacian.release();
+        mean.release();
+        stdDev.release();
+    }
+}
@@ -0,0 +1,180 @@
+package com.example.smartglasses;
+
+import android.graphics.Rect;
+
+import com.google.mlkit.vision.face.Face;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Follows faces across camera frames so their identity can be reused instead of re-embedded.
+ *
+ * A face is matched to the track carrying the same ML Kit tracking id when the detector has
+ * tracking enabled, otherwise to the unmatched track whose box overlaps it most (IoU of at least
+ * {@link #MATCH_IOU}). Tracks not seen for {@link #MAX_MISSED} frames are dropped. A track asks for
+ * a new embedding when it is new, every {@link #REEMBED_INTERVAL} frames, or once its box has moved
+ * or scaled away from where it was last embedded.
+ */
+public class FaceTracker {
+
+    static final float MATCH_IOU = 0.3f;
+    // below this overlap with the box at the last embedding the face is embedded again
+    static final float CHANGE_IOU = 0.6f;
+    static final int REEMBED_INTERVAL = 15;
+    static final int MAX_MISSED = 5;
+
+    /** One followed face and its cached identity. */
+    public static final class Track {
+        final int id;
+        int trackingId;
+        final Rect box = new Rect();
+        private final Rect embeddedBox = new Rect();
+        private boolean hasIdentity = false;
+        private int framesSinceEmbedding = 0;
+        private int missed = 0;
+
+        String name;
+        float distance;
+        String name2;
+        float distance2;
+
+        Track(int id) {
+            this.id = id;
+        }
+
+        public int getId() {
+            return id;
+        }
+
+        public boolean needsEmbedding() {
+            return !hasIdentity || framesSinceEmbedding >= REEMBED_INTERVAL || iou(box, embeddedBox) < CHANGE_IOU;
+        }
+
+        /** Caches the result of embedding the face at its current box; name is null with an empty gallery. */
+        public void setIdentity(String name, float distance, String name2, float distance2) {
+            this.name = name;
+            this.distance = distance;
+            this.name2 = name2;
+            this.distance2 = distance2;
+            hasIdentity = true;
+            framesSinceEmbedding = 0;
+            embeddedBox.set(box);
+        }
+    }
+
+    private final List<Track> tracks = new ArrayList<>();
+    private final List<Track> matched = new ArrayList<>();
+    private int nextId = 0;
+    private long frames = 0;
+    private long faces = 0;
+    private long embeddings = 0;
+
+    /**
+     * Matches the faces of a frame to tracks, creating tracks for new faces.
+     *
+     * @return the track of each face, in the order of faces; valid until the next update
+     */
+    public List<Track> update(List<Face> detected) {
+        frames++;
+        faces += detected.size();
+        matched.clear();
+        for (int i = 0; i < detected.size(); i++) {
+            matched.add(null);
+        }
+        boolean[] taken = new boolean[tracks.size()];
+
+        // tracking ids first, they survive overlapping faces that IoU would confuse
+        for (int f = 0; f < detected.size(); f++) {
+            Integer trackingId = detected.get(f).getTrackingId();
+            if (trackingId == null) {
+                continue;
+            }
+            for (int t = 0; t < tracks.size(); t++) {
+                if (!taken[t] && tracks.get(t).trackingId == trackingId) {
+                    taken[t] = true;
+                    matched.set(f, tracks.get(t));
+                    break;
+                }
+            }
+        }
+        // then the best remaining overlaps, greedily
+        while (true) {
+            float bestIou = MATCH_IOU;
+            int bestFace = -1;
+            int bestTrack = -1;
+            for (int f = 0; f < detected.size(); f++) {
+                if (matched.get(f) != null) {
+                    continue;
+                }
+                Rect box = detected.get(f).getBoundingBox();
+                for (int t = 0; t < tracks.size(); t++) {
+                    if (taken[t]) {
+                        continue;
+                    }
+                    final float overlap = iou(box, tracks.get(t).box);
+                    if (overlap >= bestIou) {
+                        bestIou = overlap;
+                        bestFace = f;
+                        bestTrack = t;
+                    }
+                }
+            }
+            if (bestFace < 0) {
+                break;
+            }
+            taken[bestTrack] = true;
+            matched.set(bestFace, tracks.get(bestTrack));
+        }
+
+        for (int t = tracks.size() - 1; t >= 0; t--) {
+            Track track = tracks.get(t);
+            if (taken[t]) {
+                track.missed = 0;
+                track.framesSinceEmbedding++;
+            } else if (++track.missed > MAX_MISSED) {
+                tracks.remove(t);
+            }
+        }
+        for (int f = 0; f < detected.size(); f++) {
+            Track track = matched.get(f);
+            if (track == null) {
+                track = new Track(nextId++);
+                tracks.add(track);
+                matched.set(f, track);
+            }
+            Face face = detected.get(f);
+            track.box.set(face.getBoundingBox());
+            track.trackingId = face.getTrackingId() != null ? face.getTrackingId() : -1;
+        }
+        return matched;
+    }
+
+    /** Forgets every cached identity, e.g. after the gallery changed. */
+    public void invalidate() {
+        for (Track track : tracks) {
+            track.hasIdentity = false;
+        }
+    }
+
+    /** Counts an embedding run for {@link #getStats()}. */
+    public void countEmbedding() {
+        embeddings++;
+    }
+
+    /** Frames, faces seen and embeddings run so far. */
+    public String getStats() {
+        return String.format("%d frames, %d faces, %d embeddings (%.1f%% of faces)",
+                frames, faces, embeddings, faces > 0 ? embeddings * 100f / faces : 0f);
+    }
+
+    static float iou(Rect a, Rect b) {
+        final int width = Math.min(a.right, b.right) - Math.max(a.left, b.left);
+        final int height = Math.min(a.bottom, b.bottom) - Math.max(a.top, b.top);
+        if (width <= 0 || height <= 0) {
+            return 0f;
+        }
+        final float intersection = (float) width * height;
+        return intersection / ((float) a.width() * a.height() + (float) b.width() * b.height() - intersection);
+    }
+}
@@ -0,0 +1,336 @@
+package com.example.smartglasses;
+
+import com.google.gson.stream.JsonReader;
+import com.google.gson.stream.JsonToken;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.io.Reader;
+import java.io.UTFDataFormatException;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteOrder;
+import java.nio.FloatBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Registered faces on disk: a binary snapshot that is memory-mapped on open, plus an append-only
+ * journal of the puts and removes made since.
+ *
+ * Snapshot layout, little-endian: magic, version, dim, count, offset of the name table (long), then
+ * count * dim float embeddings back to back, then the names as length-prefixed UTF-8. Opening copies
+ * the embedding block straight out of the mapping, nothing is parsed except the names. Journal
+ * records are an op byte, the name and for puts dim floats. When the journal grows past half the
+ * snapshot it is folded into a new snapshot on the next open, written to a temporary file and
+ * renamed over the old one, so a crash leaves either the old or the new snapshot. A torn last
+ * journal record is dropped. A snapshot or journal that cannot be read is renamed to *.corrupt and
+ * what was read before the damage is compacted into a fresh snapshot, so new records are never
+ * appended behind a record no load can get past.
+ */
+public class GalleryStore {
+
+    private static final int MAGIC = 0x4C414746; // "FGAL" in file order
+    private static final int VERSION = 1;
+    private static final int HEADER_SIZE = 24;
+    private static final byte OP_PUT = 1;
+    private static final byte OP_REMOVE = 2;
+    // compaction is not worth it below this many journal records
+    private static final int MIN_COMPACT_RECORDS = 64;
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+
+    private final File snapshotFile;
+    private final File journalFile;
+    private final int dim;
+    private DataOutputStream journal;
+    private int journalRecords = 0;
+
+    public GalleryStore(File dir, String name, int dim) {
+        this.snapshotFile = new File(dir, name + ".gallery");
+        this.journalFile = new File(dir, name + ".journal");
+        this.dim = dim;
+    }
+
+    /** Whether a snapshot or journal was written before. */
+    public boolean exists() {
+        return snapshotFile.exists() || journalFile.exists();
+    }
+
+    /**
+     * Reads the snapshot and replays the journal into an empty gallery, compacting if the journal
+     * is long, ends in a torn record or either file is corrupt. Afterwards puts and removes can be
+     * appended.
+     *
+     * @return false if a corrupt file was set aside and only the faces read before the damage kept
+     * @throws IOException if the files could not be read or rewritten, nothing must be appended then
+     */
+    public boolean load(EmbeddingGallery gallery) throws IOException {
+        int snapshotCount = 0;
+        boolean corrupt = false;
+        if (snapshotFile.exists()) {
+            try {
+                snapshotCount = readSnapshot(gallery);
+            } catch (CorruptException e) {
+                setAside(snapshotFile);
+                gallery.clear();
+                corrupt = true;
+            }
+        }
+        boolean torn = false;
+        journalRecords = 0;
+        if (journalFile.exists()) {
+            DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(journalFile)));
+            try {
+                float[] embedding = new float[dim];
+                while (true) {
+                    final int op = in.read();
+                    if (op < 0) {
+                        break;
+                    }
+                    final String name = in.readUTF();
+                    if (op == OP_PUT) {
+                        for (int i = 0; i < dim; i++) {
+                            embedding[i] = in.readFloat();
+                        }
+                        gallery.put(name, embedding);
+                    } else if (op == OP_REMOVE) {
+                        gallery.remove(name);
+                    } else {
+                        // everything up to here is kept, the rest of the file is unreadable
+                        corrupt = true;
+                        break;
+                    }
+                    journalRecords++;
+                }
+            } catch (EOFException e) {
+                torn = true;
+            } catch (UTFDataFormatException e) {
+                corrupt = true;
+            } finally {
+                in.close();
+            }
+            if (corrupt) {
+                setAside(journalFile);
+            }
+        }
+        if (corrupt || torn || journalRecords >= Math.max(MIN_COMPACT_RECORDS, snapshotCount / 2)) {
+            compact(gallery);
+        }
+        return !corrupt;
+    }
+
+    public void appendPut(String name, float[] embedding) throws IOException {
+        DataOutputStream out = openJournal();
+        out.writeByte(OP_PUT);
+        out.writeUTF(name);
+        for (int i = 0; i < dim; i++) {
+            out.writeFloat(embedding[i]);
+        }
+        out.flush();
+        journalRecords++;
+    }
+
+    /** Appends several puts with a single flush. */
+    public void appendPuts(List<String> names, List<float[]> embeddings) throws IOException {
+        DataOutputStream out = openJournal();
+        for (int i = 0; i < names.size(); i++) {
+            out.writeByte(OP_PUT);
+            out.writeUTF(names.get(i));
+            float[] embedding = embeddings.get(i);
+            for (int d = 0; d < dim; d++) {
+                out.writeFloat(embedding[d]);
+            }
+        }
+        out.flush();
+        journalRecords += names.size();
+    }
+
+    public void appendRemove(String name) throws IOException {
+        DataOutputStream out = openJournal();
+        out.writeByte(OP_REMOVE);
+        out.writeUTF(name);
+        out.flush();
+        journalRecords++;
+    }
+
+    /** Writes the whole gallery as the new snapshot and empties the journal. */
+    public void compact(EmbeddingGallery gallery) throws IOException {
+        closeJournal();
+        final int count = gallery.size();
+        byte[][] names = new byte[count][];
+        long namesSize = 0;
+        for (int i = 0; i < count; i++) {
+            names[i] = gallery.getName(i).getBytes(UTF_8);
+            namesSize += 4 + names[i].length;
+        }
+        final long namesOffset = HEADER_SIZE + (long) count * dim * 4;
+
+        File temp = new File(snapshotFile.getPath() + ".tmp");
+        RandomAccessFile file = new RandomAccessFile(temp, "rw");
+        try {
+            file.setLength(0);
+            FileChannel channel = file.getChannel();
+            MappedByteBuffer map = channel.map(FileChannel.MapMode.READ_WRITE, 0, namesOffset + namesSize);
+            map.order(ByteOrder.LITTLE_ENDIAN);
+            map.putInt(MAGIC).putInt(VERSION).putInt(dim).putInt(count).putLong(namesOffset);
+            FloatBuffer floats = map.asFloatBuffer();
+            float[] embedding = new float[dim];
+            for (int i = 0; i < count; i++) {
+                floats.put(gallery.getEmbedding(i, embedding));
+            }
+            map.position((int) namesOffset);
+            for (byte[] name : names) {
+                map.putInt(name.length).put(name);
+            }
+            map.force();
+        } finally {
+            file.close();
+        }
+        if (!temp.renameTo(snapshotFile)) {
+            throw new IOException("could not replace " + snapshotFile);
+        }
+        if (journalFile.exists() && !journalFile.delete()) {
+            throw new IOException("could not delete " + journalFile);
+        }
+        journalRecords = 0;
+    }
+
+    public void close() throws IOException {
+        closeJournal();
+    }
+
+    /**
+     * Reads a gallery saved by Gson as a map from name to SimilarityClassifier.Recognition, whose
+     * extra holds the embedding as [[floats]], token by token without building the map.
+     *
+     * @return number of faces read
+     */
+    public static int migrateJson(Reader json, EmbeddingGallery gallery) throws IOException {
+        final int dim = gallery.getDim();
+        float[] embedding = new float[dim];
+        int faces = 0;
+        JsonReader reader = new JsonReader(json);
+        try {
+            reader.beginObject();
+            while (reader.hasNext()) {
+                final String name = reader.nextName();
+                boolean found = false;
+                reader.beginObject();
+                while (reader.hasNext()) {
+                    if (!reader.nextName().equals("extra") || reader.peek() != JsonToken.BEGIN_ARRAY) {
+                        reader.skipValue();
+                        continue;
+                    }
+                    reader.beginArray();
+                    reader.beginArray();
+                    int i = 0;
+                    while (reader.hasNext()) {
+                        final double value = reader.nextDouble();
+                        if (i < dim) {
+                            embedding[i++] = (float) value;
+                        }
+                    }
+                    reader.endArray();
+                    while (reader.hasNext()) {
+                        reader.skipValue();
+                    }
+                    reader.endArray();
+                    found = i == dim;
+                }
+                reader.endObject();
+                if (found) {
+                    gallery.put(name, embedding);
+                    faces++;
+                }
+            }
+            reader.endObject();
+        } finally {
+            reader.close();
+        }
+        return faces;
+    }
+
+    private int readSnapshot(EmbeddingGallery gallery) throws IOException {
+        RandomAccessFile file = new RandomAccessFile(snapshotFile, "r");
+        try {
+            FileChannel channel = file.getChannel();
+            MappedByteBuffer map = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+            map.order(ByteOrder.LITTLE_ENDIAN);
+            if (map.remaining() < HEADER_SIZE || map.getInt() != MAGIC || map.getInt() != VERSION) {
+                throw new CorruptException("not a gallery snapshot: " + snapshotFile);
+            }
+            final int fileDim = map.getInt();
+            if (fileDim != dim) {
+                throw new CorruptException(snapshotFile + " holds " + fileDim + "-d embeddings, expected " + dim);
+            }
+            final int count = map.getInt();
+            final long namesOffset = map.getLong();
+            if (count < 0 || namesOffset != HEADER_SIZE + (long) count * dim * 4 || namesOffset > map.limit()) {
+                throw new CorruptException("bad header in " + snapshotFile);
+            }
+
+            FloatBuffer floats = map.asFloatBuffer();
+            map.position((int) namesOffset);
+            List<String> names = new ArrayList<>(count);
+            byte[] nameBytes = new byte[64];
+            for (int i = 0; i < count; i++) {
+                final int length = map.getInt();
+                if (length < 0 || length > map.remaining()) {
+                    throw new CorruptException("bad name table in " + snapshotFile);
+                }
+                if (length > nameBytes.length) {
+                    nameBytes = new byte[length];
+                }
+                map.get(nameBytes, 0, length);
+                names.add(new String(nameBytes, 0, length, UTF_8));
+            }
+            gallery.load(names, floats);
+            return count;
+        } catch (BufferUnderflowException e) {
+            throw new CorruptException(snapshotFile + " is truncated");
+        } finally {
+            file.close();
+        }
+    }
+
+    // renames a damaged file out of the way, replacing an older one set aside before
+    private static void setAside(File damaged) throws IOException {
+        File aside = new File(damaged.getPath() + ".corrupt");
+        if ((aside.exists() && !aside.delete()) || !damaged.renameTo(aside)) {
+            throw new IOException("could not move " + damaged + " aside");
+        }
+    }
+
+    private DataOutputStream openJournal() throws IOException {
+        if (journal == null) {
+            journal = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(journalFile, true)));
+        }
+        return journal;
+    }
+
+    private void closeJournal() throws IOException {
+        if (journal != null) {
+            journal.close();
+            journal = null;
+        }
+    }
+
+    /** A file whose contents cannot be read, as opposed to one that could not be accessed. */
+    private static class CorruptException extends IOException {
+        private static final long serialVersionUID = 1L;
+
+        CorruptException(String message) {
+            super(message);
+        }
+    }
+}
@@ -0,0 +1,139 @@
+package com.example.smartglasses;
+
+import org.opencv.core.Mat;
+import org.opencv.core.MatOfRect;
+import org.opencv.core.Size;
+import org.opencv.imgproc.Imgproc;
+import org.opencv.objdetect.CascadeClassifier;
+
+/**
+ * Haar cascade face detection on a downscaled copy of the gray camera frame.
+ *
+ * The frame is shrunk so its width is at most detectWidth before the cascade runs, and the
+ * pyramid is bounded by minSize/maxSize (given in full resolution pixels), so no time is spent on
+ * colour conversion or on faces too small to classify. Boxes are returned in full resolution as
+ * x, y, width, height quadruples.
+ */
+public class HaarFaceDetector implements FaceDetectorBackend {
+
+    private final CascadeClassifier classifier;
+
+    private int detectWidth = 480;
+    private double scaleFactor = 1.1;
+    private int minNeighbors = 3;
+    private int minFaceSize = 60;
+    private int maxFaceSize = 0;
+
+    private final Mat small = new Mat();
+    private final MatOfRect found = new MatOfRect();
+    private final Size smallSize = new Size();
+    private final Size minSize = new Size();
+    private final Size maxSize = new Size();
+    private int[] boxes = new int[0];
+
+    public HaarFaceDetector(CascadeClassifier classifier) {
+        this.classifier = classifier;
+    }
+
+    /** Frames wider than this are downscaled before detection, 0 disables downscaling. */
+    public void setDetectWidth(int detectWidth) {
+        this.detectWidth = detectWidth;
+    }
+
+    public void setScaleFactor(double scaleFactor) {
+        this.scaleFactor = scaleFactor;
+    }
+
+    public void setMinNeighbors(int minNeighbors) {
+        this.minNeighbors = minNeighbors;
+    }
+
+    /** Smallest face to look for, in full resolution pixels. */
+    public void setMinFaceSize(int minFaceSize) {
+        this.minFaceSize = minFaceSize;
+    }
+
+    /** Largest face to look for, in full resolution pixels, 0 means no limit. */
+    public void setMaxFaceSize(int maxFaceSize) {
+        this.maxFaceSize = maxFaceSize;
+    }
+
+    @Override
+    public String getName() {
+        return "Haar";
+    }
+
+    @Override
+    public int detect(Mat gray, Mat rgba) {
+        return detect(gray);
+    }
+
+    /**
+     * Detects faces on a gray frame.
+     *
+     * @return number of faces, whose boxes are in {@link #getBoxes()}
+     */
+    public int detect(Mat gray) {
+        float scale = 1f;
+        Mat input = gray;
+        if (detectWidth > 0 && gray.cols() > detectWidth) {
+            scale = (float) detectWidth / gray.cols();
+            smallSize.width = detectWidth;
+            smallSize.height = Math.round(gray.rows() * scale);
+            Imgproc.resize(gray, small, smallSize, 0, 0, Imgproc.INTER_LINEAR);
+            input = small;
+        }
+
+        minSize.width = minSize.height = Math.max(1, Math.round(minFaceSize * scale));
+        maxSize.width = maxSize.height = maxFaceSize > 0 ? Math.round(maxFaceSize * scale) : 0;
+        runCascade(input, minSize, maxSize, found);
+
+        final int count = (int) found.total();
+        if (boxes.length < count * 4) {
+            boxes = new int[count * 4];
+        }
+        if (count > 0) {
+            found.get(0, 0, boxes);
+        }
+        if (scale != 1f) {
+            // back to full resolution, clamped to the frame
+            final float inverse = 1f / scale;
+            for (int i = 0; i < count * 4; i += 4) {
+                final int x = Math.min(gray.cols() - 1, Math.round(boxes[i] * inverse));
+                final int y = Math.min(gray.rows() - 1, Math.round(boxes[i + 1] * inverse));
+                boxes[i] = x;
+                boxes[i + 1] = y;
+                boxes[i + 2] = Math.min(gray.cols() - x, Math.round(boxes[i + 2] * inverse));
+                boxes[i + 3] = Math.min(gray.rows() - y, Math.round(boxes[i + 3] * inverse));
+            }
+        }
+        return count;
+    }
+
+    /**
+     * Runs the cascade on the (downscaled) frame, leaving the grouped detections in found. Sizes
+     * are in pixels of input.
+     */
+    protected void runCascade(Mat input, Size minSize, Size maxSize, MatOfRect found) {
+        classifier.detectMultiScale(input, found, scaleFactor, minNeighbors, 0, minSize, maxSize);
+    }
+
+    protected double getScaleFactor() {
+        return scaleFactor;
+    }
+
+    protected int getMinNeighbors() {
+        return minNeighbors;
+    }
+
+    @Override
+    public int[] getBoxes() {
+        return boxes;
+    }
+
+    @Override
+    public void release() {
+        small.release();
+        found.release();
+    }
+}
@@ -0,0 +1,439 @@
+package com.example.smartglasses;
+
+import java.util.Arrays;
+import java.util.Random;
+
+/**
+ * Hierarchical navigable small world graph for approximate nearest neighbour search over
+ * L2-normalised embeddings, by cosine similarity.
+ *
+ * Every node lives on level 0 and, with exponentially falling probability, on levels above it. A
+ * search descends greedily from the top level and runs a beam search of width efSearch on level
+ * 0. Neighbours are chosen with the diversity heuristic of the HNSW paper, at most m per level
+ * and 2m on level 0. Deleted nodes stay in the graph as tombstones so it stays connected, but are
+ * never returned. Vectors and links are kept in primitive arrays. Not thread-safe.
+ */
+public class HnswIndex {
+
+    private final int dim;
+    private final int m;
+    private final int maxM0;
+    private final double levelMult;
+    private int efConstruction;
+    private int efSearch = 64;
+    private final Random random;
+
+    private float[] vectors;
+    private int[] levels;
+    // per node: for each level a count followed by its neighbour slots (2m on level 0, m above)
+    private int[][] links;
+    private boolean[] deleted;
+    private int size = 0;
+    private int deletedCount = 0;
+
+    private int entryPoint = -1;
+    private int maxLevel = -1;
+
+    // search scratch, reused
+    private int[] visited = new int[0];
+    private int visitMark = 0;
+    private final NodeHeap candidates = new NodeHeap(false);
+    private final NodeHeap results = new NodeHeap(true);
+    private final NodeHeap selection = new NodeHeap(false);
+    private final NodeHeap linkPool = new NodeHeap(true);
+    private int[] selected = new int[0];
+    private int[] resultIds = new int[0];
+    private float[] resultDistances = new float[0];
+
+    public HnswIndex(int dim, int m, int efConstruction, long seed) {
+        this.dim = dim;
+        this.m = m;
+        this.maxM0 = 2 * m;
+        this.levelMult = 1.0 / Math.log(m);
+        this.efConstruction = efConstruction;
+        this.random = new Random(seed);
+        vectors = new float[16 * dim];
+        levels = new int[16];
+        links = new int[16][];
+        deleted = new boolean[16];
+    }
+
+    public HnswIndex(int dim) {
+        this(dim, 16, 64, 42);
+    }
+
+    /** Beam width of a search, larger is slower with better recall. At least k is used. */
+    public void setEfSearch(int efSearch) {
+        this.efSearch = efSearch;
+    }
+
+    public int getEfSearch() {
+        return efSearch;
+    }
+
+    public void setEfConstruction(int efConstruction) {
+        this.efConstruction = efConstruction;
+    }
+
+    /** Number of nodes including deleted ones. */
+    public int size() {
+        return size;
+    }
+
+    public int getDeletedCount() {
+        return deletedCount;
+    }
+
+    /**
+     * Inserts a normalised vector (dim floats at offset in source).
+     *
+     * @return the node id, assigned in insertion order
+     */
+    public int insert(float[] source, int offset) {
+        final int node = size;
+        ensureCapacity(node + 1);
+        System.arraycopy(source, offset, vectors, node * dim, dim);
+        final int level = (int) (-Math.log(1.0 - random.nextDouble()) * levelMult);
+        levels[node] = level;
+        links[node] = new int[1 + maxM0 + level * (1 + m)];
+        deleted[node] = false;
+        size++;
+
+        if (entryPoint < 0) {
+            entryPoint = node;
+            maxLevel = level;
+            return node;
+        }
+
+        int current = entryPoint;
+        for (int l = maxLevel; l > level; l--) {
+            current = greedyClosest(vectors, node * dim, current, l);
+        }
+        for (int l = Math.min(level, maxLevel); l >= 0; l--) {
+            searchLayer(vectors, node * dim, current, efConstruction, l);
+            current = results.bestId();
+            final int maxLinks = l == 0 ? maxM0 : m;
+            final int count = selectNeighbours(results, maxLinks);
+            final int base = linkBase(node, l);
+            links[node][base] = count;
+            for (int i = 0; i < count; i++) {
+                links[node][base + 1 + i] = selected[i];
+            }
+            // addLink reselects into selected, so walk the node's own copy
+            for (int i = 0; i < count; i++) {
+                addLink(links[node][base + 1 + i], node, l);
+            }
+        }
+
+        if (level > maxLevel) {
+            maxLevel = level;
+            entryPoint = node;
+        }
+        return node;
+    }
+
+    /** Excludes a node from search results. */
+    public void delete(int node) {
+        if (!deleted[node]) {
+            deleted[node] = true;
+            deletedCount++;
+        }
+    }
+
+    public boolean isDeleted(int node) {
+        return deleted[node];
+    }
+
+    /**
+     * Finds approximately the k nodes most similar to a normalised query.
+     *
+     * @param nodesOut  receives node ids, most similar first
+     * @param scoresOut receives their cosine similarity
+     * @return number of results
+     */
+    public int search(float[] query, int k, int[] nodesOut, float[] scoresOut) {
+        if (entryPoint < 0 || k <= 0) {
+            return 0;
+        }
+        int current = entryPoint;
+        for (int l = maxLevel; l > 0; l--) {
+            current = greedyClosest(query, 0, current, l);
+        }
+        searchLayer(query, 0, current, Math.max(efSearch, k), 0);
+
+        // results is a max-heap on distance, popping it yields the closest nodes last
+        final int n = results.size();
+        if (resultIds.length < n) {
+            resultIds = new int[n];
+            resultDistances = new float[n];
+        }
+        for (int i = n - 1; i >= 0; i--) {
+            resultIds[i] = results.topId();
+            resultDistances[i] = results.topDistance();
+            results.pop();
+        }
+        int found = 0;
+        for (int i = 0; i < n && found < k; i++) {
+            if (!deleted[resultIds[i]]) {
+                nodesOut[found] = resultIds[i];
+                scoresOut[found] = 1f - resultDistances[i];
+                found++;
+            }
+        }
+        return found;
+    }
+
+    // greedy walk on one level towards the query
+    private int greedyClosest(float[] query, int queryOffset, int start, int level) {
+        int current = start;
+        float currentDistance = distance(query, queryOffset, current);
+        boolean changed = true;
+        while (changed) {
+            changed = false;
+            final int[] nodeLinks = links[current];
+            final int base = linkBase(current, level);
+            final int count = nodeLinks[base];
+            for (int i = 1; i <= count; i++) {
+                final int neighbour = nodeLinks[base + i];
+                final float d = distance(query, queryOffset, neighbour);
+                if (d < currentDistance) {
+                    currentDistance = d;
+                    current = neighbour;
+                    changed = true;
+                }
+            }
+        }
+        return current;
+    }
+
+    // beam search on one level, leaves the ef closest nodes in results (a max-heap)
+    private void searchLayer(float[] query, int queryOffset, int start, int ef, int level) {
+        nextVisitMark();
+        candidates.clear();
+        results.clear();
+        final float startDistance = distance(query, queryOffset, start);
+        visited[start] = visitMark;
+        candidates.push(start, startDistance);
+        results.push(start, startDistance);
+
+        while (candidates.size() > 0) {
+            final int current = candidates.topId();
+            final float currentDistance = candidates.topDistance();
+            if (currentDistance > results.topDistance() && results.size() >= ef) {
+                break;
+            }
+            candidates.pop();
+
+            final int[] nodeLinks = links[current];
+            final int base = linkBase(current, level);
+            final int count = nodeLinks[base];
+            for (int i = 1; i <= count; i++) {
+                final int neighbour = nodeLinks[base + i];
+                if (visited[neighbour] == visitMark) {
+                    continue;
+                }
+                visited[neighbour] = visitMark;
+                final float d = distance(query, queryOffset, neighbour);
+                if (results.size() < ef || d < results.topDistance()) {
+                    candidates.push(neighbour, d);
+                    results.push(neighbour, d);
+                    if (results.size() > ef) {
+                        results.pop();
+                    }
+                }
+            }
+        }
+    }
+
+    // HNSW heuristic: take candidates closest first, skipping any that is closer to an already
+    // selected neighbour than to the query; leaves the choice in selected
+    private int selectNeighbours(NodeHeap heap, int maxLinks) {
+        selection.clear();
+        for (int i = 0; i < heap.size(); i++) {
+            selection.push(heap.ids[i], heap.distances[i]);
+        }
+        if (selected.length < maxLinks + 1) {
+            selected = new int[maxLinks + 1];
+        }
+        int count = 0;
+        while (selection.size() > 0 && count < maxLinks) {
+            final int candidate = selection.topId();
+            final float candidateDistance = selection.topDistance();
+            selection.pop();
+            boolean keep = true;
+            for (int i = 0; i < count; i++) {
+                if (distance(vectors, candidate * dim, selected[i]) < candidateDistance) {
+                    keep = false;
+                    break;
+                }
+            }
+            if (keep) {
+                selected[count++] = candidate;
+            }
+        }
+        return count;
+    }
+
+    // adds node to the neighbours of target, re-selecting target's neighbours when full
+    private void addLink(int target, int node, int level) {
+        final int[] targetLinks = links[target];
+        final int base = linkBase(target, level);
+        final int count = targetLinks[base];
+        final int maxLinks = level == 0 ? maxM0 : m;
+        if (count < maxLinks) {
+            targetLinks[base + 1 + count] = node;
+            targetLinks[base] = count + 1;
+            return;
+        }
+
+        NodeHeap pool = linkPool;
+        pool.clear();
+        final int targetOffset = target * dim;
+        for (int i = 1; i <= count; i++) {
+            final int neighbour = targetLinks[base + i];
+            pool.push(neighbour, distance(vectors, targetOffset, neighbour));
+        }
+        pool.push(node, distance(vectors, targetOffset, node));
+        final int kept = selectNeighbours(pool, maxLinks);
+        targetLinks[base] = kept;
+        for (int i = 0; i < kept; i++) {
+            targetLinks[base + 1 + i] = selected[i];
+        }
+    }
+
+    private int linkBase(int node, int level) {
+        return level == 0 ? 0 : 1 + maxM0 + (level - 1) * (1 + m);
+    }
+
+    // 1 - cosine similarity between the query and a node; four partial sums keep the
+    // multiply-adds independent of each other
+    private float distance(float[] query, int queryOffset, int node) {
+        final float[] v = vectors;
+        final int base = node * dim;
+        float dot0 = 0, dot1 = 0, dot2 = 0, dot3 = 0;
+        int i = 0;
+        for (; i + 3 < dim; i += 4) {
+            dot0 += query[queryOffset + i] * v[base + i];
+            dot1 += query[queryOffset + i + 1] * v[base + i + 1];
+            dot2 += query[queryOffset + i + 2] * v[base + i + 2];
+            dot3 += query[queryOffset + i + 3] * v[base + i + 3];
+        }
+        for (; i < dim; i++) {
+            dot0 += query[queryOffset + i] * v[base + i];
+        }
+        return 1f - (dot0 + dot1 + dot2 + dot3);
+    }
+
+    private void nextVisitMark() {
+        if (visited.length < size) {
+            visited = Arrays.copyOf(visited, Math.max(size, visited.length * 2));
+        }
+        if (++visitMark == Integer.MAX_VALUE) {
+            Arrays.fill(visited, 0);
+            visitMark = 1;
+        }
+    }
+
+    private void ensureCapacity(int capacity) {
+        if (capacity <= levels.length) {
+            return;
+        }
+        final int newCapacity = Math.max(capacity, levels.length * 2);
+        vectors = Arrays.copyOf(vectors, newCapacity * dim);
+        levels = Arrays.copyOf(levels, newCapacity);
+        links = Arrays.copyOf(links, newCapacity);
+        deleted = Arrays.copyOf(deleted, newCapacity);
+    }
+
+    /** Binary heap of (distance, node id) pairs in primitive arrays, min or max on distance. */
+    static final class NodeHeap {
+        private final boolean max;
+        int[] ids = new int[64];
+        float[] distances = new float[64];
+        private int size = 0;
+
+        NodeHeap(boolean max) {
+            this.max = max;
+        }
+
+        int size() {
+            return size;
+        }
+
+        void clear() {
+            size = 0;
+        }
+
+        int topId() {
+            return ids[0];
+        }
+
+        float topDistance() {
+            return distances[0];
+        }
+
+        // id of the closest node, a linear scan for a max-heap
+        int bestId() {
+            if (!max) {
+                return ids[0];
+            }
+            int best = 0;
+            for (int i = 1; i < size; i++) {
+                if (distances[i] < distances[best]) {
+                    best = i;
+                }
+            }
+            return ids[best];
+        }
+
+        void push(int id, float distance) {
+            if (size == ids.length) {
+                ids = Arrays.copyOf(ids, size * 2);
+                distances = Arrays.copyOf(distances, size * 2);
+            }
+            int i = size++;
+            while (i > 0) {
+                final int parent = (i - 1) >> 1;
+                if (!before(distance, distances[parent])) {
+                    break;
+                }
+                ids[i] = ids[parent];
+                distances[i] = distances[parent];
+                i = parent;
+            }
+            ids[i] = id;
+            distances[i] = distance;
+        }
+
+        void pop() {
+            size--;
+            if (size == 0) {
+                return;
+            }
+            final int id = ids[size];
+            final float distance = distances[size];
+            int i = 0;
+            while (true) {
+                int child = 2 * i + 1;
+                if (child >= size) {
+                    break;
+                }
+                if (child + 1 < size && before(distances[child + 1], distances[child])) {
+                    child++;
+                }
+                if (!before(distances[child], distance)) {
+                    break;
+                }
+                ids[i] = ids[child];
+                distances[i] = distances[child];
+                i = child;
+            }
+            ids[i] = id;
+            distances[i] = distance;
+        }
+
+        private boolean before(float a, float b) {
+            return max ? a > b : a < b;
+        }
+    }
+}
@@ -0,0 +1,112 @@
+package com.example.smartglasses;
+
+import android.graphics.Rect;
+import android.util.Log;
+
+import com.google.android.gms.tasks.Tasks;
+import com.google.mlkit.vision.common.InputImage;
+import com.google.mlkit.vision.face.Face;
+import com.google.mlkit.vision.face.FaceDetection;
+import com.google.mlkit.vision.face.FaceDetector;
+import com.google.mlkit.vision.face.FaceDetectorOptions;
+
+import org.opencv.core.Mat;
+
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+/**
+ * ML Kit face detection in fast or accurate mode.
+ *
+ * Only the gray frame is used: it is handed to ML Kit as the Y plane of an NV21 image with neutral
+ * chroma, which needs no colour conversion. Detection blocks until ML Kit answers, so this backend
+ * must not be used on the main thread.
+ */
+public class MlKitFaceBackend implements FaceDetectorBackend {
+
+    private static final String TAG = "MlKitFaceBackend";
+    private static final long TIMEOUT_MS = 1000;
+
+    private final FaceDetector detector;
+    private final boolean accurate;
+
+    private byte[] nv21 = new byte[0];
+    private int frameWidth, frameHeight;
+    private int[] boxes = new int[0];
+
+    public MlKitFaceBackend(boolean accurate) {
+        this.accurate = accurate;
+        FaceDetectorOptions options = new FaceDetectorOptions.Builder()
+                .setPerformanceMode(accurate
+                        ? FaceDetectorOptions.PERFORMANCE_MODE_ACCURATE
+                        : FaceDetectorOptions.PERFORMANCE_MODE_FAST)
+                .build();
+        detector = FaceDetection.getClient(options);
+    }
+
+    @Override
+    public String getName() {
+        return accurate ? "ML Kit accurate" : "ML Kit fast";
+    }
+
+    @Override
+    public int detect(Mat gray, Mat rgba) {
+        final int width = gray.cols();
+        final int height = gray.rows();
+        if (width != frameWidth || height != frameHeight) {
+            nv21 = new byte[width * height * 3 / 2];
+            Arrays.fill(nv21, width * height, nv21.length, (byte) 128);
+            frameWidth = width;
+            frameHeight = height;
+        }
+        // fills the Y plane only, the chroma part stays neutral
+        gray.get(0, 0, nv21);
+
+        List<Face> faces;
+        try {
+            InputImage image = InputImage.fromByteArray(nv21, width, height, 0, InputImage.IMAGE_FORMAT_NV21);
+            faces = Tasks.await(detector.process(image), TIMEOUT_MS, TimeUnit.MILLISECONDS);
+        } catch (ExecutionException | TimeoutException e) {
+            Log.e(TAG, "Face detection failed", e);
+            return 0;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return 0;
+        }
+
+        if (boxes.length < faces.size() * 4) {
+            boxes = new int[faces.size() * 4];
+        }
+        int count = 0;
+        for (int i = 0; i < faces.size(); i++) {
+            Rect box = faces.get(i).getBoundingBox();
+            final int left = Math.max(0, box.left);
+            final int top = Math.max(0, box.top);
+            final int right = Math.min(width, box.right);
+            final int bottom = Math.min(height, box.bottom);
+            // boxes entirely past the frame edge clip to nothing
+            if (right <= left || bottom <= top) {
+                continue;
+            }
+            boxes[4 * count] = left;
+            boxes[4 * count + 1] = top;
+            boxes[4 * count + 2] = right - left;
+            boxes[4 * count + 3] = bottom - top;
+            count++;
+        }
+        return count;
+    }
+
+    @Override
+    public int[] getBoxes() {
+        return boxes;
+    }
+
+    @Override
+    public void release() {
+        detector.close();
+    }
+}
@@ -0,0 +1,152 @@
+package com.example.smartglasses;
+
+import java.util.Arrays;
+
+/**
+ * Batched (class-aware) non maximum suppression over primitive box arrays.
+ *
+ * Candidates are sorted once by score. Boxes are then shifted by class id times the largest
+ * coordinate so that boxes of different classes can never overlap, which lets every class be
+ * suppressed in a single greedy sweep. Scratch arrays are kept between calls and only grow.
+ */
+public class NonMaxSuppression {
+
+    private float iouThresh;
+    private int preNmsTopK;
+    private int maxDetections;
+
+    // score/index keys sorted ascending, walked from the end
+    private long[] order = new long[0];
+
+    // offset coordinates and areas of the boxes kept so far
+    private float[] keptLeft = new float[0];
+    private float[] keptTop = new float[0];
+    private float[] keptRight = new float[0];
+    private float[] keptBottom = new float[0];
+    private float[] keptArea = new float[0];
+    private int[] keep = new int[0];
+
+    public NonMaxSuppression(float iouThresh, int preNmsTopK, int maxDetections) {
+        this.iouThresh = iouThresh;
+        this.preNmsTopK = preNmsTopK;
+        this.maxDetections = maxDetections;
+    }
+
+    public void setIouThresh(float iouThresh) {
+        this.iouThresh = iouThresh;
+    }
+
+    public float getIouThresh() {
+        return iouThresh;
+    }
+
+    /** Only the best preNmsTopK candidates take part in suppression, 0 or less means no cap. */
+    public void setPreNmsTopK(int preNmsTopK) {
+        this.preNmsTopK = preNmsTopK;
+    }
+
+    /** Suppression stops once this many boxes are kept, 0 or less means no cap. */
+    public void setMaxDetections(int maxDetections) {
+        this.maxDetections = maxDetections;
+    }
+
+    /**
+     * Runs suppression on candidates and replaces the contents of out with the surviving
+     * detections, best score first.
+     *
+     * @return number of detections kept
+     */
+    public int run(DetectionBuffer candidates, DetectionBuffer out) {
+        final int count = candidates.size();
+        ensureCapacity(count);
+        final int kept = run(candidates.left, candidates.top, candidates.right, candidates.bottom,
+                candidates.score, candidates.classId, count, keep);
+
+        out.clear();
+        for (int k = 0; k < kept; k++) {
+            final int i = keep[k];
+            out.add(candidates.left[i], candidates.top[i], candidates.right[i], candidates.bottom[i],
+                    candidates.score[i], candidates.classId[i]);
+        }
+        return kept;
+    }
+
+    /**
+     * Runs suppression on the first count candidates and writes the indices of the surviving
+     * boxes into keep, best score first.
+     *
+     * @return number of indices written into keep
+     */
+    public int run(float[] left, float[] top, float[] right, float[] bottom,
+                   float[] scores, int[] classes, int count, int[] keep) {
+        if (count == 0) {
+            return 0;
+        }
+        ensureCapacity(count);
+
+        float maxCoord = 0;
+        for (int i = 0; i < count; i++) {
+            order[i] = ((long) sortableBits(scores[i]) << 32) | i;
+            maxCoord = Math.max(maxCoord, Math.max(right[i], bottom[i]));
+        }
+        Arrays.sort(order, 0, count);
+
+        final float classOffset = maxCoord + 1;
+        final int candidates = preNmsTopK > 0 ? Math.min(count, preNmsTopK) : count;
+        final int limit = Math.min(keep.length, maxDetections > 0 ? maxDetections : count);
+
+        int kept = 0;
+        for (int n = 0; n < candidates && kept < limit; n++) {
+            final int i = (int) order[count - 1 - n];
+            final float offset = classes[i] * classOffset;
+            final float l = left[i] + offset;
+            final float t = top[i] + offset;
+            final float r = right[i] + offset;
+            final float b = bottom[i] + offset;
+            final float area = (r - l) * (b - t);
+
+            boolean suppressed = false;
+            for (int k = 0; k < kept; k++) {
+                final float iw = Math.min(r, keptRight[k]) - Math.max(l, keptLeft[k]);
+                if (iw <= 0) continue;
+                final float ih = Math.min(b, keptBottom[k]) - Math.max(t, keptTop[k]);
+                if (ih <= 0) continue;
+                final float inter = iw * ih;
+                final float union = area + keptArea[k] - inter;
+                if (union > 0 && inter / union >= iouThresh) {
+                    suppressed = true;
+                    break;
+                }
+            }
+            if (suppressed) continue;
+
+            keptLeft[kept] = l;
+            keptTop[kept] = t;
+            keptRight[kept] = r;
+            keptBottom[kept] = b;
+            keptArea[kept] = area;
+            keep[kept++] = i;
+        }
+        return kept;
+    }
+
+    private void ensureCapacity(int count) {
+        if (order.length >= count) {
+            return;
+        }
+        int capacity = Math.max(count, order.length * 2);
+        order = new long[capacity];
+        keptLeft = new float[capacity];
+        keptTop = new float[capacity];
+        keptRight = new float[capacity];
+        keptBottom = new float[capacity];
+        keptArea = new float[capacity];
+        keep = new int[capacity];
+    }
+
+    // maps a float onto an int whose signed ordering matches the float ordering
+    private static int sortableBits(float value) {
+        int bits = Float.floatToIntBits(value);
+        return bits ^ ((bits >> 31) & 0x7fffffff);
+    }
+}
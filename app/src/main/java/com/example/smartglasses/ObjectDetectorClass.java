@@ -2,14 +2,12 @@ package com.example.smartglasses;
 
 import android.content.res.AssetFileDescriptor;
 import android.content.res.AssetManager;
-import android.graphics.Bitmap;
-import android.graphics.RectF;
-import android.util.Log;
 
-import org.opencv.android.Utils;
+import org.opencv.core.CvType;
 import org.opencv.core.Mat;
 import org.opencv.core.Point;
 import org.opencv.core.Scalar;
+import org.opencv.core.Size;
 import org.opencv.imgproc.Imgproc;
 import org.tensorflow.lite.Interpreter;
 
@@ -19,13 +17,12 @@ import java.io.IOException;
 import java.io.InputStreamReader;
 import java.nio.ByteBuffer;
 import java.nio.ByteOrder;
+import java.nio.FloatBuffer;
 import java.nio.channels.FileChannel;
 import java.util.ArrayList;
-import java.util.Comparator;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
-import java.util.PriorityQueue;
 
 public class ObjectDetectorClass {
 
@@ -38,21 +35,72 @@ public class ObjectDetectorClass {
     protected static final int BATCH_SIZE = 1;
     protected static final int PIXEL_SIZE = 3;
 
+    private final int output_box;
+
+    // tensors and scratch space are allocated once and reused for every frame
+    private final ByteBuffer inputData;
     ByteBuffer outData;
+    private final Object[] input = new Object[1];
+    private final Map<Integer, Object> output_map = new HashMap<>();
+    private final FloatBuffer outFloats;
+    private final DetectionBuffer candidates = new DetectionBuffer(256);
+    private final DetectionBuffer results = new DetectionBuffer(MAX_DETECTIONS);
+
+    private static final Scalar BOX_COLOR = new Scalar(0, 255, 0, 255);
+    private static final Scalar TEXT_COLOR = new Scalar(255, 0, 0, 255);
+    private final Point topLeft = new Point();
+    private final Point bottomRight = new Point();
+
+    // preprocessing mats, inputTensor wraps the memory of inputData; created on the first frame
+    // because the detector may be built before the OpenCV native library is loaded
+    private Mat resizedRgba;
+    private Mat resizedRgb;
+    private Mat inputTensor;
+
+    // letterbox (aspect preserving) preprocessing, grey padding as used when training YOLOv5
+    private static final Scalar LETTERBOX_FILL = new Scalar(114 / 255.0, 114 / 255.0, 114 / 255.0);
+    private boolean letterbox = false;
+
+    // cached per camera resolution: where the frame goes in the tensor and how boxes map back
+    private int transformCols = -1;
+    private int transformRows = -1;
+    private final Size resizeSize = new Size();
+    private Mat tensorRoi;
+    private float scaleX, scaleY, offsetX, offsetY;
 
     ObjectDetectorClass(AssetManager assetManager, String modelPath, String labelPath, int inputSize) throws IOException {
+        this(loadModelFile(assetManager, modelPath), loadLabelList(assetManager, labelPath), inputSize, 4);
+    }
+
+    /**
+     * Creates a detector over an already loaded model. Several detectors can share the same
+     * memory-mapped model buffer, each with its own interpreter and tensors.
+     */
+    ObjectDetectorClass(ByteBuffer model, List<String> labels, int inputSize, int numThreads) {
         INPUT_SIZE = inputSize;
 
         Interpreter.Options options = new Interpreter.Options();
-        options.setNumThreads(4);
+        options.setNumThreads(numThreads);
 
         //loading model
-        interpreter = new Interpreter(loadModelFile(assetManager, modelPath), options);
-        // load labelmap
-        labels = loadLabelList(assetManager, labelPath);
+        interpreter = new Interpreter(model, options);
+        this.labels = labels;
+
+        output_box = (int) ((Math.pow((INPUT_SIZE / 32), 2) + Math.pow((INPUT_SIZE / 16), 2) + Math.pow((INPUT_SIZE / 8), 2)) * 3);
+        int numClass = labels.size();
+
+        inputData = ByteBuffer.allocateDirect(4 * BATCH_SIZE * INPUT_SIZE * INPUT_SIZE * PIXEL_SIZE);
+        inputData.order(ByteOrder.nativeOrder());
+        input[0] = inputData;
+
+        outData = ByteBuffer.allocateDirect(output_box * (numClass + 5) * 4);
+        outData.order(ByteOrder.nativeOrder());
+        output_map.put(0, outData);
+
+        outFloats = outData.asFloatBuffer();
     }
 
-    private List<String> loadLabelList(AssetManager assetManager, String labelPath) throws IOException {
+    static List<String> loadLabelList(AssetManager assetManager, String labelPath) throws IOException {
         List<String> labelList = new ArrayList<>();
         BufferedReader reader = new BufferedReader(new InputStreamReader(assetManager.open(labelPath)));
         String line;
@@ -63,7 +111,7 @@ public class ObjectDetectorClass {
         return labelList;
     }
 
-    private ByteBuffer loadModelFile(AssetManager assetManager, String modelPath) throws IOException {
+    static ByteBuffer loadModelFile(AssetManager assetManager, String modelPath) throws IOException {
         // use to get description of file
         AssetFileDescriptor fileDescriptor = assetManager.openFd(modelPath);
         FileInputStream inputStream = new FileInputStream(fileDescriptor.getFileDescriptor());
@@ -76,217 +124,182 @@ public class ObjectDetectorClass {
 
 
     public Mat recognizeImage(Mat mat_image){
+        drawDetections(mat_image, detect(mat_image));
+        return mat_image;
+    }
 
-        int output_box = (int) ((Math.pow((INPUT_SIZE / 32), 2) + Math.pow((INPUT_SIZE / 16), 2) + Math.pow((INPUT_SIZE / 8), 2)) * 3);
-
-
-        Bitmap bitmap;
-        bitmap=Bitmap.createBitmap(mat_image.cols(),mat_image.rows(),Bitmap.Config.ARGB_8888);
-        Utils.matToBitmap(mat_image,bitmap);
-        // define height and width
-        float height = bitmap.getHeight();
-        float width = bitmap.getWidth();
-
-        // scale the bitmap to input size of model
-        Bitmap scaledBitmap=Bitmap.createScaledBitmap(bitmap,INPUT_SIZE,INPUT_SIZE,false);
-
-        // convert bitmap to bytebuffer as model input should be in it
-        ByteBuffer byteBuffer2=convertBitmapToByteBuffer(scaledBitmap);
+    /**
+     * Runs the model on an RGBA frame and returns the detections after NMS, in frame
+     * coordinates. The returned buffer is owned by the detector and overwritten by the next call.
+     */
+    public DetectionBuffer detect(Mat mat_image){
 
-        // defining output
-        //  float[][][]result=new float[1][10][4];
-        Object[] input=new Object[1];
-        input[0]=byteBuffer2;
+        final float height = mat_image.rows();
+        final float width = mat_image.cols();
+        if (mat_image.cols() != transformCols || mat_image.rows() != transformRows) {
+            updateTransform(mat_image.cols(), mat_image.rows());
+        }
 
-        Map<Integer, Object> output_map = new HashMap<>();
+        // resize, drop alpha and normalise straight into the interpreter input buffer;
+        // in letterbox mode only the image area of the tensor is written, the padding is filled once
+        Imgproc.resize(mat_image, resizedRgba, resizeSize, 0, 0, Imgproc.INTER_LINEAR);
+        Imgproc.cvtColor(resizedRgba, resizedRgb, Imgproc.COLOR_RGBA2RGB);
+        resizedRgb.convertTo(tensorRoi, CvType.CV_32FC3, 1.0 / 255.0);
 
-        int numClass = labels.size();
-        outData = ByteBuffer.allocateDirect(output_box * (numClass + 5) * 4);
-        outData.order(ByteOrder.nativeOrder());
         outData.rewind();
-        output_map.put(0, outData);
-
 
         // predict
         interpreter.runForMultipleInputsOutputs(input,output_map);
 
 
-        ByteBuffer byteBuffer = (ByteBuffer) output_map.get(0);
-        byteBuffer.rewind();
+        candidates.clear();
 
-        ArrayList<Recognition> detections = new ArrayList<>();
-
-        float[][][] out = new float[1][output_box][numClass + 5];
-        Log.d("YoloV5Classifier", "out[0] detect start");
-        for (int i = 0; i < output_box; ++i) {
-            for (int j = 0; j < 15 + 5; ++j) {
-                out[0][i][j] = byteBuffer.getFloat();
-            }
-            // Denormalize x y w h
-            for (int j = 0; j < 4; ++j) {
-                out[0][i][j] *= INPUT_SIZE;
-            }
-        }
+        // single pass over the output rows: class scores are sigmoid outputs (<= 1), so a row whose
+        // objectness is already below the threshold can never pass and its classes are not read
+        final int numClass = labels.size();
+        final int stride = numClass + 5;
         for (int i = 0; i < output_box; ++i){
-            final int offset = 0;
-            final float confidence = out[0][i][4];
+            final int base = i * stride;
+            final float confidence = outFloats.get(base + 4);
+            if (confidence < objThresh) {
+                continue;
+            }
             int detectedClass = -1;
             float maxClass = 0;
 
-            final float[] classes = new float[labels.size()];
-            for (int c = 0; c < labels.size(); ++c) {
-                classes[c] = out[0][i][5 + c];
-            }
-
-            for (int c = 0; c < labels.size(); ++c) {
-                if (classes[c] > maxClass) {
+            for (int c = 0; c < numClass; ++c) {
+                final float score = outFloats.get(base + 5 + c);
+                if (score > maxClass) {
                     detectedClass = c;
-                    maxClass = classes[c];
+                    maxClass = score;
                 }
             }
 
             final float confidenceInClass = maxClass * confidence;
             if (confidenceInClass > objThresh) {
-                final float xPos = out[0][i][0];
-                final float yPos = out[0][i][1];
-
-                final float w = out[0][i][2];
-                final float h = out[0][i][3];
-                Log.d("YoloV5Classifier",
-                        Float.toString(xPos) + ',' + yPos + ',' + w + ',' + h);
-
-//                final RectF rect =
-//                        new RectF(
-//                                Math.max(0, xPos - w / 2),
-//                                Math.max(0, yPos - h / 2),
-//                                Math.min(bitmap.getWidth() - 1, xPos + w / 2),
-//                                Math.min(bitmap.getHeight() - 1, yPos + h / 2));
-                float wRatio = width /INPUT_SIZE;
-                float hRatio = height /INPUT_SIZE;
-                final RectF rect =
-                        new RectF(
-                                Math.max(0, (xPos - w / 2)*wRatio),
-                                Math.max(0, (yPos - h / 2)*hRatio),
-                                Math.min(bitmap.getWidth() - 1, (xPos + w / 2)*wRatio),
-                                Math.min(bitmap.getHeight() - 1, (yPos + h / 2)*hRatio));
-                detections.add(new Recognition("" + offset, labels.get(detectedClass),
-                        confidenceInClass, rect, detectedClass));
-                Log.d("Class Detection: ", "class: " + labels.get(detectedClass) + " conf: " + confidenceInClass +
-                        " Rect: " + rect + "DetectedClass: " + detectedClass);
+                // Denormalize x y w h
+                final float xPos = outFloats.get(base) * INPUT_SIZE;
+                final float yPos = outFloats.get(base + 1) * INPUT_SIZE;
+
+                final float w = outFloats.get(base + 2) * INPUT_SIZE;
+                final float h = outFloats.get(base + 3) * INPUT_SIZE;
+
+                candidates.add(
+                        Math.max(0, (xPos - w / 2)*scaleX + offsetX),
+                        Math.max(0, (yPos - h / 2)*scaleY + offsetY),
+                        Math.min(width - 1, (xPos + w / 2)*scaleX + offsetX),
+                        Math.min(height - 1, (yPos + h / 2)*scaleY + offsetY),
+                        confidenceInClass, detectedClass);
             }
         }
 
-        Log.d("YoloV5Classifier", "detect end");
-        final ArrayList<Recognition> recognitions = nms(detections);
-        ///////////////////////////////////////////////////////return recognitions;
+        nms(candidates, results);
+        return results;
+    }
 
+    /**
+     * Keeps the aspect ratio of the camera frame and pads the rest of the model input instead
+     * of stretching the frame to a square.
+     */
+    public void setLetterbox(boolean letterbox){
+        if (this.letterbox != letterbox) {
+            this.letterbox = letterbox;
+            transformCols = -1;
+            transformRows = -1;
+        }
+    }
 
-        for(Recognition result : recognitions){
-            final RectF location = result.getLocation();
-            Log.d("Rectangle D", "left: " + location.left + " top: " + location.top + " right: " + location.right + " bottom: " + location.bottom);
-            if (location != null && result.getConfidence() >= objThresh) {
+    public boolean isLetterbox(){
+        return letterbox;
+    }
 
-                Log.d("rect info", "top: " + location.top + " left: " + location.left + " bottom: " + location.bottom + " right: " + location.right);
+    // computes the frame -> tensor placement and the tensor -> frame box mapping for a resolution
+    private void updateTransform(int cols, int rows){
+        transformCols = cols;
+        transformRows = rows;
+        if (inputTensor == null) {
+            resizedRgba = new Mat();
+            resizedRgb = new Mat();
+            inputTensor = new Mat(INPUT_SIZE, INPUT_SIZE, CvType.CV_32FC3, inputData);
+        }
+        if (tensorRoi != null && tensorRoi != inputTensor) {
+            tensorRoi.release();
+        }
 
-                Imgproc.rectangle(mat_image,new Point(location.left, location.top),new Point(location.right,location.bottom),new Scalar(0, 255, 0, 255),2);
-                Imgproc.putText(mat_image,result.getTitle(),new Point(location.left,location.top),3,1,new Scalar(255, 0, 0, 255),2);
-            }
+        if (letterbox) {
+            final float scale = Math.min((float) INPUT_SIZE / cols, (float) INPUT_SIZE / rows);
+            final int newWidth = Math.min(INPUT_SIZE, Math.round(cols * scale));
+            final int newHeight = Math.min(INPUT_SIZE, Math.round(rows * scale));
+            final int padX = (INPUT_SIZE - newWidth) / 2;
+            final int padY = (INPUT_SIZE - newHeight) / 2;
+
+            inputTensor.setTo(LETTERBOX_FILL);
+            tensorRoi = inputTensor.submat(padY, padY + newHeight, padX, padX + newWidth);
+            resizeSize.width = newWidth;
+            resizeSize.height = newHeight;
+            scaleX = (float) cols / newWidth;
+            scaleY = (float) rows / newHeight;
+            offsetX = -padX * scaleX;
+            offsetY = -padY * scaleY;
+        } else {
+            tensorRoi = inputTensor;
+            resizeSize.width = INPUT_SIZE;
+            resizeSize.height = INPUT_SIZE;
+            scaleX = (float) cols / INPUT_SIZE;
+            scaleY = (float) rows / INPUT_SIZE;
+            offsetX = 0;
+            offsetY = 0;
         }
-        return mat_image;
     }
 
-
-    protected ByteBuffer convertBitmapToByteBuffer(Bitmap bitmap) {
-        ByteBuffer byteBuffer = ByteBuffer.allocateDirect(4 * BATCH_SIZE * INPUT_SIZE * INPUT_SIZE * PIXEL_SIZE);
-        byteBuffer.order(ByteOrder.nativeOrder());
-        int[] intValues = new int[INPUT_SIZE * INPUT_SIZE];
-        bitmap.getPixels(intValues, 0, bitmap.getWidth(), 0, 0, bitmap.getWidth(), bitmap.getHeight());
-        int pixel = 0;
-        for (int i = 0; i < INPUT_SIZE; ++i) {
-            for (int j = 0; j < INPUT_SIZE; ++j) {
-                final int val = intValues[pixel++];
-                byteBuffer.putFloat(((val >> 16) & 0xFF) / 255.0f);
-                byteBuffer.putFloat(((val >> 8) & 0xFF) / 255.0f);
-                byteBuffer.putFloat((val & 0xFF) / 255.0f);
+    /** Draws boxes and titles of the given detections onto an RGBA frame. */
+    public void drawDetections(Mat mat_image, DetectionBuffer detections){
+        for (int i = 0; i < detections.size(); i++) {
+            if (detections.getScore(i) >= objThresh) {
+                topLeft.x = detections.getLeft(i);
+                topLeft.y = detections.getTop(i);
+                bottomRight.x = detections.getRight(i);
+                bottomRight.y = detections.getBottom(i);
+
+                Imgproc.rectangle(mat_image,topLeft,bottomRight,BOX_COLOR,2);
+                Imgproc.putText(mat_image,labels.get(detections.getClassId(i)),topLeft,3,1,TEXT_COLOR,2);
             }
         }
-        return byteBuffer;
     }
 
+    /** Recognition views of the detections returned by the last {@link #detect} call. */
+    public List<Recognition> getRecognitions(){
+        return results.toRecognitions(labels);
+    }
 
-    //non maximum suppression
-    protected ArrayList<Recognition> nms(ArrayList<Recognition> list) {
-        ArrayList<Recognition> nmsList = new ArrayList<>();
-
-        for (int k = 0; k < labels.size(); k++) {
-            //1.find max confidence per class
-            PriorityQueue<Recognition> pq =
-                    new PriorityQueue<>(
-                            50,
-                            new Comparator<Recognition>() {
-                                @Override
-                                public int compare(final Recognition lhs, final Recognition rhs) {
-                                    // Intentionally reversed to put high confidence at the head of the queue.
-                                    return Float.compare(rhs.getConfidence(), lhs.getConfidence());
-                                }
-                            });
-
-            for (int i = 0; i < list.size(); ++i) {
-                if (list.get(i).getDetectedClass() == k) {
-                    pq.add(list.get(i));
-                }
-            }
+    public List<String> getLabels(){
+        return labels;
+    }
 
-            //2.do non maximum suppression
-            while (pq.size() > 0) {
-                //insert detection with max confidence
-                Recognition[] a = new Recognition[pq.size()];
-                Recognition[] detections = pq.toArray(a);
-                Recognition max = detections[0];
-                nmsList.add(max);
-                pq.clear();
-
-                for (int j = 1; j < detections.length; j++) {
-                    Recognition detection = detections[j];
-                    RectF b = detection.getLocation();
-                    if (box_iou(max.getLocation(), b) < mNmsThresh) {
-                        pq.add(detection);
-                    }
-                }
+    public void close(){
+        interpreter.close();
+        if (inputTensor != null) {
+            if (tensorRoi != inputTensor) {
+                tensorRoi.release();
             }
+            inputTensor.release();
+            resizedRgba.release();
+            resizedRgb.release();
         }
-        return nmsList;
     }
 
-    protected float mNmsThresh = 0.6f;
 
-    protected float box_iou(RectF a, RectF b) {
-        return box_intersection(a, b) / box_union(a, b);
-    }
-
-    protected float box_intersection(RectF a, RectF b) {
-        float w = overlap((a.left + a.right) / 2, a.right - a.left,
-                (b.left + b.right) / 2, b.right - b.left);
-        float h = overlap((a.top + a.bottom) / 2, a.bottom - a.top,
-                (b.top + b.bottom) / 2, b.bottom - b.top);
-        if (w < 0 || h < 0) return 0;
-        return w * h; //Area
+    //non maximum suppression
+    protected void nms(DetectionBuffer candidates, DetectionBuffer results) {
+        nonMaxSuppression.setIouThresh(mNmsThresh);
+        nonMaxSuppression.run(candidates, results);
     }
 
-    protected float box_union(RectF a, RectF b) {
-        float i = box_intersection(a, b);
-        return  (a.right - a.left) * (a.bottom - a.top) + (b.right - b.left) * (b.bottom - b.top) - i;
-    }
+    protected float mNmsThresh = 0.6f;
+    protected static final int PRE_NMS_TOP_K = 1000;
+    protected static final int MAX_DETECTIONS = 100;
 
-    protected float overlap(float x1, float w1, float x2, float w2) {
-        float l1 = x1 - w1 / 2;
-        float l2 = x2 - w2 / 2;
-        float left = Math.max(l1, l2);
-        float r1 = x1 + w1 / 2;
-        float r2 = x2 + w2 / 2;
-        float right = Math.min(r1, r2);
-        return right - left;
-    }
+    private final NonMaxSuppression nonMaxSuppression = new NonMaxSuppression(mNmsThresh, PRE_NMS_TOP_K, MAX_DETECTIONS);
 
 
 }
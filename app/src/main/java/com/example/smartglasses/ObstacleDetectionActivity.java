@@ -18,6 +18,8 @@ import org.opencv.core.CvType;
 import org.opencv.core.Mat;
 
 import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.List;
 
 public class ObstacleDetectionActivity extends AppCompatActivity implements CameraBridgeViewBase.CvCameraViewListener2{
 
@@ -28,6 +30,22 @@ public class ObstacleDetectionActivity extends AppCompatActivity implements Came
 
     private ObjectDetectorClass objectDetectorClass;
 
+    // run inference on a worker thread and draw the latest finished result on every frame
+    private boolean asyncInference = true;
+    private AsyncObstacleDetector asyncDetector;
+    // on 8+ core devices several interpreters work on consecutive frames in parallel
+    private ObjectDetectorClass[] detectorPool;
+    private final DetectionBuffer drawnDetections = new DetectionBuffer(ObjectDetectorClass.MAX_DETECTIONS);
+
+    // run the detector only every few frames and follow obstacles with optical flow in between
+    private boolean trackingMode = true;
+    private ObstacleTracker tracker;
+    private long lastTrackedSeq = 0;
+
+    // skip inference while the scene in front of the wearer does not change
+    private boolean sceneGating = true;
+    private SceneChangeGate sceneGate;
+
 
     @Override
     protected void onCreate(Bundle savedInstanceState) {
@@ -39,7 +57,25 @@ public class ObstacleDetectionActivity extends AppCompatActivity implements Came
 
 
         try{
-            objectDetectorClass = new ObjectDetectorClass(getAssets(), "obstacles_detection.tflite", "labelmap.txt",416);
+            int cores = Runtime.getRuntime().availableProcessors();
+            int poolSize = asyncInference && cores >= 8 ? 2 : 1;
+            detectorPool = new ObjectDetectorClass[poolSize];
+            if (poolSize == 1) {
+                detectorPool[0] = new ObjectDetectorClass(getAssets(), "obstacles_detection.tflite", "labelmap.txt",416);
+            } else {
+                // all interpreters share the memory-mapped model, leaving two cores for camera and UI
+                ByteBuffer model = ObjectDetectorClass.loadModelFile(getAssets(), "obstacles_detection.tflite");
+                List<String> labels = ObjectDetectorClass.loadLabelList(getAssets(), "labelmap.txt");
+                int threads = Math.max(1, (cores - 2) / poolSize);
+                for (int i = 0; i < poolSize; i++) {
+                    detectorPool[i] = new ObjectDetectorClass(model, labels, 416, threads);
+                }
+            }
+            for (ObjectDetectorClass detector : detectorPool) {
+                detector.setLetterbox(true);
+            }
+            objectDetectorClass = detectorPool[0];
+            asyncDetector = new AsyncObstacleDetector(detectorPool);
             Log.d("ObstacleDetection", "Model is successfully loaded");
         }catch (IOException e){
             Log.d("ObstacleDetection", "Getting some error loading modle  ");
@@ -67,24 +103,109 @@ public class ObstacleDetectionActivity extends AppCompatActivity implements Came
     public void onCameraViewStarted(int width, int height) {
         mRgba = new Mat();
         mGrey = new Mat();
+        if (asyncInference && asyncDetector != null) {
+            asyncDetector.start();
+        }
+        if (sceneGating) {
+            sceneGate = new SceneChangeGate();
+        }
+        if (trackingMode && objectDetectorClass != null) {
+            tracker = new ObstacleTracker(objectDetectorClass.getLabels());
+            lastTrackedSeq = 0;
+        }
     }
 
     @Override
     public void onCameraViewStopped() {
+        if (asyncDetector != null) {
+            asyncDetector.stop();
+        }
+        if (tracker != null) {
+            tracker.release();
+            tracker = null;
+        }
+        if (sceneGate != null) {
+            sceneGate.release();
+            sceneGate = null;
+        }
         mRgba.release();
         mGrey.release();
     }
 
+    @Override
+    protected void onDestroy() {
+        super.onDestroy();
+        if (asyncDetector != null) {
+            asyncDetector.release();
+        }
+        if (detectorPool != null) {
+            for (ObjectDetectorClass detector : detectorPool) {
+                detector.close();
+            }
+        }
+    }
+
     @Override
     public Mat onCameraFrame(CameraBridgeViewBase.CvCameraViewFrame inputFrame) {
 
         mRgba = inputFrame.rgba();
         mGrey = inputFrame.gray();
 
-        Mat out = new Mat();
-        out = objectDetectorClass.recognizeImage(mRgba);
+        if (tracker != null) {
+            return trackFrame();
+        }
+
+        final boolean sceneChanged = sceneGate == null || sceneGate.shouldRun(mGrey);
+
+        if (asyncInference && asyncDetector != null) {
+            if (sceneChanged) {
+                asyncDetector.submit(mRgba);
+            } else {
+                asyncDetector.keepLatest();
+            }
+            asyncDetector.getLatest(drawnDetections);
+            objectDetectorClass.drawDetections(mRgba, drawnDetections);
+            return mRgba;
+        }
+
+        // an unchanged scene reuses the previous result
+        if (sceneChanged) {
+            drawnDetections.copyFrom(objectDetectorClass.detect(mRgba));
+        }
+        objectDetectorClass.drawDetections(mRgba, drawnDetections);
+        return mRgba;
+    }
+
+    private Mat trackFrame() {
+        DetectionBuffer detections = null;
+        // while the scene is unchanged the tracks are kept alive by optical flow alone
+        final boolean detect = tracker.needsDetection() && (sceneGate == null || sceneGate.shouldRun(mGrey));
+        if (asyncInference && asyncDetector != null) {
+            // only frames a worker is free to run are submitted and remembered, so a result's frame
+            // is still remembered when it arrives however long inference takes
+            long submitted = detect ? asyncDetector.submitIfIdle(mRgba) : 0;
+            // feed each finished detector result to the tracker exactly once, moved forward from
+            // the frame it was computed on
+            long seq = asyncDetector.getLatest(drawnDetections);
+            long detectionFrame = 0;
+            if (seq > lastTrackedSeq) {
+                lastTrackedSeq = seq;
+                detections = drawnDetections;
+                detectionFrame = seq == submitted ? 0 : seq;
+            }
+            tracker.update(mGrey, detections, detectionFrame);
+            if (submitted != 0) {
+                tracker.rememberFrame(submitted);
+            }
+        } else {
+            if (detect) {
+                detections = objectDetectorClass.detect(mRgba);
+            }
+            tracker.update(mGrey, detections);
+        }
 
-        return out;
+        tracker.drawTracks(mRgba);
+        return mRgba;
     }
 
     private BaseLoaderCallback mLoaderCallback = new BaseLoaderCallback(this) {
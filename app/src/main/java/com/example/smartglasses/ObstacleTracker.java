@@ -0,0 +1,588 @@
+package com.example.smartglasses;
+
+import org.opencv.core.Core;
+import org.opencv.core.CvType;
+import org.opencv.core.Mat;
+import org.opencv.core.MatOfByte;
+import org.opencv.core.MatOfFloat;
+import org.opencv.core.MatOfPoint2f;
+import org.opencv.core.Point;
+import org.opencv.core.Scalar;
+import org.opencv.core.Size;
+import org.opencv.imgproc.Imgproc;
+import org.opencv.video.KalmanFilter;
+import org.opencv.video.Video;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Keeps obstacle boxes alive between detector runs.
+ *
+ * The detector only has to run every {@link #setDetectEvery N} frames, or sooner when optical
+ * flow loses too many of a track's points. In between, every track is moved by the median
+ * Lucas-Kanade flow of a grid of points inside its box (on a downscaled gray frame) and smoothed
+ * with a constant-velocity Kalman filter. Detections are matched to tracks by IoU, so each
+ * obstacle keeps the same id for as long as it is seen. Detections computed asynchronously on an
+ * earlier frame (see {@link #rememberFrame}) are first moved forward to the current frame by the
+ * flow between the two, so they are compared and fused with boxes of the same moment.
+ */
+public class ObstacleTracker {
+
+    private static final int GRID = 4;
+    private static final int POINTS_PER_TRACK = GRID * GRID;
+    private static final int FLOW_MAX_WIDTH = 480;
+    // frames kept for detections that arrive late; must be at least the number of frames in
+    // flight, which AsyncObstacleDetector.submitIfIdle bounds by its worker count
+    static final int REMEMBERED_FRAMES = 4;
+
+    private static final Scalar BOX_COLOR = new Scalar(0, 255, 0, 255);
+    private static final Scalar TEXT_COLOR = new Scalar(255, 0, 0, 255);
+
+    private final List<String> labels;
+
+    private int detectEvery = 5;
+    private float minTrackedFraction = 0.5f;
+    private float matchIou = 0.3f;
+    private int maxMissedDetections = 2;
+
+    private final List<Track> tracks = new ArrayList<>();
+    // dropped tracks keep their Kalman filter for the next new obstacle
+    private final List<Track> freeTracks = new ArrayList<>();
+    private int nextId = 1;
+    // counts up to detectEvery only, so a tracker without any detection yet keeps asking for one
+    private int framesSinceDetection = Integer.MAX_VALUE;
+    private boolean trackingLost = false;
+    private long detectorRuns = 0;
+    private long trackedFrames = 0;
+
+    // optical flow state
+    private final Mat prevGray = new Mat();
+    private final Mat currGray = new Mat();
+    private final Size flowSize = new Size();
+    private float flowScale = 1f;
+    private final MatOfPoint2f prevPts = new MatOfPoint2f();
+    private final MatOfPoint2f nextPts = new MatOfPoint2f();
+    private final MatOfByte status = new MatOfByte();
+    private final MatOfFloat err = new MatOfFloat();
+    private final Size winSize = new Size(15, 15);
+    private float[] prevCoords = new float[0];
+    private float[] nextCoords = new float[0];
+    private byte[] statusBytes = new byte[0];
+    private final float[] dx = new float[POINTS_PER_TRACK];
+    private final float[] dy = new float[POINTS_PER_TRACK];
+    private final float[] scales = new float[POINTS_PER_TRACK];
+    private final int[] goodIndex = new int[POINTS_PER_TRACK];
+    private final Size lateWinSize = new Size(21, 21);
+
+    // flow images of frames detections were requested on, by frame key
+    private final Mat[] rememberedGray = new Mat[REMEMBERED_FRAMES];
+    private final long[] rememberedKeys = new long[REMEMBERED_FRAMES];
+    private int nextRemembered = 0;
+    private final DetectionBuffer forwarded = new DetectionBuffer(ObjectDetectorClass.MAX_DETECTIONS);
+    private long lateDetections = 0;
+    private long expiredDetections = 0;
+
+    // Kalman model shared by all tracks, the filter only reads these
+    private final Mat transition = Mat.eye(8, 8, CvType.CV_32F);
+    private final Mat measurementMatrix = Mat.eye(4, 8, CvType.CV_32F);
+    private final Mat processNoise = new Mat(8, 8, CvType.CV_32F);
+    private final Mat measurementNoise = new Mat(4, 4, CvType.CV_32F);
+
+    // association scratch
+    private boolean[] detectionUsed = new boolean[0];
+
+    // output
+    private final DetectionBuffer output = new DetectionBuffer(ObjectDetectorClass.MAX_DETECTIONS);
+    private final Point topLeft = new Point();
+    private final Point bottomRight = new Point();
+
+    public ObstacleTracker(List<String> labels) {
+        this.labels = labels;
+        // state: cx, cy, w, h and their per-frame velocities
+        for (int i = 0; i < 4; i++) {
+            transition.put(i, i + 4, 1.0);
+        }
+        Core.setIdentity(processNoise, new Scalar(1e-2));
+        Core.setIdentity(measurementNoise, new Scalar(1e-1));
+    }
+
+    /** Run the detector at least every detectEvery frames. */
+    public void setDetectEvery(int detectEvery) {
+        this.detectEvery = Math.max(1, detectEvery);
+    }
+
+    /** Ask for a detection as soon as a track keeps less than this fraction of its flow points. */
+    public void setMinTrackedFraction(float minTrackedFraction) {
+        this.minTrackedFraction = minTrackedFraction;
+    }
+
+    public void setMatchIou(float matchIou) {
+        this.matchIou = matchIou;
+    }
+
+    /** A track that no detection confirmed this many times in a row is dropped. */
+    public void setMaxMissedDetections(int maxMissedDetections) {
+        this.maxMissedDetections = maxMissedDetections;
+    }
+
+    public boolean needsDetection() {
+        return framesSinceDetection >= detectEvery || trackingLost;
+    }
+
+    public long getDetectorRuns() {
+        return detectorRuns;
+    }
+
+    public long getTrackedFrames() {
+        return trackedFrames;
+    }
+
+    /** Detections that were moved forward from an earlier frame. */
+    public long getLateDetections() {
+        return lateDetections;
+    }
+
+    /** Late detections dropped because their frame was no longer remembered. */
+    public long getExpiredDetections() {
+        return expiredDetections;
+    }
+
+    /**
+     * Advances all tracks to the given gray frame and, if detections (in frame coordinates) are
+     * given, associates them with the tracks.
+     */
+    public void update(Mat gray, DetectionBuffer detections) {
+        update(gray, detections, 0);
+    }
+
+    /**
+     * Like {@link #update(Mat, DetectionBuffer)}, for detections computed on the frame remembered
+     * under detectionFrame, or on this frame if detectionFrame is 0. Detections whose frame is no
+     * longer remembered are ignored.
+     */
+    public void update(Mat gray, DetectionBuffer detections, long detectionFrame) {
+        if (gray.cols() > FLOW_MAX_WIDTH) {
+            flowScale = (float) FLOW_MAX_WIDTH / gray.cols();
+            flowSize.width = FLOW_MAX_WIDTH;
+            flowSize.height = Math.round(gray.rows() * flowScale);
+            Imgproc.resize(gray, currGray, flowSize, 0, 0, Imgproc.INTER_AREA);
+        } else {
+            flowScale = 1f;
+            gray.copyTo(currGray);
+        }
+
+        if (!tracks.isEmpty() && prevGray.size().equals(currGray.size())) {
+            propagate();
+        }
+
+        if (detections != null && detectionFrame != 0) {
+            Mat then = remembered(detectionFrame);
+            if (then != null && then.size().equals(currGray.size())) {
+                forward(then, detections);
+                detections = forwarded;
+                lateDetections++;
+            } else {
+                detections = null;
+                expiredDetections++;
+            }
+        }
+
+        if (detections != null) {
+            associate(detections);
+            framesSinceDetection = 0;
+            trackingLost = false;
+            detectorRuns++;
+        } else {
+            if (framesSinceDetection < detectEvery) {
+                framesSinceDetection++;
+            }
+            trackedFrames++;
+        }
+
+        currGray.copyTo(prevGray);
+        fillOutput();
+    }
+
+    /**
+     * Keeps the frame last passed to update under key, so detections computed on it later can be
+     * moved forward. Only the last {@link #REMEMBERED_FRAMES} frames are kept, so only frames that
+     * are sure to be run should be remembered, not every frame offered to a busy detector.
+     */
+    public void rememberFrame(long key) {
+        if (rememberedGray[nextRemembered] == null) {
+            rememberedGray[nextRemembered] = new Mat();
+        }
+        prevGray.copyTo(rememberedGray[nextRemembered]);
+        rememberedKeys[nextRemembered] = key;
+        nextRemembered = (nextRemembered + 1) % REMEMBERED_FRAMES;
+    }
+
+    /** Current track boxes in frame coordinates, parallel to {@link #getTrackId}. */
+    public DetectionBuffer getTracks() {
+        return output;
+    }
+
+    public int getTrackId(int i) {
+        return tracks.get(i).id;
+    }
+
+    public void drawTracks(Mat rgba) {
+        for (int i = 0; i < tracks.size(); i++) {
+            Track track = tracks.get(i);
+            topLeft.x = track.left;
+            topLeft.y = track.top;
+            bottomRight.x = track.right;
+            bottomRight.y = track.bottom;
+            Imgproc.rectangle(rgba, topLeft, bottomRight, BOX_COLOR, 2);
+            Imgproc.putText(rgba, track.caption, topLeft, 3, 1, TEXT_COLOR, 2);
+        }
+    }
+
+    public void reset() {
+        freeTracks.addAll(tracks);
+        tracks.clear();
+        output.clear();
+        framesSinceDetection = Integer.MAX_VALUE;
+        trackingLost = false;
+        Arrays.fill(rememberedKeys, 0);
+    }
+
+    public void release() {
+        reset();
+        for (Track track : freeTracks) {
+            track.release();
+        }
+        freeTracks.clear();
+        transition.release();
+        measurementMatrix.release();
+        processNoise.release();
+        measurementNoise.release();
+        for (Mat frame : rememberedGray) {
+            if (frame != null) {
+                frame.release();
+            }
+        }
+        forwarded.clear();
+        prevGray.release();
+        currGray.release();
+        prevPts.release();
+        nextPts.release();
+        status.release();
+        err.release();
+    }
+
+    private void propagate() {
+        final int n = tracks.size() * POINTS_PER_TRACK;
+        ensureCoords(n);
+
+        // sample a grid of points inside every (slightly shrunk) box, in flow image coordinates
+        int p = 0;
+        for (int t = 0; t < tracks.size(); t++) {
+            Track track = tracks.get(t);
+            p = sampleGrid(track.left, track.top, track.right, track.bottom, p);
+        }
+        flow(prevGray, n, winSize, 2);
+
+        for (int t = 0; t < tracks.size(); t++) {
+            Track track = tracks.get(t);
+            final int good = trackedPoints(t * POINTS_PER_TRACK);
+
+            track.predict();
+            if (good < POINTS_PER_TRACK * minTrackedFraction) {
+                // too few points followed the object, coast on the Kalman prediction
+                trackingLost = true;
+                track.applyPrediction();
+                continue;
+            }
+
+            final float scale = scaleChange(good);
+            final float cx = (track.left + track.right) / 2 + median(dx, good) / flowScale;
+            final float cy = (track.top + track.bottom) / 2 + median(dy, good) / flowScale;
+            final float w = (track.right - track.left) * scale;
+            final float h = (track.bottom - track.top) * scale;
+            track.correct(cx, cy, w, h);
+        }
+    }
+
+    // moves detections made on an earlier frame to the current one, into forwarded; detections
+    // that flow cannot follow are kept where they were
+    private void forward(Mat then, DetectionBuffer detections) {
+        final int count = detections.size();
+        final int n = count * POINTS_PER_TRACK;
+        ensureCoords(n);
+        int p = 0;
+        for (int d = 0; d < count; d++) {
+            p = sampleGrid(detections.getLeft(d), detections.getTop(d), detections.getRight(d), detections.getBottom(d), p);
+        }
+        if (n > 0) {
+            // several frames of motion, so a wider window and one more pyramid level
+            flow(then, n, lateWinSize, 3);
+        }
+
+        forwarded.clear();
+        for (int d = 0; d < count; d++) {
+            final float left = detections.getLeft(d);
+            final float top = detections.getTop(d);
+            final float right = detections.getRight(d);
+            final float bottom = detections.getBottom(d);
+            final int good = trackedPoints(d * POINTS_PER_TRACK);
+            if (good < POINTS_PER_TRACK * minTrackedFraction) {
+                forwarded.add(left, top, right, bottom, detections.getScore(d), detections.getClassId(d));
+                continue;
+            }
+            final float scale = scaleChange(good);
+            final float cx = (left + right) / 2 + median(dx, good) / flowScale;
+            final float cy = (top + bottom) / 2 + median(dy, good) / flowScale;
+            final float w = (right - left) * scale / 2;
+            final float h = (bottom - top) * scale / 2;
+            forwarded.add(cx - w, cy - h, cx + w, cy + h, detections.getScore(d), detections.getClassId(d));
+        }
+    }
+
+    private Mat remembered(long key) {
+        for (int i = 0; i < REMEMBERED_FRAMES; i++) {
+            if (rememberedKeys[i] == key) {
+                return rememberedGray[i];
+            }
+        }
+        return null;
+    }
+
+    private void ensureCoords(int n) {
+        if (prevCoords.length < n * 2) {
+            prevCoords = new float[n * 2];
+            nextCoords = new float[n * 2];
+            statusBytes = new byte[n];
+        }
+    }
+
+    // writes a GRID x GRID grid of points inside the box (frame coordinates) to prevCoords at p,
+    // in flow image coordinates, and returns the index after them
+    private int sampleGrid(float left, float top, float right, float bottom, int p) {
+        final float w = right - left;
+        final float h = bottom - top;
+        for (int gy = 0; gy < GRID; gy++) {
+            for (int gx = 0; gx < GRID; gx++) {
+                prevCoords[p++] = (left + w * (gx + 1) / (GRID + 1)) * flowScale;
+                prevCoords[p++] = (top + h * (gy + 1) / (GRID + 1)) * flowScale;
+            }
+        }
+        return p;
+    }
+
+    // flows the first n points of prevCoords from the given image to currGray
+    private void flow(Mat from, int n, Size window, int maxLevel) {
+        prevPts.create(n, 1, CvType.CV_32FC2);
+        prevPts.put(0, 0, prevCoords);
+        Video.calcOpticalFlowPyrLK(from, currGray, prevPts, nextPts, status, err, window, maxLevel);
+        nextPts.get(0, 0, nextCoords);
+        status.get(0, 0, statusBytes);
+    }
+
+    // collects the motion of the followed points of one box starting at point first into dx, dy
+    // and goodIndex, and returns how many were followed
+    private int trackedPoints(int first) {
+        int good = 0;
+        for (int k = 0; k < POINTS_PER_TRACK; k++) {
+            final int idx = first + k;
+            if (statusBytes[idx] == 0) continue;
+            dx[good] = nextCoords[2 * idx] - prevCoords[2 * idx];
+            dy[good] = nextCoords[2 * idx + 1] - prevCoords[2 * idx + 1];
+            goodIndex[good] = idx;
+            good++;
+        }
+        return good;
+    }
+
+    // scale change from the distance ratios of consecutive good points
+    private float scaleChange(int good) {
+        int scaleCount = 0;
+        for (int k = 1; k < good; k++) {
+            final int a = goodIndex[k - 1];
+            final int b = goodIndex[k];
+            final float prevDist = distance(prevCoords, a, b);
+            if (prevDist < 1f) continue;
+            scales[scaleCount++] = distance(nextCoords, a, b) / prevDist;
+        }
+        return scaleCount > 0 ? median(scales, scaleCount) : 1f;
+    }
+
+    private void associate(DetectionBuffer detections) {
+        final int count = detections.size();
+        if (detectionUsed.length < count) {
+            detectionUsed = new boolean[Math.max(count, detectionUsed.length * 2)];
+        }
+        Arrays.fill(detectionUsed, 0, count, false);
+        for (Track track : tracks) {
+            track.matched = false;
+        }
+
+        // greedy matching, best overlapping pair first
+        while (true) {
+            float bestIou = matchIou;
+            int bestTrack = -1;
+            int bestDetection = -1;
+            for (int t = 0; t < tracks.size(); t++) {
+                Track track = tracks.get(t);
+                if (track.matched) continue;
+                for (int d = 0; d < count; d++) {
+                    if (detectionUsed[d] || detections.getClassId(d) != track.classId) continue;
+                    final float iou = iou(track, detections, d);
+                    if (iou > bestIou) {
+                        bestIou = iou;
+                        bestTrack = t;
+                        bestDetection = d;
+                    }
+                }
+            }
+            if (bestTrack < 0) break;
+
+            Track track = tracks.get(bestTrack);
+            track.matched = true;
+            track.missed = 0;
+            track.score = detections.getScore(bestDetection);
+            detectionUsed[bestDetection] = true;
+            track.correct(
+                    (detections.getLeft(bestDetection) + detections.getRight(bestDetection)) / 2,
+                    (detections.getTop(bestDetection) + detections.getBottom(bestDetection)) / 2,
+                    detections.getRight(bestDetection) - detections.getLeft(bestDetection),
+                    detections.getBottom(bestDetection) - detections.getTop(bestDetection));
+        }
+
+        for (int t = tracks.size() - 1; t >= 0; t--) {
+            Track track = tracks.get(t);
+            if (!track.matched && ++track.missed > maxMissedDetections) {
+                tracks.remove(t);
+                freeTracks.add(track);
+            }
+        }
+
+        for (int d = 0; d < count; d++) {
+            if (detectionUsed[d]) continue;
+            final int classId = detections.getClassId(d);
+            Track track = freeTracks.isEmpty()
+                    ? new Track(transition, measurementMatrix, processNoise, measurementNoise)
+                    : freeTracks.remove(freeTracks.size() - 1);
+            track.start(nextId++, classId, labels.get(classId), detections.getScore(d),
+                    detections.getLeft(d), detections.getTop(d), detections.getRight(d), detections.getBottom(d));
+            tracks.add(track);
+        }
+    }
+
+    private void fillOutput() {
+        output.clear();
+        for (Track track : tracks) {
+            output.add(track.left, track.top, track.right, track.bottom, track.score, track.classId);
+        }
+    }
+
+    private static float iou(Track track, DetectionBuffer detections, int d) {
+        final float iw = Math.min(track.right, detections.getRight(d)) - Math.max(track.left, detections.getLeft(d));
+        final float ih = Math.min(track.bottom, detections.getBottom(d)) - Math.max(track.top, detections.getTop(d));
+        if (iw <= 0 || ih <= 0) return 0;
+        final float inter = iw * ih;
+        final float union = (track.right - track.left) * (track.bottom - track.top)
+                + (detections.getRight(d) - detections.getLeft(d)) * (detections.getBottom(d) - detections.getTop(d))
+                - inter;
+        return union > 0 ? inter / union : 0;
+    }
+
+    private static float distance(float[] coords, int a, int b) {
+        final float x = coords[2 * a] - coords[2 * b];
+        final float y = coords[2 * a + 1] - coords[2 * b + 1];
+        return (float) Math.sqrt(x * x + y * y);
+    }
+
+    // sorts the first count values in place
+    private static float median(float[] values, int count) {
+        Arrays.sort(values, 0, count);
+        return (count & 1) == 1 ? values[count / 2] : (values[count / 2 - 1] + values[count / 2]) / 2;
+    }
+
+    /**
+     * One tracked obstacle with a constant velocity Kalman filter over (cx, cy, w, h). Tracks are
+     * reused, {@link #start} begins a new obstacle.
+     */
+    private static class Track {
+        int id;
+        int classId;
+        String caption;
+        float score;
+        float left, top, right, bottom;
+        int missed;
+        boolean matched;
+
+        private final KalmanFilter kalman = new KalmanFilter(8, 4, 0, CvType.CV_32F);
+        private final Mat measurement = new Mat(4, 1, CvType.CV_32F);
+        private final float[] measured = new float[4];
+        private final float[] state = new float[8];
+
+        Track(Mat transition, Mat measurementMatrix, Mat processNoise, Mat measurementNoise) {
+            kalman.set_transitionMatrix(transition);
+            kalman.set_measurementMatrix(measurementMatrix);
+            kalman.set_processNoiseCov(processNoise);
+            kalman.set_measurementNoiseCov(measurementNoise);
+        }
+
+        void start(int id, int classId, String label, float score, float left, float top, float right, float bottom) {
+            this.id = id;
+            this.classId = classId;
+            this.caption = label + " #" + id;
+            this.score = score;
+            this.left = left;
+            this.top = top;
+            this.right = right;
+            this.bottom = bottom;
+            missed = 0;
+            matched = false;
+
+            // written in place, the getters share the filter's memory
+            Mat errorCovPost = kalman.get_errorCovPost();
+            Core.setIdentity(errorCovPost);
+            errorCovPost.release();
+            Arrays.fill(state, 0f);
+            state[0] = (left + right) / 2;
+            state[1] = (top + bottom) / 2;
+            state[2] = right - left;
+            state[3] = bottom - top;
+            Mat statePost = kalman.get_statePost();
+            statePost.put(0, 0, state);
+            statePost.release();
+        }
+
+        void predict() {
+            Mat predicted = kalman.predict();
+            predicted.get(0, 0, state);
+            predicted.release();
+        }
+
+        void applyPrediction() {
+            setBox(state[0], state[1], state[2], state[3]);
+        }
+
+        void correct(float cx, float cy, float w, float h) {
+            measured[0] = cx;
+            measured[1] = cy;
+            measured[2] = w;
+            measured[3] = h;
+            measurement.put(0, 0, measured);
+            Mat corrected = kalman.correct(measurement);
+            corrected.get(0, 0, state);
+            corrected.release();
+            setBox(state[0], state[1], state[2], state[3]);
+        }
+
+        private void setBox(float cx, float cy, float w, float h) {
+            left = cx - w / 2;
+            top = cy - h / 2;
+            right = cx + w / 2;
+            bottom = cy + h / 2;
+        }
+
+        void release() {
+            measurement.release();
+        }
+    }
+}
@@ -0,0 +1,281 @@
+package com.example.smartglasses;
+
+import org.opencv.core.CvType;
+import org.opencv.core.Mat;
+import org.opencv.core.MatOfInt;
+import org.opencv.core.MatOfRect;
+import org.opencv.core.Size;
+import org.opencv.objdetect.CascadeClassifier;
+import org.opencv.objdetect.Objdetect;
+
+import java.util.Arrays;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+
+/**
+ * {@link HaarFaceDetector} that spreads the cascade over several cores.
+ *
+ * The pyramid scales the serial detectMultiScale would visit are split into contiguous ranges of
+ * roughly equal cost, and every worker runs its own CascadeClassifier restricted to its range
+ * through minSize/maxSize, without grouping. The raw hits of all ranges are then grouped once with
+ * Objdetect.groupRectangles using the same threshold and eps as detectMultiScale, so the result
+ * matches the serial path up to resampling differences. The calling thread works on the first
+ * range itself, the others run on a fixed pool.
+ */
+public class ParallelHaarFaceDetector extends HaarFaceDetector {
+
+    // eps detectMultiScale groups its hits with
+    private static final double GROUP_EPS = 0.2;
+
+    private final CascadeClassifier[] classifiers;
+    private final ExecutorService pool;
+    private final ScaleRange[] ranges;
+    private final Future<?>[] futures;
+    private final Size windowSize;
+
+    private final MatOfInt weights = new MatOfInt();
+    private int[] merged = new int[0];
+
+    // pyramid levels of the current frame, reused
+    private int[] levelWidth = new int[32];
+    private int[] levelHeight = new int[32];
+    private double[] levelCost = new double[32];
+
+    /**
+     * Loads one classifier per worker from the cascade file. The first classifier is also the one
+     * of the serial detector.
+     */
+    public ParallelHaarFaceDetector(String cascadePath, int workers) {
+        this(loadClassifiers(cascadePath, Math.max(1, workers)));
+    }
+
+    private ParallelHaarFaceDetector(CascadeClassifier[] classifiers) {
+        super(classifiers[0]);
+        this.classifiers = classifiers;
+        windowSize = classifiers[0].getOriginalWindowSize();
+
+        ranges = new ScaleRange[classifiers.length];
+        for (int i = 0; i < ranges.length; i++) {
+            ranges[i] = new ScaleRange(classifiers[i]);
+        }
+        futures = new Future<?>[classifiers.length];
+        pool = classifiers.length > 1
+                ? Executors.newFixedThreadPool(classifiers.length - 1, new ThreadFactory() {
+                    private int count = 0;
+
+                    @Override
+                    public Thread newThread(Runnable r) {
+                        return new Thread(r, "HaarDetect-" + (++count));
+                    }
+                })
+                : null;
+    }
+
+    /** Workers to use on this device: the free cores, leaving two for UI and the classifier. */
+    public static int defaultWorkerCount() {
+        return Math.max(1, Math.min(4, Runtime.getRuntime().availableProcessors() - 2));
+    }
+
+    @Override
+    public String getName() {
+        return "Haar x" + classifiers.length;
+    }
+
+    public int getWorkerCount() {
+        return classifiers.length;
+    }
+
+    @Override
+    protected void runCascade(Mat input, Size minSize, Size maxSize, MatOfRect found) {
+        if (pool == null) {
+            super.runCascade(input, minSize, maxSize, found);
+            return;
+        }
+
+        final int levels = computeLevels(input.cols(), input.rows(), minSize, maxSize);
+        if (levels == 0) {
+            found.release();
+            return;
+        }
+        splitLevels(levels);
+
+        for (int i = 1; i < ranges.length; i++) {
+            futures[i] = ranges[i].active ? pool.submit(ranges[i].bind(input)) : null;
+        }
+        if (ranges[0].active) {
+            ranges[0].bind(input).run();
+        }
+        for (int i = 1; i < ranges.length; i++) {
+            if (futures[i] == null) {
+                continue;
+            }
+            try {
+                futures[i].get();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new RuntimeException(e);
+            } catch (ExecutionException e) {
+                throw new RuntimeException(e.getCause());
+            } finally {
+                futures[i] = null;
+            }
+        }
+
+        int total = 0;
+        for (ScaleRange range : ranges) {
+            if (range.active) {
+                total += range.count;
+            }
+        }
+        if (total == 0) {
+            found.release();
+            return;
+        }
+        if (merged.length < total * 4) {
+            merged = new int[total * 4];
+        }
+        int offset = 0;
+        for (ScaleRange range : ranges) {
+            if (range.active && range.count > 0) {
+                System.arraycopy(range.rects, 0, merged, offset, range.count * 4);
+                offset += range.count * 4;
+            }
+        }
+        found.create(total, 1, CvType.CV_32SC4);
+        found.put(0, 0, merged);
+        Objdetect.groupRectangles(found, weights, getMinNeighbors(), GROUP_EPS);
+    }
+
+    // enumerates the pyramid levels detectMultiScale visits for this image and size bounds, with
+    // the scaled image area as the cost of each level
+    private int computeLevels(int cols, int rows, Size minSize, Size maxSize) {
+        final double maxWidth = maxSize.width > 0 ? maxSize.width : cols;
+        final double maxHeight = maxSize.height > 0 ? maxSize.height : rows;
+        int levels = 0;
+        for (double factor = 1; ; factor *= getScaleFactor()) {
+            final int width = (int) Math.round(windowSize.width * factor);
+            final int height = (int) Math.round(windowSize.height * factor);
+            final long scaledCols = Math.round(cols / factor);
+            final long scaledRows = Math.round(rows / factor);
+            // same stop as detectMultiScale: a scaled image no larger than the window ends the pyramid
+            if (scaledCols <= windowSize.width || scaledRows <= windowSize.height) {
+                break;
+            }
+            if (width > maxWidth || height > maxHeight) {
+                break;
+            }
+            if (width < minSize.width || height < minSize.height) {
+                continue;
+            }
+            if (levels == levelWidth.length) {
+                levelWidth = Arrays.copyOf(levelWidth, levels * 2);
+                levelHeight = Arrays.copyOf(levelHeight, levels * 2);
+                levelCost = Arrays.copyOf(levelCost, levels * 2);
+            }
+            levelWidth[levels] = width;
+            levelHeight[levels] = height;
+            levelCost[levels] = (double) scaledCols * scaledRows;
+            levels++;
+        }
+        return levels;
+    }
+
+    // cuts the levels into one contiguous run per worker with about the same total cost; cuts are
+    // only made where the window grows, so minSize/maxSize select exactly the run
+    private void splitLevels(int levels) {
+        double totalCost = 0;
+        for (int i = 0; i < levels; i++) {
+            totalCost += levelCost[i];
+        }
+
+        int start = 0;
+        double cost = 0;
+        for (int r = 0; r < ranges.length; r++) {
+            final ScaleRange range = ranges[r];
+            if (start >= levels) {
+                range.active = false;
+                continue;
+            }
+            final double target = totalCost * (r + 1) / ranges.length;
+            int end = start;
+            cost += levelCost[end];
+            while (end + 1 < levels
+                    && (r == ranges.length - 1 || cost < target || !windowGrows(end))) {
+                end++;
+                cost += levelCost[end];
+            }
+            range.active = true;
+            range.minSize.width = levelWidth[start];
+            range.minSize.height = levelHeight[start];
+            range.maxSize.width = levelWidth[end];
+            range.maxSize.height = levelHeight[end];
+            start = end + 1;
+        }
+    }
+
+    private boolean windowGrows(int level) {
+        return levelWidth[level + 1] > levelWidth[level] && levelHeight[level + 1] > levelHeight[level];
+    }
+
+    @Override
+    public void release() {
+        super.release();
+        if (pool != null) {
+            pool.shutdownNow();
+        }
+        for (ScaleRange range : ranges) {
+            range.found.release();
+        }
+        weights.release();
+    }
+
+    private static CascadeClassifier[] loadClassifiers(String cascadePath, int workers) {
+        CascadeClassifier[] classifiers = new CascadeClassifier[workers];
+        for (int i = 0; i < workers; i++) {
+            classifiers[i] = new CascadeClassifier(cascadePath);
+            if (classifiers[i].empty()) {
+                throw new IllegalArgumentException("Could not load cascade " + cascadePath);
+            }
+        }
+        return classifiers;
+    }
+
+    /** One worker's classifier, its range of window sizes and its raw hits. */
+    private class ScaleRange implements Runnable {
+        final CascadeClassifier classifier;
+        final Size minSize = new Size();
+        final Size maxSize = new Size();
+        final MatOfRect found = new MatOfRect();
+        boolean active;
+        Mat input;
+
+        int[] rects = new int[0];
+        int count;
+
+        ScaleRange(CascadeClassifier classifier) {
+            this.classifier = classifier;
+        }
+
+        ScaleRange bind(Mat input) {
+            this.input = input;
+            return this;
+        }
+
+        @Override
+        public void run() {
+            // minNeighbors 0 keeps the raw hits, they are grouped together with the other ranges
+            classifier.detectMultiScale(input, found, getScaleFactor(), 0, 0, minSize, maxSize);
+            count = (int) found.total();
+            if (rects.length < count * 4) {
+                rects = new int[count * 4];
+            }
+            if (count > 0) {
+                found.get(0, 0, rects);
+            }
+            input = null;
+        }
+    }
+}
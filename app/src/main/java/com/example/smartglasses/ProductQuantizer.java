@@ -0,0 +1,205 @@
+package com.example.smartglasses;
+
+import java.util.Arrays;
+import java.util.Random;
+
+/**
+ * Product quantization: the embedding is cut into equal sub-vectors and each one is replaced by the
+ * index of its nearest centroid in a codebook of up to 256 entries learned by k-means, one byte per
+ * sub-vector. 48 sub-vectors of a 192-d embedding make a 48 byte code, 16x smaller than floats.
+ *
+ * The query table holds the dot product of every query sub-vector with every centroid, so scoring a
+ * code is one table lookup and add per byte.
+ */
+public class ProductQuantizer implements EmbeddingQuantizer {
+
+    static final int MAX_CENTROIDS = 256;
+    // k-means runs on at most this many vectors per centroid, sampled from the training set
+    private static final int SAMPLES_PER_CENTROID = 16;
+
+    private final int dim;
+    private final int subspaces;
+    private final int subDim;
+    private final int iterations;
+    private final Random random;
+
+    // [subspace][centroid][subDim], MAX_CENTROIDS slots per subspace
+    private float[] codebooks;
+
+    public ProductQuantizer(int dim, int subspaces, int iterations, long seed) {
+        if (dim % subspaces != 0) {
+            throw new IllegalArgumentException(dim + " dimensions do not split into " + subspaces + " subspaces");
+        }
+        this.dim = dim;
+        this.subspaces = subspaces;
+        this.subDim = dim / subspaces;
+        this.iterations = iterations;
+        this.random = new Random(seed);
+    }
+
+    public ProductQuantizer(int dim, int subspaces) {
+        this(dim, subspaces, 10, 42);
+    }
+
+    @Override
+    public String getName() {
+        return "PQ" + subspaces + "x8";
+    }
+
+    @Override
+    public int getCodeSize() {
+        return subspaces;
+    }
+
+    @Override
+    public boolean isTrained() {
+        return codebooks != null;
+    }
+
+    @Override
+    public void train(float[] vectors, int count) {
+        if (count <= 0) {
+            throw new IllegalArgumentException("no training vectors");
+        }
+        // with fewer vectors than centroids every vector becomes its own centroid
+        final int centroids = Math.min(MAX_CENTROIDS, count);
+        final int samples = Math.min(count, centroids * SAMPLES_PER_CENTROID);
+        int[] order = shuffledIndices(count);
+
+        float[] books = new float[subspaces * MAX_CENTROIDS * subDim];
+        float[] points = new float[samples * subDim];
+        for (int s = 0; s < subspaces; s++) {
+            for (int i = 0; i < samples; i++) {
+                System.arraycopy(vectors, order[i] * dim + s * subDim, points, i * subDim, subDim);
+            }
+            kMeans(points, samples, centroids, books, s * MAX_CENTROIDS * subDim);
+            // unused slots repeat the first centroid, encode never picks them
+            for (int c = centroids; c < MAX_CENTROIDS; c++) {
+                System.arraycopy(books, s * MAX_CENTROIDS * subDim, books, (s * MAX_CENTROIDS + c) * subDim, subDim);
+            }
+        }
+        codebooks = books;
+    }
+
+    // Lloyd iterations from randomly picked points; an emptied cluster is reseeded with a random point
+    private void kMeans(float[] points, int count, int k, float[] books, int bookBase) {
+        int[] order = shuffledIndices(count);
+        for (int c = 0; c < k; c++) {
+            System.arraycopy(points, order[c] * subDim, books, bookBase + c * subDim, subDim);
+        }
+        float[] sums = new float[k * subDim];
+        int[] sizes = new int[k];
+        for (int iteration = 0; iteration < iterations; iteration++) {
+            Arrays.fill(sums, 0f);
+            Arrays.fill(sizes, 0);
+            for (int i = 0; i < count; i++) {
+                final int c = nearest(points, i * subDim, books, bookBase, k);
+                sizes[c]++;
+                for (int j = 0; j < subDim; j++) {
+                    sums[c * subDim + j] += points[i * subDim + j];
+                }
+            }
+            for (int c = 0; c < k; c++) {
+                final int centre = bookBase + c * subDim;
+                if (sizes[c] == 0) {
+                    System.arraycopy(points, random.nextInt(count) * subDim, books, centre, subDim);
+                    continue;
+                }
+                for (int j = 0; j < subDim; j++) {
+                    books[centre + j] = sums[c * subDim + j] / sizes[c];
+                }
+            }
+        }
+    }
+
+    // closest of the first k centroids by squared euclidean distance
+    private int nearest(float[] vector, int offset, float[] books, int bookBase, int k) {
+        int best = 0;
+        float bestDistance = Float.MAX_VALUE;
+        for (int c = 0; c < k; c++) {
+            final int centre = bookBase + c * subDim;
+            float distance = 0;
+            for (int j = 0; j < subDim; j++) {
+                final float diff = vector[offset + j] - books[centre + j];
+                distance += diff * diff;
+            }
+            if (distance < bestDistance) {
+                bestDistance = distance;
+                best = c;
+            }
+        }
+        return best;
+    }
+
+    private int[] shuffledIndices(int count) {
+        int[] order = new int[count];
+        for (int i = 0; i < count; i++) {
+            order[i] = i;
+        }
+        for (int i = count - 1; i > 0; i--) {
+            final int j = random.nextInt(i + 1);
+            final int swap = order[i];
+            order[i] = order[j];
+            order[j] = swap;
+        }
+        return order;
+    }
+
+    @Override
+    public void encode(float[] vector, int offset, byte[] codes, int codeOffset) {
+        for (int s = 0; s < subspaces; s++) {
+            codes[codeOffset + s] = (byte) nearest(vector, offset + s * subDim, codebooks,
+                    s * MAX_CENTROIDS * subDim, MAX_CENTROIDS);
+        }
+    }
+
+    @Override
+    public void decode(byte[] codes, int codeOffset, float[] out) {
+        for (int s = 0; s < subspaces; s++) {
+            final int centre = (s * MAX_CENTROIDS + (codes[codeOffset + s] & 0xff)) * subDim;
+            System.arraycopy(codebooks, centre, out, s * subDim, subDim);
+        }
+    }
+
+    @Override
+    public int getTableSize() {
+        return subspaces * MAX_CENTROIDS;
+    }
+
+    @Override
+    public void buildTable(float[] query, float[] table) {
+        final float[] books = codebooks;
+        for (int s = 0; s < subspaces; s++) {
+            final int queryBase = s * subDim;
+            for (int c = 0; c < MAX_CENTROIDS; c++) {
+                final int centre = (s * MAX_CENTROIDS + c) * subDim;
+                float dot = 0;
+                for (int j = 0; j < subDim; j++) {
+                    dot += query[queryBase + j] * books[centre + j];
+                }
+                table[s * MAX_CENTROIDS + c] = dot;
+            }
+        }
+    }
+
+    @Override
+    public void scoreAll(float[] table, byte[] codes, int count, float[] scoresOut) {
+        for (int i = 0; i < count; i++) {
+            scoresOut[i] = score(table, codes, i * subspaces);
+        }
+    }
+
+    @Override
+    public float score(float[] table, byte[] codes, int codeOffset) {
+        float dot0 = 0, dot1 = 0;
+        int s = 0;
+        for (; s + 1 < subspaces; s += 2) {
+            dot0 += table[(s << 8) + (codes[codeOffset + s] & 0xff)];
+            dot1 += table[((s + 1) << 8) + (codes[codeOffset + s + 1] & 0xff)];
+        }
+        if (s < subspaces) {
+            dot0 += table[(s << 8) + (codes[codeOffset + s] & 0xff)];
+        }
+        return dot0 + dot1;
+    }
+}
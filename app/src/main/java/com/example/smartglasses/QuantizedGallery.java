@@ -0,0 +1,188 @@
+package com.example.smartglasses;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+
+/**
+ * Registered face embeddings kept only as {@link EmbeddingQuantizer} codes, for galleries where
+ * the float copies in {@link EmbeddingGallery} take too much memory.
+ *
+ * Codes are stored back to back in one byte array with the names in a parallel table. A search
+ * builds the quantizer's lookup table for the query once, scores every code from it in one pass and
+ * keeps the k best in a primitive min-heap. The query, table, scores and heap are reused between
+ * searches, so the gallery is not thread-safe. Scores and rankings are approximate:
+ * {@link ScalarQuantizer} ranks and scans about like the float gallery in a quarter of its memory,
+ * {@link ProductQuantizer} trades more ranking accuracy for smaller codes, and only its smallest
+ * codes scan clearly faster (numbers in QuantizedGalleryTest).
+ */
+public class QuantizedGallery {
+
+    private final int dim;
+    private final EmbeddingQuantizer quantizer;
+    private final int codeSize;
+
+    private byte[] codes;
+    private final List<String> names = new ArrayList<>();
+    private final HashMap<String, Integer> indexByName = new HashMap<>();
+    private int count = 0;
+
+    // per-search scratch
+    private final float[] normalised;
+    private final float[] table;
+    private float[] scores = new float[16];
+    private EmbeddingGallery.TopK top = new EmbeddingGallery.TopK(1);
+
+    /** The quantizer has to be trained before anything is put. */
+    public QuantizedGallery(int dim, EmbeddingQuantizer quantizer) {
+        this.dim = dim;
+        this.quantizer = quantizer;
+        this.codeSize = quantizer.getCodeSize();
+        codes = new byte[16 * codeSize];
+        normalised = new float[dim];
+        table = new float[quantizer.getTableSize()];
+    }
+
+    /**
+     * Encodes every entry of a float gallery, training the quantizer on them first if it is not
+     * trained yet. Entry indices stay the same.
+     */
+    public static QuantizedGallery compress(EmbeddingGallery gallery, EmbeddingQuantizer quantizer) {
+        final int dim = gallery.getDim();
+        final int size = gallery.size();
+        float[] vectors = new float[size * dim];
+        float[] embedding = new float[dim];
+        for (int i = 0; i < size; i++) {
+            System.arraycopy(gallery.getEmbedding(i, embedding), 0, vectors, i * dim, dim);
+        }
+        if (!quantizer.isTrained()) {
+            quantizer.train(vectors, size);
+        }
+        QuantizedGallery compressed = new QuantizedGallery(dim, quantizer);
+        for (int i = 0; i < size; i++) {
+            System.arraycopy(vectors, i * dim, embedding, 0, dim);
+            compressed.put(gallery.getName(i), embedding);
+        }
+        return compressed;
+    }
+
+    public EmbeddingQuantizer getQuantizer() {
+        return quantizer;
+    }
+
+    public int size() {
+        return count;
+    }
+
+    /** Bytes held by the codes of all entries. */
+    public long getCodeBytes() {
+        return (long) count * codeSize;
+    }
+
+    public String getName(int index) {
+        return names.get(index);
+    }
+
+    /** Index of the entry with this name, or -1. */
+    public int indexOf(String name) {
+        Integer index = indexByName.get(name);
+        return index != null ? index : -1;
+    }
+
+    /** Approximate normalised embedding of an entry. */
+    public float[] getEmbedding(int index, float[] out) {
+        quantizer.decode(codes, index * codeSize, out);
+        return out;
+    }
+
+    /**
+     * Adds an embedding under a name, replacing the one already registered under it.
+     *
+     * @return index of the entry
+     */
+    public int put(String name, float[] embedding) {
+        if (!quantizer.isTrained()) {
+            throw new IllegalStateException(quantizer.getName() + " quantizer is not trained");
+        }
+        int index = indexOf(name);
+        if (index < 0) {
+            if ((count + 1) * codeSize > codes.length) {
+                codes = Arrays.copyOf(codes, codes.length * 2);
+            }
+            index = count++;
+            names.add(name);
+            indexByName.put(name, index);
+        }
+        quantizer.encode(normalise(embedding), 0, codes, index * codeSize);
+        return index;
+    }
+
+    /** Removes an entry, the last entry takes its index. */
+    public boolean remove(String name) {
+        final int index = indexOf(name);
+        if (index < 0) {
+            return false;
+        }
+        final int last = count - 1;
+        indexByName.remove(name);
+        if (index != last) {
+            System.arraycopy(codes, last * codeSize, codes, index * codeSize, codeSize);
+            final String moved = names.get(last);
+            names.set(index, moved);
+            indexByName.put(moved, index);
+        }
+        names.remove(last);
+        count--;
+        return true;
+    }
+
+    public void clear() {
+        names.clear();
+        indexByName.clear();
+        count = 0;
+    }
+
+    /**
+     * Finds the k entries most similar to the query.
+     *
+     * @param indicesOut receives the entry indices, most similar first
+     * @param scoresOut  receives their approximate cosine similarity
+     * @return number of results, min(k, size())
+     */
+    public int search(float[] query, int k, int[] indicesOut, float[] scoresOut) {
+        k = Math.min(k, count);
+        if (k <= 0) {
+            return 0;
+        }
+        quantizer.buildTable(normalise(query), table);
+        if (scores.length < count) {
+            scores = new float[codes.length / codeSize];
+        }
+        quantizer.scoreAll(table, codes, count, scores);
+
+        if (top.scores.length != k) {
+            top = new EmbeddingGallery.TopK(k);
+        }
+        final float[] s = scores;
+        for (int entry = 0; entry < count; entry++) {
+            if (!top.isFull() || s[entry] > top.minScore()) {
+                top.offer(entry, s[entry]);
+            }
+        }
+        return top.drainSorted(indicesOut, scoresOut);
+    }
+
+    // into the reused buffer
+    private float[] normalise(float[] embedding) {
+        float norm = 0;
+        for (int i = 0; i < dim; i++) {
+            norm += embedding[i] * embedding[i];
+        }
+        final float scale = norm > 0 ? (float) (1.0 / Math.sqrt(norm)) : 0f;
+        for (int i = 0; i < dim; i++) {
+            normalised[i] = embedding[i] * scale;
+        }
+        return normalised;
+    }
+}
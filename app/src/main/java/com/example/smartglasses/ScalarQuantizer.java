@@ -0,0 +1,145 @@
+package com.example.smartglasses;
+
+/**
+ * Per-dimension int8 quantization: every dimension is mapped linearly from the range seen in
+ * training onto 256 levels, a 4x smaller code than floats.
+ *
+ * The query table folds each dimension's step into the query, so scoring a code is one
+ * multiply-add per byte plus a constant offset. {@link #scoreAll} also rounds the table to
+ * integers, so a scan multiplies and adds ints only, without converting every byte to float.
+ * Not thread-safe, the integer table is kept between calls.
+ */
+public class ScalarQuantizer implements EmbeddingQuantizer {
+
+    private static final int LEVELS = 255;
+
+    private final int dim;
+    private float[] min;
+    private float[] step;
+    private int[] intTable = new int[0];
+
+    public ScalarQuantizer(int dim) {
+        this.dim = dim;
+    }
+
+    @Override
+    public String getName() {
+        return "int8";
+    }
+
+    @Override
+    public int getCodeSize() {
+        return dim;
+    }
+
+    @Override
+    public boolean isTrained() {
+        return min != null;
+    }
+
+    @Override
+    public void train(float[] vectors, int count) {
+        if (count <= 0) {
+            throw new IllegalArgumentException("no training vectors");
+        }
+        float[] low = new float[dim];
+        float[] high = new float[dim];
+        System.arraycopy(vectors, 0, low, 0, dim);
+        System.arraycopy(vectors, 0, high, 0, dim);
+        for (int i = 1; i < count; i++) {
+            final int base = i * dim;
+            for (int d = 0; d < dim; d++) {
+                final float value = vectors[base + d];
+                if (value < low[d]) {
+                    low[d] = value;
+                } else if (value > high[d]) {
+                    high[d] = value;
+                }
+            }
+        }
+        float[] steps = new float[dim];
+        for (int d = 0; d < dim; d++) {
+            // a constant dimension still needs a non-zero step to divide by
+            steps[d] = Math.max(high[d] - low[d], 1e-6f) / LEVELS;
+        }
+        min = low;
+        step = steps;
+    }
+
+    @Override
+    public void encode(float[] vector, int offset, byte[] codes, int codeOffset) {
+        for (int d = 0; d < dim; d++) {
+            final int level = Math.round((vector[offset + d] - min[d]) / step[d]);
+            codes[codeOffset + d] = (byte) Math.max(0, Math.min(LEVELS, level));
+        }
+    }
+
+    @Override
+    public void decode(byte[] codes, int codeOffset, float[] out) {
+        for (int d = 0; d < dim; d++) {
+            out[d] = min[d] + (codes[codeOffset + d] & 0xff) * step[d];
+        }
+    }
+
+    @Override
+    public int getTableSize() {
+        return dim + 1;
+    }
+
+    // q . (min + code * step) = sum(q * min) + sum((q * step) * code)
+    @Override
+    public void buildTable(float[] query, float[] table) {
+        float offset = 0;
+        for (int d = 0; d < dim; d++) {
+            table[d] = query[d] * step[d];
+            offset += query[d] * min[d];
+        }
+        table[dim] = offset;
+    }
+
+    @Override
+    public void scoreAll(float[] table, byte[] codes, int count, float[] scoresOut) {
+        // largest table magnitude that keeps a full sum of dim products with 255 inside an int,
+        // with a factor 2 to spare for rounding
+        float max = 0;
+        for (int d = 0; d < dim; d++) {
+            max = Math.max(max, Math.abs(table[d]));
+        }
+        final float scale = max > 0 ? ((1 << 30) / ((float) LEVELS * dim)) / max : 0f;
+        if (intTable.length < dim) {
+            intTable = new int[dim];
+        }
+        final int[] t = intTable;
+        for (int d = 0; d < dim; d++) {
+            t[d] = (int) (table[d] * scale);
+        }
+        final float unscale = scale > 0 ? 1f / scale : 0f;
+        final float offset = table[dim];
+
+        // a plain single-accumulator loop over a local bound is the form the JIT unrolls best here
+        final int n = dim;
+        for (int i = 0, base = 0; i < count; i++, base += n) {
+            int dot = 0;
+            for (int d = 0; d < n; d++) {
+                dot += t[d] * (codes[base + d] & 0xff);
+            }
+            scoresOut[i] = offset + dot * unscale;
+        }
+    }
+
+    @Override
+    public float score(float[] table, byte[] codes, int codeOffset) {
+        float dot0 = 0, dot1 = 0, dot2 = 0, dot3 = 0;
+        int d = 0;
+        for (; d + 3 < dim; d += 4) {
+            dot0 += table[d] * (codes[codeOffset + d] & 0xff);
+            dot1 += table[d + 1] * (codes[codeOffset + d + 1] & 0xff);
+            dot2 += table[d + 2] * (codes[codeOffset + d + 2] & 0xff);
+            dot3 += table[d + 3] * (codes[codeOffset + d + 3] & 0xff);
+        }
+        for (; d < dim; d++) {
+            dot0 += table[d] * (codes[codeOffset + d] & 0xff);
+        }
+        return table[dim] + dot0 + dot1 + dot2 + dot3;
+    }
+}
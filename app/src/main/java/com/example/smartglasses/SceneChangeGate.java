@@ -0,0 +1,127 @@
+package com.example.smartglasses;
+
+import android.os.SystemClock;
+
+import org.opencv.core.Core;
+import org.opencv.core.Mat;
+import org.opencv.core.MatOfFloat;
+import org.opencv.core.MatOfInt;
+import org.opencv.core.Size;
+import org.opencv.imgproc.Imgproc;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Decides whether a camera frame differs enough from the one the last detection ran on to be
+ * worth running the detector again.
+ *
+ * The gray frame is shrunk to a tiny thumbnail and compared with the thumbnail of the last
+ * accepted frame: by the fraction of pixels that changed by more than a threshold (motion) and by
+ * histogram correlation (scene cuts, lighting changes). A refresh is forced once the last
+ * accepted frame is older than the maximum staleness, so a missed change never sticks forever.
+ */
+public class SceneChangeGate {
+
+    private static final int THUMB_WIDTH = 80;
+    private static final int THUMB_HEIGHT = 60;
+
+    private int pixelDiffThresh = 25;
+    private float changedFractionThresh = 0.02f;
+    private double histCorrelationThresh = 0.95;
+    private long maxStaleMs = 1000;
+
+    private final Size thumbSize = new Size(THUMB_WIDTH, THUMB_HEIGHT);
+    private final Mat thumb = new Mat();
+    private final Mat reference = new Mat();
+    private final Mat diff = new Mat();
+    private final Mat hist = new Mat();
+    private final Mat referenceHist = new Mat();
+    private final Mat noMask = new Mat();
+    private final List<Mat> histImages = new ArrayList<>(1);
+    private final MatOfInt histChannels = new MatOfInt(0);
+    private final MatOfInt histSize = new MatOfInt(32);
+    private final MatOfFloat histRanges = new MatOfFloat(0f, 256f);
+
+    private boolean hasReference = false;
+    private long referenceTime;
+    private long passedFrames = 0;
+    private long skippedFrames = 0;
+
+    public SceneChangeGate() {
+        histImages.add(thumb);
+    }
+
+    /** A thumbnail pixel counts as changed when its gray value moved by more than this. */
+    public void setPixelDiffThresh(int pixelDiffThresh) {
+        this.pixelDiffThresh = pixelDiffThresh;
+    }
+
+    /** The frame counts as changed when more than this fraction of pixels changed. */
+    public void setChangedFractionThresh(float changedFractionThresh) {
+        this.changedFractionThresh = changedFractionThresh;
+    }
+
+    /** The frame counts as a new scene when histogram correlation drops below this. */
+    public void setHistCorrelationThresh(double histCorrelationThresh) {
+        this.histCorrelationThresh = histCorrelationThresh;
+    }
+
+    public void setMaxStaleMs(long maxStaleMs) {
+        this.maxStaleMs = maxStaleMs;
+    }
+
+    /**
+     * Returns true if the detector should run on this frame. When it does, the frame becomes the
+     * new reference that later frames are compared against.
+     */
+    public boolean shouldRun(Mat gray) {
+        Imgproc.resize(gray, thumb, thumbSize, 0, 0, Imgproc.INTER_LINEAR);
+        Imgproc.calcHist(histImages, histChannels, noMask, hist, histSize, histRanges);
+
+        final long now = SystemClock.uptimeMillis();
+        boolean run = !hasReference || now - referenceTime >= maxStaleMs;
+        if (!run) {
+            Core.absdiff(thumb, reference, diff);
+            Imgproc.threshold(diff, diff, pixelDiffThresh, 255, Imgproc.THRESH_BINARY);
+            final float changed = (float) Core.countNonZero(diff) / (THUMB_WIDTH * THUMB_HEIGHT);
+            run = changed > changedFractionThresh
+                    || Imgproc.compareHist(hist, referenceHist, Imgproc.HISTCMP_CORREL) < histCorrelationThresh;
+        }
+
+        if (run) {
+            thumb.copyTo(reference);
+            hist.copyTo(referenceHist);
+            referenceTime = now;
+            hasReference = true;
+            passedFrames++;
+        } else {
+            skippedFrames++;
+        }
+        return run;
+    }
+
+    /** Forgets the reference frame so the next frame always passes. */
+    public void reset() {
+        hasReference = false;
+    }
+
+    public long getPassedFrames() {
+        return passedFrames;
+    }
+
+    public long getSkippedFrames() {
+        return skippedFrames;
+    }
+
+    public void release() {
+        thumb.release();
+        reference.release();
+        diff.release();
+        hist.release();
+        referenceHist.release();
+        histChannels.release();
+        histSize.release();
+        histRanges.release();
+    }
+}
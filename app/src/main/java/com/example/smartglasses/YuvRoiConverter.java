@@ -0,0 +1,186 @@
+package com.example.smartglasses;
+
+import android.media.Image;
+
+import org.opencv.core.CvType;
+import org.opencv.core.Mat;
+import org.opencv.core.Rect;
+import org.opencv.imgproc.Imgproc;
+
+/**
+ * Converts one region of a YUV_420_888 camera image to an RGBA Mat.
+ *
+ * The image planes are wrapped as Mats without copying (as JavaCamera2View does), and only the
+ * region is converted: semi-planar chroma goes through Imgproc.cvtColorTwoPlane straight from the
+ * plane memory, planar chroma is first gathered into a small I420 buffer for the region. The region
+ * stays in sensor orientation, {@link FaceAligner} takes it from there.
+ */
+public class YuvRoiConverter {
+
+    private final Rect roi = new Rect();
+    private final Rect chromaRoi = new Rect();
+    private final Mat roiRgba = new Mat();
+    private Mat i420;
+    private Mat lumaRoi;
+
+    /**
+     * Converts the part of the image under box, which is given in upright coordinates as ML Kit
+     * reports them for an image with this rotation. The region's position in the image is in
+     * {@link #getRoiX()} and {@link #getRoiY()}.
+     *
+     * @return the RGBA region in sensor orientation, valid until the next call, or null if box
+     * misses the image
+     */
+    public Mat convert(Image image, int rotationDegrees, android.graphics.Rect box) {
+        final int width = image.getWidth();
+        final int height = image.getHeight();
+        if (!toSensorRoi(box, rotationDegrees, width, height)) {
+            return null;
+        }
+
+        Image.Plane[] planes = image.getPlanes();
+        Mat yPlane = new Mat(height, width, CvType.CV_8UC1, planes[0].getBuffer(), planes[0].getRowStride());
+        Mat yRoi = yPlane.submat(roi);
+        if (planes[1].getPixelStride() == 2) {
+            convertSemiPlanar(planes, width, height, yRoi);
+        } else {
+            convertPlanar(planes, width, height, yRoi);
+        }
+        yRoi.release();
+        yPlane.release();
+
+        return roiRgba;
+    }
+
+    /**
+     * Wraps the luma under box without converting anything, for checks that need only gray pixels.
+     *
+     * @return the gray region in sensor orientation, backed by the image and valid until the next
+     * call or until the image is closed, or null if box misses the image
+     */
+    public Mat luma(Image image, int rotationDegrees, android.graphics.Rect box) {
+        final int width = image.getWidth();
+        final int height = image.getHeight();
+        if (lumaRoi != null) {
+            lumaRoi.release();
+            lumaRoi = null;
+        }
+        if (!toSensorRoi(box, rotationDegrees, width, height)) {
+            return null;
+        }
+
+        Image.Plane plane = image.getPlanes()[0];
+        Mat yPlane = new Mat(height, width, CvType.CV_8UC1, plane.getBuffer(), plane.getRowStride());
+        lumaRoi = yPlane.submat(roi);
+        yPlane.release();
+        return lumaRoi;
+    }
+
+    // chroma channels interleaved in one plane, NV12 or NV21 depending on which plane comes first
+    private void convertSemiPlanar(Image.Plane[] planes, int width, int height, Mat yRoi) {
+        Mat uvPlane1 = new Mat(height / 2, width / 2, CvType.CV_8UC2, planes[1].getBuffer(), planes[1].getRowStride());
+        Mat uvPlane2 = new Mat(height / 2, width / 2, CvType.CV_8UC2, planes[2].getBuffer(), planes[2].getRowStride());
+        final boolean nv12 = uvPlane2.dataAddr() > uvPlane1.dataAddr();
+        Mat uvRoi = (nv12 ? uvPlane1 : uvPlane2).submat(chromaRoi);
+        Imgproc.cvtColorTwoPlane(yRoi, uvRoi, roiRgba,
+                nv12 ? Imgproc.COLOR_YUV2RGBA_NV12 : Imgproc.COLOR_YUV2RGBA_NV21);
+        uvRoi.release();
+        uvPlane1.release();
+        uvPlane2.release();
+    }
+
+    // separate U and V planes, the region is laid out as I420: Y rows, then U, then V
+    private void convertPlanar(Image.Plane[] planes, int width, int height, Mat yRoi) {
+        if (i420 == null) {
+            i420 = new Mat();
+        }
+        final int rows = roi.height;
+        i420.create(rows * 3 / 2, roi.width, CvType.CV_8UC1);
+
+        Mat yRows = i420.rowRange(0, rows);
+        yRoi.copyTo(yRows);
+        yRows.release();
+        copyChroma(planes[1], width, height, rows, rows + rows / 4);
+        copyChroma(planes[2], width, height, rows + rows / 4, rows * 3 / 2);
+
+        Imgproc.cvtColor(i420, roiRgba, Imgproc.COLOR_YUV2RGBA_I420);
+    }
+
+    private void copyChroma(Image.Plane plane, int width, int height, int startRow, int endRow) {
+        Mat chromaPlane = new Mat(height / 2, width / 2, CvType.CV_8UC1, plane.getBuffer(), plane.getRowStride());
+        Mat chroma = chromaPlane.submat(chromaRoi);
+        Mat rows = i420.rowRange(startRow, endRow);
+        // the quarter-size chroma block fills these full width rows contiguously
+        Mat block = rows.reshape(1, chromaRoi.height);
+        chroma.copyTo(block);
+        block.release();
+        rows.release();
+        chroma.release();
+        chromaPlane.release();
+    }
+
+    // maps the upright box back to sensor coordinates, clamped to the image and aligned so the
+    // chroma region covers it exactly (height to 4 rows for the I420 layout)
+    private boolean toSensorRoi(android.graphics.Rect box, int rotationDegrees, int width, int height) {
+        int left, top, right, bottom;
+        if (rotationDegrees == 90) {
+            left = box.top;
+            top = height - box.right;
+            right = box.bottom;
+            bottom = height - box.left;
+        } else if (rotationDegrees == 180) {
+            left = width - box.right;
+            top = height - box.bottom;
+            right = width - box.left;
+            bottom = height - box.top;
+        } else if (rotationDegrees == 270) {
+            left = width - box.bottom;
+            top = box.left;
+            right = width - box.top;
+            bottom = box.right;
+        } else {
+            left = box.left;
+            top = box.top;
+            right = box.right;
+            bottom = box.bottom;
+        }
+
+        left = Math.max(0, left) & ~1;
+        top = Math.max(0, top) & ~1;
+        right = Math.min(width, right);
+        bottom = Math.min(height, bottom);
+        final int roiWidth = (right - left) & ~1;
+        final int roiHeight = (bottom - top) & ~3;
+        if (roiWidth <= 0 || roiHeight <= 0) {
+            return false;
+        }
+
+        roi.x = left;
+        roi.y = top;
+        roi.width = roiWidth;
+        roi.height = roiHeight;
+        chromaRoi.x = left / 2;
+        chromaRoi.y = top / 2;
+        chromaRoi.width = roiWidth / 2;
+        chromaRoi.height = roiHeight / 2;
+        return true;
+    }
+
+    public int getRoiX() {
+        return roi.x;
+    }
+
+    public int getRoiY() {
+        return roi.y;
+    }
+
+    public void release() {
+        roiRgba.release();
+        if (lumaRoi != null) {
+            lumaRoi.release();
+        }
+        if (i420 != null) {
+            i420.release();
+        }
+    }
+}
@@ -0,0 +1,123 @@
+package com.example.smartglasses;
+
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.Random;
+
+import static com.example.smartglasses.SyntheticEmbeddings.*;
+import static org.junit.Assert.*;
+
+/**
+ * Exact search of {@link EmbeddingGallery} against brute force, over the sequential scan, the
+ * parallel scan and the early exit of both.
+ */
+public class EmbeddingGalleryTest {
+
+    private static final int QUERIES = 50;
+    private static final int[] SIZES = {1, 2, 9, 63, 64, 65, 1000,
+            EmbeddingGallery.PARALLEL_THRESHOLD, EmbeddingGallery.PARALLEL_THRESHOLD + 1, 9000};
+
+    @Test
+    public void searchMatchesBruteForce() {
+        for (int n : SIZES) {
+            Random random = new Random(n);
+            float[] centres = gaussian(random, Math.max(1, n / SAMPLES_PER_IDENTITY));
+            float[] vectors = samples(random, centres, n);
+            float[] queries = samples(random, centres, QUERIES);
+            EmbeddingGallery gallery = fill(vectors, n);
+
+            for (int k : new int[]{1, 2, 10}) {
+                final int expected = Math.min(k, n);
+                int[] truth = new int[expected];
+                int[] indices = new int[k];
+                float[] scores = new float[k];
+                float[] query = new float[DIM];
+                for (int q = 0; q < QUERIES; q++) {
+                    exactTopK(vectors, n, queries, q * DIM, truth);
+                    System.arraycopy(queries, q * DIM, query, 0, DIM);
+                    assertEquals(expected, gallery.search(query, k, indices, scores));
+                    for (int i = 0; i < expected; i++) {
+                        assertEquals("n=" + n + " k=" + k + " rank " + i, truth[i], indices[i]);
+                        assertEquals(dot(vectors, truth[i], queries, q), scores[i], 1e-5f);
+                    }
+                }
+            }
+        }
+    }
+
+    @Test
+    public void earlyExitSkipsEntriesWithoutChangingResults() {
+        // one identity registered many times close to the query, the rest far away: once the heap
+        // holds the close ones, the far entries are cut short after the first block
+        Random random = new Random(4);
+        final int n = 3000;
+        float[] centres = gaussian(random, 2);
+        float[] vectors = new float[n * DIM];
+        float[] near = samples(random, Arrays.copyOf(centres, DIM), 20);
+        float[] far = samples(random, Arrays.copyOfRange(centres, DIM, 2 * DIM), n - 20);
+        System.arraycopy(near, 0, vectors, 0, near.length);
+        System.arraycopy(far, 0, vectors, near.length, far.length);
+        float[] queries = samples(random, Arrays.copyOf(centres, DIM), QUERIES);
+        EmbeddingGallery gallery = fill(vectors, n);
+
+        final int k = 10;
+        int[] truth = new int[k];
+        int[] indices = new int[k];
+        float[] scores = new float[k];
+        float[] query = new float[DIM];
+        for (int q = 0; q < QUERIES; q++) {
+            exactTopK(vectors, n, queries, q * DIM, truth);
+            System.arraycopy(queries, q * DIM, query, 0, DIM);
+            gallery.search(query, k, indices, scores);
+            assertArrayEquals(truth, indices);
+        }
+        final long scanned = (long) n * QUERIES;
+        System.out.printf("pruned %d of %d entries%n", gallery.getPrunedEntries(), scanned);
+        assertTrue("too few entries pruned: " + gallery.getPrunedEntries(),
+                gallery.getPrunedEntries() > scanned / 2);
+    }
+
+    @Test
+    public void searchAllMatchesSearch() {
+        Random random = new Random(5);
+        final int n = 2000;
+        float[] centres = gaussian(random, n / SAMPLES_PER_IDENTITY);
+        EmbeddingGallery gallery = fill(samples(random, centres, n), n);
+        float[] queries = samples(random, centres, 5);
+        float[][] batch = new float[5][DIM];
+        for (int q = 0; q < 5; q++) {
+            System.arraycopy(queries, q * DIM, batch[q], 0, DIM);
+        }
+
+        int[][] indices = new int[5][3];
+        float[][] scores = new float[5][3];
+        int[] found = new int[5];
+        gallery.searchAll(batch, 5, 3, indices, scores, found);
+        int[] expected = new int[3];
+        float[] expectedScores = new float[3];
+        for (int q = 0; q < 5; q++) {
+            assertEquals(3, gallery.search(batch[q], 3, expected, expectedScores));
+            assertEquals(3, found[q]);
+            assertArrayEquals(expected, indices[q]);
+        }
+    }
+
+    private static EmbeddingGallery fill(float[] vectors, int n) {
+        EmbeddingGallery gallery = new EmbeddingGallery(DIM);
+        float[] embedding = new float[DIM];
+        for (int i = 0; i < n; i++) {
+            System.arraycopy(vectors, i * DIM, embedding, 0, DIM);
+            gallery.put("person" + i, embedding);
+        }
+        return gallery;
+    }
+
+    private static float dot(float[] vectors, int i, float[] queries, int q) {
+        float dot = 0;
+        for (int d = 0; d < DIM; d++) {
+            dot += vectors[i * DIM + d] * queries[q * DIM + d];
+        }
+        return dot;
+    }
+}
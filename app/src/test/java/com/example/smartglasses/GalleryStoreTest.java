@@ -0,0 +1,209 @@
+package com.example.smartglasses;
+
+import org.junit.Test;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.io.StringReader;
+import java.nio.file.Files;
+import java.util.Random;
+
+import static com.example.smartglasses.SyntheticEmbeddings.*;
+import static org.junit.Assert.*;
+
+/**
+ * {@link GalleryStore} round trips through snapshot and journal, recovery from torn and corrupt
+ * files, and the migration of the old JSON gallery.
+ */
+public class GalleryStoreTest {
+
+    private static final String NAME = "faces";
+
+    @Test
+    public void snapshotAndJournalRoundTrip() throws IOException {
+        File dir = tempDir();
+        float[] vectors = samples(new Random(1), gaussian(new Random(2), 20), 150);
+        EmbeddingGallery expected = new EmbeddingGallery(DIM);
+
+        GalleryStore store = new GalleryStore(dir, NAME, DIM);
+        for (int i = 0; i < 100; i++) {
+            expected.put("face" + i, vector(vectors, i));
+        }
+        store.compact(expected);
+        for (int i = 100; i < 150; i++) {
+            expected.put("face" + i, vector(vectors, i));
+            store.appendPut("face" + i, vector(vectors, i));
+        }
+        // overwrite one snapshot entry and remove another through the journal
+        expected.put("face3", vector(vectors, 120));
+        store.appendPut("face3", vector(vectors, 120));
+        expected.remove("face7");
+        store.appendRemove("face7");
+        store.close();
+
+        EmbeddingGallery loaded = new EmbeddingGallery(DIM);
+        GalleryStore reopened = new GalleryStore(dir, NAME, DIM);
+        assertTrue(reopened.load(loaded));
+        reopened.close();
+        assertSameFaces(expected, loaded);
+    }
+
+    @Test
+    public void tornRecordIsDroppedAndCompacted() throws IOException {
+        File dir = tempDir();
+        float[] vectors = samples(new Random(3), gaussian(new Random(4), 5), 10);
+        GalleryStore store = new GalleryStore(dir, NAME, DIM);
+        EmbeddingGallery expected = new EmbeddingGallery(DIM);
+        for (int i = 0; i < 10; i++) {
+            store.appendPut("face" + i, vector(vectors, i));
+            if (i < 9) {
+                expected.put("face" + i, vector(vectors, i));
+            }
+        }
+        store.close();
+        File journal = new File(dir, NAME + ".journal");
+        truncate(journal, journal.length() - 5);
+
+        EmbeddingGallery loaded = new EmbeddingGallery(DIM);
+        store = new GalleryStore(dir, NAME, DIM);
+        assertTrue(store.load(loaded));
+        assertSameFaces(expected, loaded);
+        assertFalse(journal.exists());
+
+        // records appended after the recovery are read back
+        expected.put("late", vector(vectors, 9));
+        store.appendPut("late", vector(vectors, 9));
+        store.close();
+        loaded = new EmbeddingGallery(DIM);
+        assertTrue(new GalleryStore(dir, NAME, DIM).load(loaded));
+        assertSameFaces(expected, loaded);
+    }
+
+    @Test
+    public void corruptJournalIsSetAside() throws IOException {
+        File dir = tempDir();
+        float[] vectors = samples(new Random(5), gaussian(new Random(6), 5), 10);
+        GalleryStore store = new GalleryStore(dir, NAME, DIM);
+        EmbeddingGallery expected = new EmbeddingGallery(DIM);
+        for (int i = 0; i < 5; i++) {
+            store.appendPut("face" + i, vector(vectors, i));
+            expected.put("face" + i, vector(vectors, i));
+        }
+        store.close();
+        File journal = new File(dir, NAME + ".journal");
+        FileOutputStream out = new FileOutputStream(journal, true);
+        out.write(new byte[]{9, 0, 1, 'x'});
+        out.close();
+        store = new GalleryStore(dir, NAME, DIM);
+        store.appendPut("lost", vector(vectors, 5));
+        store.close();
+
+        EmbeddingGallery loaded = new EmbeddingGallery(DIM);
+        store = new GalleryStore(dir, NAME, DIM);
+        assertFalse(store.load(loaded));
+        assertSameFaces(expected, loaded);
+        assertTrue(new File(dir, NAME + ".journal.corrupt").exists());
+        assertFalse(journal.exists());
+
+        // new records land in a readable journal, not behind the damage
+        expected.put("after", vector(vectors, 6));
+        store.appendPut("after", vector(vectors, 6));
+        store.close();
+        loaded = new EmbeddingGallery(DIM);
+        assertTrue(new GalleryStore(dir, NAME, DIM).load(loaded));
+        assertSameFaces(expected, loaded);
+    }
+
+    @Test
+    public void corruptSnapshotIsSetAside() throws IOException {
+        File dir = tempDir();
+        float[] vectors = samples(new Random(7), gaussian(new Random(8), 5), 10);
+        GalleryStore store = new GalleryStore(dir, NAME, DIM);
+        EmbeddingGallery expected = new EmbeddingGallery(DIM);
+        for (int i = 0; i < 10; i++) {
+            expected.put("face" + i, vector(vectors, i));
+        }
+        store.compact(expected);
+        store.appendPut("journalled", vector(vectors, 0));
+        store.close();
+        File snapshot = new File(dir, NAME + ".gallery");
+        RandomAccessFile file = new RandomAccessFile(snapshot, "rw");
+        file.writeInt(0);
+        file.close();
+
+        EmbeddingGallery loaded = new EmbeddingGallery(DIM);
+        store = new GalleryStore(dir, NAME, DIM);
+        assertFalse(store.load(loaded));
+        store.close();
+        assertEquals(1, loaded.size());
+        assertEquals("journalled", loaded.getName(0));
+        assertTrue(new File(dir, NAME + ".gallery.corrupt").exists());
+
+        loaded = new EmbeddingGallery(DIM);
+        assertTrue(new GalleryStore(dir, NAME, DIM).load(loaded));
+        assertEquals(1, loaded.size());
+    }
+
+    @Test
+    public void migrateJsonReadsOldGallery() throws IOException {
+        float[] vectors = samples(new Random(9), gaussian(new Random(10), 2), 2);
+        StringBuilder json = new StringBuilder("{");
+        json.append("\"alice\":{\"id\":\"0\",\"title\":\"alice\",\"distance\":-1.0,\"extra\":[")
+                .append(array(vectors, 0)).append("]},");
+        // no embedding, and one of the wrong size: both skipped
+        json.append("\"bob\":{\"id\":\"1\",\"title\":\"bob\",\"distance\":-1.0},");
+        json.append("\"carol\":{\"id\":\"2\",\"title\":\"carol\",\"extra\":[[0.5,0.5]]},");
+        json.append("\"dave\":{\"title\":\"dave\",\"extra\":[").append(array(vectors, 1)).append("]}}");
+
+        EmbeddingGallery gallery = new EmbeddingGallery(DIM);
+        assertEquals(2, GalleryStore.migrateJson(new StringReader(json.toString()), gallery));
+        EmbeddingGallery expected = new EmbeddingGallery(DIM);
+        expected.put("alice", vector(vectors, 0));
+        expected.put("dave", vector(vectors, 1));
+        assertSameFaces(expected, gallery);
+    }
+
+    private static void assertSameFaces(EmbeddingGallery expected, EmbeddingGallery actual) {
+        assertEquals(expected.size(), actual.size());
+        float[] want = new float[DIM];
+        float[] got = new float[DIM];
+        for (int i = 0; i < expected.size(); i++) {
+            final String name = expected.getName(i);
+            final int index = actual.indexOf(name);
+            assertTrue(name, index >= 0);
+            expected.getEmbedding(i, want);
+            actual.getEmbedding(index, got);
+            for (int d = 0; d < DIM; d++) {
+                assertEquals(name, want[d], got[d], 1e-6f);
+            }
+        }
+    }
+
+    private static float[] vector(float[] vectors, int index) {
+        float[] vector = new float[DIM];
+        System.arraycopy(vectors, index * DIM, vector, 0, DIM);
+        return vector;
+    }
+
+    private static String array(float[] vectors, int index) {
+        StringBuilder array = new StringBuilder("[");
+        for (int d = 0; d < DIM; d++) {
+            array.append(d > 0 ? "," : "").append(vectors[index * DIM + d]);
+        }
+        return array.append(']').toString();
+    }
+
+    private static void truncate(File file, long length) throws IOException {
+        RandomAccessFile raf = new RandomAccessFile(file, "rw");
+        raf.setLength(length);
+        raf.close();
+    }
+
+    private static File tempDir() throws IOException {
+        File dir = Files.createTempDirectory("gallery").toFile();
+        dir.deleteOnExit();
+        return dir;
+    }
+}
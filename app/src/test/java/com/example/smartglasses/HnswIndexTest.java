@@ -0,0 +1,212 @@
+package com.example.smartglasses;
+
+import org.junit.Test;
+
+import java.util.Random;
+
+import static com.example.smartglasses.SyntheticEmbeddings.*;
+import static org.junit.Assert.*;
+
+/**
+ * Recall and latency of {@link HnswIndex} against exact search, and gallery bookkeeping around it.
+ *
+ * Galleries come from {@link SyntheticEmbeddings}. The default sizes include one above
+ * {@link EmbeddingGallery#INDEX_THRESHOLD}, where the index has to beat the gallery's exact scan at
+ * its default efSearch; larger ones up to 1M vectors can be run with e.g.
+ * -Dhnsw.sizes=1000,10000,100000,1000000.
+ */
+public class HnswIndexTest {
+
+    private static final int QUERIES = 200;
+    private static final int K = 10;
+    private static final int[] EF_SEARCH = {16, 32, 64, 128, 256, EmbeddingGallery.DEFAULT_EF_SEARCH};
+
+    @Test
+    public void recallVsLatency() {
+        for (String size : System.getProperty("hnsw.sizes", "1000,10000,25000").split(",")) {
+            final int n = Integer.parseInt(size.trim());
+            Random random = new Random(n);
+            float[] centres = gaussian(random, Math.max(1, n / SAMPLES_PER_IDENTITY));
+            float[] vectors = samples(random, centres, n);
+            float[] queries = samples(random, centres, QUERIES);
+
+            long start = System.nanoTime();
+            HnswIndex index = new HnswIndex(DIM);
+            for (int i = 0; i < n; i++) {
+                index.insert(vectors, i * DIM);
+            }
+            System.out.printf("n=%d: built in %.1f s%n", n, (System.nanoTime() - start) / 1e9);
+
+            int[][] truth = new int[QUERIES][K];
+            start = System.nanoTime();
+            for (int q = 0; q < QUERIES; q++) {
+                exactTopK(vectors, n, queries, q * DIM, truth[q]);
+            }
+            final double exactMicros = (System.nanoTime() - start) / 1e3 / QUERIES;
+            final double galleryMicros = exactGalleryMicros(vectors, n, queries);
+
+            int[] nodes = new int[K];
+            float[] scores = new float[K];
+            float[] query = new float[DIM];
+            for (int ef : EF_SEARCH) {
+                index.setEfSearch(ef);
+                int hits = 0;
+                long searchNanos = 0;
+                for (int q = 0; q < QUERIES; q++) {
+                    System.arraycopy(queries, q * DIM, query, 0, DIM);
+                    start = System.nanoTime();
+                    final int found = index.search(query, K, nodes, scores);
+                    searchNanos += System.nanoTime() - start;
+                    hits += overlap(truth[q], nodes, found);
+                }
+                final float recall = (float) hits / (QUERIES * K);
+                final double hnswMicros = searchNanos / 1e3 / QUERIES;
+                System.out.printf("  efSearch=%d recall@%d=%.3f hnsw=%.0f us exact=%.0f us gallery=%.0f us%n",
+                        ef, K, recall, hnswMicros, exactMicros, galleryMicros);
+                if (ef == 128) {
+                    assertTrue("recall at efSearch 128 for n=" + n + " was " + recall, recall >= 0.9f);
+                }
+                if (ef == EmbeddingGallery.DEFAULT_EF_SEARCH) {
+                    assertTrue("recall at the gallery's efSearch for n=" + n + " was " + recall, recall >= 0.99f);
+                    if (n > EmbeddingGallery.INDEX_THRESHOLD) {
+                        assertTrue("index " + hnswMicros + " us vs exact gallery " + galleryMicros + " us for n=" + n,
+                                hnswMicros < galleryMicros);
+                    }
+                }
+            }
+        }
+    }
+
+    // mean time of the exact EmbeddingGallery search over the queries, on a second, warmed-up pass
+    private static double exactGalleryMicros(float[] vectors, int n, float[] queries) {
+        EmbeddingGallery gallery = new EmbeddingGallery(DIM);
+        float[] embedding = new float[DIM];
+        for (int i = 0; i < n; i++) {
+            System.arraycopy(vectors, i * DIM, embedding, 0, DIM);
+            gallery.put("person" + i, embedding);
+        }
+        int[] indices = new int[K];
+        float[] scores = new float[K];
+        long nanos = 0;
+        for (int pass = 0; pass < 2; pass++) {
+            final long start = System.nanoTime();
+            for (int q = 0; q < QUERIES; q++) {
+                System.arraycopy(queries, q * DIM, embedding, 0, DIM);
+                gallery.search(embedding, K, indices, scores);
+            }
+            nanos = System.nanoTime() - start;
+        }
+        return nanos / 1e3 / QUERIES;
+    }
+
+    @Test
+    public void deletedNodesAreNeverReturned() {
+        Random random = new Random(1);
+        final int n = 500;
+        float[] vectors = samples(random, gaussian(random, n / SAMPLES_PER_IDENTITY), n);
+        HnswIndex index = new HnswIndex(DIM);
+        for (int i = 0; i < n; i++) {
+            index.insert(vectors, i * DIM);
+        }
+        for (int i = 0; i < n; i += 2) {
+            index.delete(i);
+        }
+        assertEquals(n / 2, index.getDeletedCount());
+
+        int[] nodes = new int[K];
+        float[] scores = new float[K];
+        float[] query = new float[DIM];
+        for (int i = 0; i < n; i++) {
+            System.arraycopy(vectors, i * DIM, query, 0, DIM);
+            final int found = index.search(query, K, nodes, scores);
+            assertEquals(K, found);
+            for (int j = 0; j < found; j++) {
+                assertFalse(index.isDeleted(nodes[j]));
+            }
+            if (i % 2 == 1) {
+                // a live vector finds itself
+                assertEquals(i, nodes[0]);
+            }
+        }
+    }
+
+    @Test
+    public void galleryKeepsIndexInSyncWithPutAndRemove() {
+        Random random = new Random(2);
+        final int n = EmbeddingGallery.INDEX_THRESHOLD + 500;
+        float[] vectors = samples(random, gaussian(random, n / SAMPLES_PER_IDENTITY), n);
+        EmbeddingGallery gallery = new EmbeddingGallery(DIM);
+        gallery.setIndexed(true);
+        float[] embedding = new float[DIM];
+        for (int i = 0; i < n; i++) {
+            System.arraycopy(vectors, i * DIM, embedding, 0, DIM);
+            gallery.put("person" + i, embedding);
+        }
+
+        int[] indices = new int[1];
+        float[] scores = new float[1];
+        // the first search builds the index, later edits must keep names and nodes aligned
+        gallery.search(embedding, 1, indices, scores);
+        assertTrue(gallery.hasIndex());
+        for (int i = 0; i < 300; i++) {
+            assertTrue(gallery.remove("person" + i));
+        }
+        for (int i = n; i < n + 100; i++) {
+            float[] fresh = gaussian(random, 1);
+            gallery.put("person" + i, fresh);
+            System.arraycopy(fresh, 0, vectors, (i - n) * DIM, DIM);
+        }
+
+        for (int i = 300; i < n; i += 7) {
+            System.arraycopy(vectors, i * DIM, embedding, 0, DIM);
+            assertEquals(1, gallery.search(embedding, 1, indices, scores));
+            assertEquals("person" + i, gallery.getName(indices[0]));
+            assertEquals(1f, scores[0], 1e-4f);
+        }
+        for (int i = n; i < n + 100; i++) {
+            System.arraycopy(vectors, (i - n) * DIM, embedding, 0, DIM);
+            gallery.search(embedding, 1, indices, scores);
+            assertEquals("person" + i, gallery.getName(indices[0]));
+        }
+    }
+
+    @Test
+    public void searchIsExactUnlessIndexedAboveThreshold() {
+        Random random = new Random(3);
+        final int n = EmbeddingGallery.INDEX_THRESHOLD;
+        float[] centres = gaussian(random, n / SAMPLES_PER_IDENTITY);
+        float[] vectors = samples(random, centres, n);
+        float[] queries = samples(random, centres, QUERIES);
+        EmbeddingGallery indexed = new EmbeddingGallery(DIM);
+        indexed.setIndexed(true);
+        EmbeddingGallery plain = new EmbeddingGallery(DIM);
+        float[] embedding = new float[DIM];
+        for (int i = 0; i < n; i++) {
+            System.arraycopy(vectors, i * DIM, embedding, 0, DIM);
+            indexed.put("person" + i, embedding);
+            plain.put("person" + i, embedding);
+        }
+
+        int[] truth = new int[K];
+        int[] indices = new int[K];
+        float[] scores = new float[K];
+        float[] query = new float[DIM];
+        for (int q = 0; q < QUERIES; q++) {
+            exactTopK(vectors, n, queries, q * DIM, truth);
+            System.arraycopy(queries, q * DIM, query, 0, DIM);
+            // at the threshold an indexed gallery still scans every entry
+            assertEquals(K, indexed.search(query, K, indices, scores));
+            assertArrayEquals(truth, indices);
+        }
+        assertFalse(indexed.hasIndex());
+
+        // one entry over, only the gallery that asked for it builds the index
+        float[] extra = gaussian(random, 1);
+        indexed.put("extra", extra);
+        plain.put("extra", extra);
+        indexed.search(query, K, indices, scores);
+        assertTrue(indexed.hasIndex());
+        plain.search(query, K, indices, scores);
+        assertFalse(plain.hasIndex());
+    }
+}
@@ -0,0 +1,156 @@
+package com.example.smartglasses;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Random;
+
+import static org.junit.Assert.*;
+
+/**
+ * {@link NonMaxSuppression} against a straightforward greedy NMS run separately per class, on
+ * random clustered boxes with tied scores, several classes sharing the same places and boxes
+ * partly outside the frame.
+ */
+public class NonMaxSuppressionTest {
+
+    private static final int TRIALS = 500;
+
+    @Test
+    public void matchesPerClassGreedyNms() {
+        Random random = new Random(1);
+        for (int trial = 0; trial < TRIALS; trial++) {
+            final int count = random.nextInt(300);
+            final int classes = 1 + random.nextInt(5);
+            final float iou = 0.3f + 0.4f * random.nextFloat();
+            final int preNmsTopK = random.nextBoolean() ? 0 : 1 + random.nextInt(100);
+            final int maxDetections = random.nextBoolean() ? 0 : 1 + random.nextInt(20);
+            DetectionBuffer boxes = randomBoxes(random, count, classes);
+
+            int[] expected = reference(boxes, iou, preNmsTopK, maxDetections);
+            int[] keep = new int[Math.max(1, count)];
+            NonMaxSuppression nms = new NonMaxSuppression(iou, preNmsTopK, maxDetections);
+            final int kept = nms.run(boxes.left, boxes.top, boxes.right, boxes.bottom,
+                    boxes.score, boxes.classId, count, keep);
+            int[] actual = new int[kept];
+            System.arraycopy(keep, 0, actual, 0, kept);
+            assertArrayEquals("trial " + trial, expected, actual);
+        }
+    }
+
+    @Test
+    public void overlappingBoxesOfDifferentClassesAreBothKept() {
+        DetectionBuffer boxes = new DetectionBuffer(4);
+        boxes.add(10, 10, 110, 110, 0.9f, 0);
+        boxes.add(10, 10, 110, 110, 0.8f, 1);
+        boxes.add(12, 12, 112, 112, 0.7f, 0);
+        // far outside the frame on the left, next to a class 1 box
+        boxes.add(-400, 10, -300, 110, 0.6f, 2);
+        DetectionBuffer out = new DetectionBuffer(4);
+        assertEquals(3, new NonMaxSuppression(0.5f, 0, 0).run(boxes, out));
+        assertEquals(0.9f, out.getScore(0), 0f);
+        assertEquals(1, out.getClassId(1));
+        assertEquals(2, out.getClassId(2));
+    }
+
+    @Test
+    public void tiedScoresKeepOneOfIdenticalBoxes() {
+        DetectionBuffer boxes = new DetectionBuffer(3);
+        for (int i = 0; i < 3; i++) {
+            boxes.add(0, 0, 50, 50, 0.5f, 3);
+        }
+        DetectionBuffer out = new DetectionBuffer(3);
+        assertEquals(1, new NonMaxSuppression(0.45f, 0, 0).run(boxes, out));
+    }
+
+    @Test
+    public void reusesScratchAcrossSizes() {
+        Random random = new Random(2);
+        NonMaxSuppression nms = new NonMaxSuppression(0.45f, 0, 0);
+        DetectionBuffer out = new DetectionBuffer(16);
+        for (int count : new int[]{200, 3, 0, 500, 1}) {
+            DetectionBuffer boxes = randomBoxes(random, count, 3);
+            assertEquals(reference(boxes, 0.45f, 0, 0).length, nms.run(boxes, out));
+        }
+    }
+
+    // clusters of boxes around a few centres, shared by all classes, scores on a coarse grid so
+    // many of them tie
+    private static DetectionBuffer randomBoxes(Random random, int count, int classes) {
+        DetectionBuffer boxes = new DetectionBuffer(Math.max(1, count));
+        final int clusters = 1 + count / 10;
+        float[] cx = new float[clusters];
+        float[] cy = new float[clusters];
+        for (int c = 0; c < clusters; c++) {
+            cx[c] = -60 + random.nextFloat() * 760;
+            cy[c] = -60 + random.nextFloat() * 600;
+        }
+        for (int i = 0; i < count; i++) {
+            final int c = random.nextInt(clusters);
+            final float w = 20 + random.nextFloat() * 200;
+            final float h = 20 + random.nextFloat() * 200;
+            final float x = cx[c] + (float) random.nextGaussian() * 15;
+            final float y = cy[c] + (float) random.nextGaussian() * 15;
+            final float score = Math.round(random.nextFloat() * 20) / 20f;
+            boxes.add(x - w / 2, y - h / 2, x + w / 2, y + h / 2, score, random.nextInt(classes));
+        }
+        return boxes;
+    }
+
+    // greedy NMS per class in double precision; candidates in score order, ties broken by the
+    // higher index first, which is the order NonMaxSuppression documents through its sort keys
+    private static int[] reference(final DetectionBuffer boxes, double iou, int preNmsTopK, int maxDetections) {
+        final int count = boxes.size();
+        List<Integer> order = new ArrayList<>();
+        for (int i = 0; i < count; i++) {
+            order.add(i);
+        }
+        Collections.sort(order, new Comparator<Integer>() {
+            @Override
+            public int compare(Integer a, Integer b) {
+                final int byScore = Float.compare(boxes.score[b], boxes.score[a]);
+                return byScore != 0 ? byScore : Integer.compare(b, a);
+            }
+        });
+        if (preNmsTopK > 0 && order.size() > preNmsTopK) {
+            order = order.subList(0, preNmsTopK);
+        }
+
+        List<Integer> kept = new ArrayList<>();
+        for (int i : order) {
+            if (maxDetections > 0 && kept.size() == maxDetections) {
+                break;
+            }
+            boolean suppressed = false;
+            for (int k : kept) {
+                if (boxes.classId[k] == boxes.classId[i] && iou(boxes, i, k) >= iou) {
+                    suppressed = true;
+                    break;
+                }
+            }
+            if (!suppressed) {
+                kept.add(i);
+            }
+        }
+        int[] keep = new int[kept.size()];
+        for (int k = 0; k < keep.length; k++) {
+            keep[k] = kept.get(k);
+        }
+        return keep;
+    }
+
+    private static double iou(DetectionBuffer boxes, int a, int b) {
+        final double iw = Math.min(boxes.right[a], boxes.right[b]) - Math.max(boxes.left[a], boxes.left[b]);
+        final double ih = Math.min(boxes.bottom[a], boxes.bottom[b]) - Math.max(boxes.top[a], boxes.top[b]);
+        if (iw <= 0 || ih <= 0) {
+            return 0;
+        }
+        final double inter = iw * ih;
+        final double areaA = (double) (boxes.right[a] - boxes.left[a]) * (boxes.bottom[a] - boxes.top[a]);
+        final double areaB = (double) (boxes.right[b] - boxes.left[b]) * (boxes.bottom[b] - boxes.top[b]);
+        return inter / (areaA + areaB - inter);
+    }
+}
@@ -0,0 +1,167 @@
+package com.example.smartglasses;
+
+import org.junit.Test;
+
+import java.util.Random;
+
+import static com.example.smartglasses.SyntheticEmbeddings.*;
+import static org.junit.Assert.*;
+
+/**
+ * Accuracy loss of the quantized galleries against exact float search.
+ *
+ * Prints, per quantizer, the code size, how often the float top-1 and top-10 are found, the mean
+ * error of the returned similarity and the scan time, next to the brute-force float scan and the
+ * float {@link EmbeddingGallery}. Every timing is taken on a second pass, after the JIT warmed up. Galleries come from
+ * {@link SyntheticEmbeddings}; the size can be changed with e.g. -Dquantized.size=100000.
+ */
+public class QuantizedGalleryTest {
+
+    private static final int QUERIES = 200;
+    private static final int K = 10;
+
+    @Test
+    public void accuracyLossVsFloat() {
+        final int n = Integer.parseInt(System.getProperty("quantized.size", "10000"));
+        Random random = new Random(n);
+        float[] centres = gaussian(random, Math.max(1, n / SAMPLES_PER_IDENTITY));
+        float[] vectors = samples(random, centres, n);
+        float[] queries = samples(random, centres, QUERIES);
+
+        int[][] truth = new int[QUERIES][K];
+        long start = 0;
+        for (int pass = 0; pass < 4; pass++) {
+            start = System.nanoTime();
+            for (int q = 0; q < QUERIES; q++) {
+                exactTopK(vectors, n, queries, q * DIM, truth[q]);
+            }
+        }
+        final double floatMicros = (System.nanoTime() - start) / 1e3 / QUERIES;
+
+        EmbeddingGallery floats = new EmbeddingGallery(DIM);
+        float[] embedding = new float[DIM];
+        for (int i = 0; i < n; i++) {
+            System.arraycopy(vectors, i * DIM, embedding, 0, DIM);
+            floats.put(Integer.toString(i), embedding);
+        }
+        final double galleryMicros = searchMicros(floats, null, queries);
+        System.out.printf("n=%d float: %d bytes/entry, exact scan %.0f us, EmbeddingGallery %.0f us%n",
+                n, DIM * 4, floatMicros, galleryMicros);
+
+        EmbeddingQuantizer[] quantizers = {
+                new ScalarQuantizer(DIM),
+                new ProductQuantizer(DIM, 96),
+                new ProductQuantizer(DIM, 48),
+        };
+        for (EmbeddingQuantizer quantizer : quantizers) {
+            start = System.nanoTime();
+            quantizer.train(vectors, n);
+            final double trainSeconds = (System.nanoTime() - start) / 1e9;
+            QuantizedGallery gallery = new QuantizedGallery(DIM, quantizer);
+            for (int i = 0; i < n; i++) {
+                System.arraycopy(vectors, i * DIM, embedding, 0, DIM);
+                gallery.put(Integer.toString(i), embedding);
+            }
+
+            int[] indices = new int[K];
+            float[] scores = new float[K];
+            float[] query = new float[DIM];
+            int top1 = 0;
+            int hits = 0;
+            double scoreError = 0;
+            final double scanMicros = searchMicros(null, gallery, queries);
+            for (int q = 0; q < QUERIES; q++) {
+                System.arraycopy(queries, q * DIM, query, 0, DIM);
+                final int found = gallery.search(query, K, indices, scores);
+                if (indices[0] == truth[q][0]) {
+                    top1++;
+                }
+                hits += overlap(truth[q], indices, found);
+                scoreError += Math.abs(scores[0] - dot(queries, q * DIM, vectors, indices[0] * DIM));
+            }
+            final float recall1 = (float) top1 / QUERIES;
+            final float recall10 = (float) hits / (QUERIES * K);
+            System.out.printf("  %s: %d bytes/entry (%.0fx), trained in %.1f s, recall@1=%.3f recall@%d=%.3f"
+                            + " score error=%.4f scan=%.0f us%n",
+                    quantizer.getName(), quantizer.getCodeSize(), DIM * 4f / quantizer.getCodeSize(),
+                    trainSeconds, recall1, K, recall10, scoreError / QUERIES, scanMicros);
+
+            if (quantizer instanceof ScalarQuantizer) {
+                assertTrue("int8 recall@1 was " + recall1, recall1 >= 0.95f);
+                assertTrue("int8 recall@10 was " + recall10, recall10 >= 0.9f);
+            } else if (quantizer.getCodeSize() == 48) {
+                assertTrue("PQ48 recall@10 was " + recall10, recall10 >= 0.6f);
+            }
+        }
+    }
+
+    @Test
+    public void compressKeepsEntriesAndPutRemoveStayAligned() {
+        Random random = new Random(3);
+        final int n = 600;
+        float[] vectors = samples(random, gaussian(random, n / SAMPLES_PER_IDENTITY), n);
+        EmbeddingGallery floats = new EmbeddingGallery(DIM);
+        float[] embedding = new float[DIM];
+        for (int i = 0; i < n; i++) {
+            System.arraycopy(vectors, i * DIM, embedding, 0, DIM);
+            floats.put("person" + i, embedding);
+        }
+
+        QuantizedGallery gallery = QuantizedGallery.compress(floats, new ScalarQuantizer(DIM));
+        assertEquals(n, gallery.size());
+        assertEquals((long) n * DIM, gallery.getCodeBytes());
+        for (int i = 0; i < n; i++) {
+            assertEquals("person" + i, gallery.getName(i));
+        }
+
+        for (int i = 0; i < 100; i++) {
+            assertTrue(gallery.remove("person" + i));
+        }
+        assertFalse(gallery.remove("person0"));
+        // replacing keeps the entry count
+        System.arraycopy(vectors, 0, embedding, 0, DIM);
+        gallery.put("person100", embedding);
+        assertEquals(n - 100, gallery.size());
+
+        int[] indices = new int[1];
+        float[] scores = new float[1];
+        gallery.search(embedding, 1, indices, scores);
+        assertEquals("person100", gallery.getName(indices[0]));
+        for (int i = 101; i < n; i += 5) {
+            System.arraycopy(vectors, i * DIM, embedding, 0, DIM);
+            gallery.search(embedding, 1, indices, scores);
+            assertEquals("person" + i, gallery.getName(indices[0]));
+            assertEquals(1f, scores[0], 0.02f);
+        }
+    }
+
+    // mean time of a top-K search on the second of two passes over the queries
+    private static double searchMicros(EmbeddingGallery floats, QuantizedGallery quantized, float[] queries) {
+        int[] indices = new int[K];
+        float[] scores = new float[K];
+        float[] query = new float[DIM];
+        long nanos = 0;
+        for (int pass = 0; pass < 4; pass++) {
+            nanos = 0;
+            for (int q = 0; q < QUERIES; q++) {
+                System.arraycopy(queries, q * DIM, query, 0, DIM);
+                final long start = System.nanoTime();
+                if (floats != null) {
+                    floats.search(query, K, indices, scores);
+                } else {
+                    quantized.search(query, K, indices, scores);
+                }
+                nanos += System.nanoTime() - start;
+            }
+        }
+        return nanos / 1e3 / QUERIES;
+    }
+
+    private static float dot(float[] a, int aOffset, float[] b, int bOffset) {
+        float dot = 0;
+        for (int d = 0; d < DIM; d++) {
+            dot += a[aOffset + d] * b[bOffset + d];
+        }
+        return dot;
+    }
+}
@@ -0,0 +1,82 @@
+package com.example.smartglasses;
+
+import java.util.Arrays;
+import java.util.Random;
+
+/**
+ * Synthetic galleries for the search tests: a few noisy, normalised samples around random identity
+ * centres, like several enrollment photos per person.
+ */
+final class SyntheticEmbeddings {
+
+    static final int DIM = 192;
+    static final int SAMPLES_PER_IDENTITY = 5;
+    static final float NOISE = 0.7f;
+
+    private SyntheticEmbeddings() {
+    }
+
+    static float[] gaussian(Random random, int count) {
+        float[] vectors = new float[count * DIM];
+        for (int i = 0; i < vectors.length; i++) {
+            vectors[i] = (float) random.nextGaussian();
+        }
+        return vectors;
+    }
+
+    // noisy copies of random centres, normalised
+    static float[] samples(Random random, float[] centres, int count) {
+        final int identities = centres.length / DIM;
+        float[] vectors = new float[count * DIM];
+        for (int i = 0; i < count; i++) {
+            final int centre = random.nextInt(identities) * DIM;
+            float norm = 0;
+            for (int d = 0; d < DIM; d++) {
+                final float value = centres[centre + d] + (float) random.nextGaussian() * NOISE;
+                vectors[i * DIM + d] = value;
+                norm += value * value;
+            }
+            final float scale = (float) (1.0 / Math.sqrt(norm));
+            for (int d = 0; d < DIM; d++) {
+                vectors[i * DIM + d] *= scale;
+            }
+        }
+        return vectors;
+    }
+
+    // brute force top-k by dot product, insertion into a small sorted array
+    static void exactTopK(float[] vectors, int n, float[] queries, int queryOffset, int[] out) {
+        float[] best = new float[out.length];
+        Arrays.fill(best, -Float.MAX_VALUE);
+        for (int i = 0; i < n; i++) {
+            float dot = 0;
+            for (int d = 0; d < DIM; d++) {
+                dot += queries[queryOffset + d] * vectors[i * DIM + d];
+            }
+            if (dot <= best[out.length - 1]) {
+                continue;
+            }
+            int j = out.length - 1;
+            while (j > 0 && best[j - 1] < dot) {
+                best[j] = best[j - 1];
+                out[j] = out[j - 1];
+                j--;
+            }
+            best[j] = dot;
+            out[j] = i;
+        }
+    }
+
+    static int overlap(int[] truth, int[] found, int count) {
+        int hits = 0;
+        for (int t : truth) {
+            for (int i = 0; i < count; i++) {
+                if (found[i] == t) {
+                    hits++;
+                    break;
+                }
+            }
+        }
+        return hits;
+    }
+}